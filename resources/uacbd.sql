@@ -15,6 +15,7 @@ CREATE  TABLE IF NOT EXISTS `uacbd`.`Moradas` (
   `nr` VARCHAR(15) NOT NULL ,
   `cod_postal` CHAR(8) NOT NULL ,
   `localidade` VARCHAR(30) NOT NULL ,
+  `versao` INT UNSIGNED NOT NULL DEFAULT 0 ,
   PRIMARY KEY (`id`) )
 ENGINE = InnoDB
 DEFAULT CHARACTER SET = latin1;
@@ -28,8 +29,10 @@ CREATE  TABLE IF NOT EXISTS `uacbd`.`Admins` (
   `nome` VARCHAR(60) NOT NULL ,
   `username` VARCHAR(10) NOT NULL ,
   `password` VARCHAR(15) NOT NULL ,
+  `versao` INT UNSIGNED NOT NULL DEFAULT 0 ,
   PRIMARY KEY (`id`) ,
-  UNIQUE INDEX `username_UNIQUE` (`username` ASC) )
+  UNIQUE INDEX `username_UNIQUE` (`username` ASC) ,
+  INDEX `nome_INDEX` (`nome` ASC) )
 ENGINE = InnoDB
 DEFAULT CHARACTER SET = latin1;
 
@@ -40,6 +43,7 @@ DEFAULT CHARACTER SET = latin1;
 CREATE  TABLE IF NOT EXISTS `uacbd`.`Cursos` (
   `id` INT UNSIGNED NOT NULL AUTO_INCREMENT ,
   `nome` VARCHAR(70) NOT NULL ,
+  `versao` INT UNSIGNED NOT NULL DEFAULT 0 ,
   PRIMARY KEY (`id`) ,
   UNIQUE INDEX `nome` (`nome` ASC) )
 ENGINE = InnoDB
@@ -57,8 +61,10 @@ CREATE  TABLE IF NOT EXISTS `uacbd`.`Alunos` (
   `email` VARCHAR(30) NOT NULL ,
   `bolsa` TINYINT(1) NOT NULL DEFAULT 0 ,
   `curso` INT UNSIGNED NOT NULL ,
+  `versao` INT UNSIGNED NOT NULL DEFAULT 0 ,
   PRIMARY KEY (`id`) ,
   UNIQUE INDEX `email_UNIQUE` (`email` ASC) ,
+  INDEX `nome_INDEX` (`nome` ASC) ,
   INDEX `fk_alunos_curso` (`curso` ASC) ,
   INDEX `fk_alunos_morada` (`morada` ASC) ,
   CONSTRAINT `fk_alunos_curso`
@@ -86,8 +92,10 @@ CREATE  TABLE IF NOT EXISTS `uacbd`.`histAlunos` (
   `email` VARCHAR(30) NOT NULL ,
   `bolsa` TINYINT(1) NOT NULL DEFAULT 0 ,
   `curso` INT UNSIGNED NOT NULL ,
+  `versao` INT UNSIGNED NOT NULL DEFAULT 0 ,
   PRIMARY KEY (`id`) ,
   UNIQUE INDEX `email_UNIQUE` (`email` ASC) ,
+  INDEX `nome_INDEX` (`nome` ASC) ,
   INDEX `fk_histalunos_curso` (`curso` ASC) ,
   INDEX `fk_histalunos_morada` (`morada` ASC) ,
   CONSTRAINT `fk_histalunos_curso`
@@ -21,9 +21,12 @@
 
 package pt.uac.cafeteria.model;
 
-import java.sql.Connection;
-import java.sql.DriverManager;
 import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
 import javax.mail.Message;
 import javax.mail.MessagingException;
 import javax.mail.PasswordAuthentication;
@@ -33,6 +36,11 @@ import javax.mail.internet.InternetAddress;
 import javax.mail.internet.MimeMessage;
 import pt.uac.cafeteria.model.domain.*;
 import pt.uac.cafeteria.model.persistence.*;
+import pt.uac.cafeteria.model.persistence.abstracts.AsyncMapper;
+import pt.uac.cafeteria.model.persistence.jdbc.ConnectionPool;
+import pt.uac.cafeteria.model.persistence.jdbc.Dialect;
+import pt.uac.cafeteria.model.persistence.jdbc.PooledConnection;
+import pt.uac.cafeteria.model.persistence.jdbc.ScriptRunner;
 
 /**
  * Application gateway.
@@ -48,60 +56,145 @@ public class Application {
     /** Default administrator password */
     private static final String DEFAULT_ADMIN_PASSWORD = "12345678";
 
+    /** Tables created by the database script. */
+    private static final String[] TABLES = {"Moradas", "Admins", "Cursos", "Alunos", "histAlunos"};
+
     /** Global configuration object instance. */
     private static Config config = Config.getInstance();
 
-    /** Reusable database connection. */
-    private static Connection db;
+    /** Pool of reusable database connections. */
+    private static ConnectionPool pool;
 
     /** Email session for sending emails. */
     private static Session mail_session;
 
     /** Application initialization. */
     public static void init() {
-        initDBConnection();
+        getConnectionPool();
         checkDefaultAdminAccount();
         MapperRegistry.account().loadAll();
+        MapperRegistry.account().startBackgroundWork();
+        MapperRegistry.student().buildNameIndex();
+        MapperRegistry.oldStudent().buildNameIndex();
     }
 
     /** Application finalization. Must be run on exit. */
     public static void close() {
+        AsyncMapper.shutdown();
+        MapperRegistry.course().stopRefresh();
+        MapperRegistry.account().stopCompaction();
+        MapperRegistry.account().stopGroupCommit();
         MapperRegistry.account().save();
+        if (pool != null) {
+            pool.close();
+        }
     }
 
     /**
-     * Creates a new database connection using credentials stored in Config.
+     * Creates a new database connection pool using credentials and
+     * pool settings stored in Config.
      *
-     * @return a database connection.
-     * @throws ApplicationException if unable to create connection, or
-     * db driver can't be loaded.
+     * @return a database connection pool.
+     * @throws ApplicationException if db driver can't be loaded.
      */
-    private static Connection initDBConnection() {
+    private static ConnectionPool initConnectionPool() {
         String dbname = config.get(Config.DB_NAME);
         String dbuser = config.get(Config.DB_USER);
         String dbpass = config.get(Config.DB_PASS);
-        String url = "jdbc:mysql://localhost/" + dbname;
+        int statementCache = config.getInt(Config.DB_POOL_STATEMENT_CACHE, 64);
+        Dialect dialect = Dialect.forName(config.getString(Config.DB_DIALECT, "mysql"));
+
+        String url = config.getString(Config.DB_URL, "");
+        if (url.isEmpty()) {
+            url = dialect.getUrl(dbname, statementCache > 0, config.getInt(Config.DB_FETCH_SIZE, 0) > 0);
+        }
         try {
-            Class.forName("com.mysql.jdbc.Driver");
-            return DriverManager.getConnection(url, dbuser, dbpass);
+            Class.forName(dialect.getDriverClass());
         } catch (ClassNotFoundException e) {
-            throw new ApplicationException("Falha ao carregar driver mysql.", e);
+            throw new ApplicationException("Falha ao carregar driver da base de dados.", e);
+        }
+        ConnectionPool newPool = new ConnectionPool(dialect, url, dbuser, dbpass,
+            config.getInt(Config.DB_POOL_SIZE, 8),
+            config.getInt(Config.DB_POOL_MAX_WAIT, 5000),
+            config.getInt(Config.DB_POOL_VALIDATION_INTERVAL, 30000),
+            statementCache
+        );
+        if (dialect.isEmbedded()) {
+            initEmbeddedDatabase(newPool, dbname);
+        }
+        return newPool;
+    }
+
+    /**
+     * Creates the tables of an embedded database from the script in Config,
+     * unless they all exist already.
+     * <p>
+     * Tables are created even if a later statement fails, so the database
+     * is dropped on failure, for the script to run from the start next time.
+     *
+     * @param pool a pool of connections to the embedded database.
+     * @param dbname the database name.
+     * @throws ApplicationException if the script fails.
+     */
+    private static void initEmbeddedDatabase(ConnectionPool pool, String dbname) {
+        PooledConnection con = pool.borrow();
+        try {
+            Statement stmt = con.getConnection().createStatement();
+            try {
+                for (String table : TABLES) {
+                    stmt.executeQuery("SELECT 1 FROM " + table + " WHERE 1 = 0").close();
+                }
+                return;
+            } finally {
+                stmt.close();
+            }
         } catch (SQLException e) {
-            throw new ApplicationException("Problema em ligar à base de dados.", e);
+            // not created yet, or only in part
+        } finally {
+            pool.release(con);
+        }
+
+        try {
+            new ScriptRunner(pool).run(config.getString(Config.DB_SCRIPT, "resources/uacbd.sql"));
+        } catch (ApplicationException e) {
+            dropDatabase(pool, dbname);
+            throw e;
         }
     }
 
     /**
-     * Gets a reference to reusable database connection, using credentials
-     * stored on Config object.
+     * Drops what a failed database script left behind, ignoring errors.
      *
-     * @return database connection.
+     * @param pool a pool of connections to the embedded database.
+     * @param dbname the database name.
      */
-    public static Connection getDBConnection() {
-        if (db == null) {
-            db = initDBConnection();
+    private static void dropDatabase(ConnectionPool pool, String dbname) {
+        PooledConnection con = pool.borrow();
+        try {
+            Statement stmt = con.getConnection().createStatement();
+            try {
+                stmt.execute(pool.getDialect().dropDatabase(dbname));
+            } finally {
+                stmt.close();
+            }
+        } catch (SQLException e) {
+            // do nothing (the script error is the one to report)
+        } finally {
+            pool.release(con);
         }
-        return db;
+    }
+
+    /**
+     * Gets a reference to the pool of reusable database connections, using
+     * credentials stored on Config object.
+     *
+     * @return database connection pool.
+     */
+    public static synchronized ConnectionPool getConnectionPool() {
+        if (pool == null) {
+            pool = initConnectionPool();
+        }
+        return pool;
     }
 
     /**
@@ -249,13 +342,50 @@ public class Application {
      * @param student the student to close the account.
      */
     public static void closeStudentAccount(Student student) {
-        // move student from active list to historic list
-        MapperRegistry.oldStudent().insert(student);
-        MapperRegistry.student().delete(student);
+        closeStudentAccounts(Collections.singletonList(student));
+    }
 
-        // close account
-        student.getAccount().close();
-        MapperRegistry.account().update(student.getAccount());
+    /**
+     * Closes many student accounts at once, e.g., at the end of the year.
+     * <p>
+     * The students are all moved to the list of old students in one
+     * transaction, and the accounts closed with a single write.
+     *
+     * @param students the students to close the accounts.
+     */
+    public static void closeStudentAccounts(Collection<Student> students) {
+        // move students from active list to historic list
+        MapperRegistry.student().archive(students);
+
+        // close accounts
+        List<Account> accounts = new ArrayList<Account>(students.size());
+        for (Student student : students) {
+            if (student.getAccount() != null) {
+                student.getAccount().close();
+                accounts.add(student.getAccount());
+            }
+        }
+        MapperRegistry.account().updateAll(accounts);
+    }
+
+    /**
+     * Saves the account of a student.
+     * <p>
+     * If the account was changed in another terminal since it was loaded,
+     * the changes made here are discarded, and the student is given the
+     * stored account, before the exception is passed on.
+     *
+     * @param student the student with the changed account.
+     * @return true if saved; false otherwise.
+     * @throws ConcurrencyException if changed in another terminal.
+     */
+    public static boolean updateAccount(Student student) {
+        try {
+            return MapperRegistry.account().update(student.getAccount());
+        } catch (ConcurrencyException e) {
+            student.setAccount(MapperRegistry.account().find(student.getId()));
+            throw e;
+        }
     }
 
     /**
@@ -275,7 +405,12 @@ public class Application {
                 return MapperRegistry.student().find(accountNumber);
             }
             if (account.isBlocked()) {
-                MapperRegistry.account().update(account);
+                try {
+                    MapperRegistry.account().update(account);
+                } catch (ConcurrencyException e) {
+                    // changed in another terminal, and reloaded; let the student try again
+                    return null;
+                }
                 throw new IllegalStateException("Conta bloqueada!");
             }
         }
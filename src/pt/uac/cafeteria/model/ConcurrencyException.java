@@ -0,0 +1,52 @@
+
+/**
+ * Cafeteria management application
+ * Copyright (c) 2011, 2012 Helder Correia
+ * 
+ * This file is part of Cafeteria.
+ * 
+ * Cafeteria is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * Cafeteria is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Cafeteria.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package pt.uac.cafeteria.model;
+
+/**
+ * Thrown when saving an object that someone else changed since it was
+ * loaded.
+ * <p>
+ * Nothing is saved when this happens. The caller may reload the object,
+ * apply the changes again and retry, or let the user know.
+ */
+public class ConcurrencyException extends ApplicationException {
+
+    private static final long serialVersionUID = 1L;
+
+    /** The object that couldn't be saved. */
+    private final transient Object subject;
+
+    /**
+     * Creates a new ConcurrencyException instance.
+     *
+     * @param subject the object that couldn't be saved.
+     */
+    public ConcurrencyException(Object subject) {
+        super("Os dados foram alterados noutro terminal. Tente novamente.");
+        this.subject = subject;
+    }
+
+    /** Gets the object that couldn't be saved. */
+    public Object getSubject() {
+        return subject;
+    }
+}
@@ -61,6 +61,15 @@ public class Config extends AbstractProperties {
      */
     public static final String SCHOLARSHIP_DISCOUNT = "meal.scholarship_discount";
 
+    /** Database product: <code>mysql</code>, or <code>h2</code> for an embedded database. */
+    public static final String DB_DIALECT = "db.dialect";
+
+    /** JDBC URL of the database. If empty, it's made from the dialect and database name. */
+    public static final String DB_URL = "db.url";
+
+    /** SQL script that creates the database, run when an embedded one is first used. */
+    public static final String DB_SCRIPT = "db.script";
+
     /** Database name to use. */
     public static final String DB_NAME = "db.name";
 
@@ -70,6 +79,81 @@ public class Config extends AbstractProperties {
     /** Database password credential for authentication. */
     public static final String DB_PASS = "db.pass";
 
+    /** Maximum number of open database connections. */
+    public static final String DB_POOL_SIZE = "db.pool.size";
+
+    /** Time, in milliseconds, to wait for a free database connection. */
+    public static final String DB_POOL_MAX_WAIT = "db.pool.max_wait";
+
+    /**
+     * Idle time, in milliseconds, after which a database connection is
+     * checked before being used again.
+     */
+    public static final String DB_POOL_VALIDATION_INTERVAL = "db.pool.validation_interval";
+
+    /** Number of prepared statements each database connection keeps for reuse. */
+    public static final String DB_POOL_STATEMENT_CACHE = "db.pool.statement_cache";
+
+    /**
+     * Number of rows fetched at a time when streaming results with a cursor.
+     * Use 0 to stream one row at a time.
+     */
+    public static final String DB_FETCH_SIZE = "db.fetch_size";
+
+    /**
+     * Strategy for keeping loaded objects in memory, in database mappers:
+     * <code>lru</code>, <code>soft</code>, <code>weak</code> or <code>ttl</code>.
+     */
+    public static final String IDENTITY_MAP = "cache.identity_map";
+
+    /** Maximum number of loaded objects kept by each database mapper. */
+    public static final String IDENTITY_MAP_SIZE = "cache.identity_map.size";
+
+    /** Time, in seconds, loaded objects are kept with the <code>ttl</code> strategy. */
+    public static final String IDENTITY_MAP_TTL = "cache.identity_map.ttl";
+
+    /**
+     * Time, in seconds, between reloads of the courses cached in memory,
+     * to pick up changes made elsewhere. Use 0 to never reload.
+     */
+    public static final String COURSE_CACHE_REFRESH = "cache.courses.refresh";
+
+    /** Maximum number of query results cached by each database mapper (0 to disable). */
+    public static final String QUERY_CACHE_SIZE = "cache.queries.size";
+
+    /** Time, in seconds, query results are cached. */
+    public static final String QUERY_CACHE_TTL = "cache.queries.ttl";
+
+    /**
+     * Time, in seconds, between checks of whether the account log should be
+     * compacted into the accounts file. Use 0 to never compact.
+     */
+    public static final String ACCOUNT_COMPACT_INTERVAL = "accounts.compact.interval";
+
+    /** Size, in kilobytes, above which the account log is compacted. */
+    public static final String ACCOUNT_COMPACT_LOG_SIZE = "accounts.compact.log_size";
+
+    /** Number of records above which the account log is compacted. */
+    public static final String ACCOUNT_COMPACT_RECORDS = "accounts.compact.records";
+
+    /** Time, in seconds, without saving accounts after which the log is compacted. */
+    public static final String ACCOUNT_COMPACT_IDLE = "accounts.compact.idle";
+
+    /**
+     * Time, in milliseconds, that an account saved with group commit waits
+     * for others to be saved with it (0 to save each one right away).
+     */
+    public static final String ACCOUNT_COMMIT_DELAY = "accounts.commit.delay";
+
+    /** Maximum number of account saves written together with group commit. */
+    public static final String ACCOUNT_COMMIT_BATCH = "accounts.commit.batch";
+
+    /** Number of threads that run mapper operations in the background. */
+    public static final String ASYNC_THREADS = "async.threads";
+
+    /** Maximum number of background mapper operations waiting to run. */
+    public static final String ASYNC_MAX_PENDING = "async.max_pending";
+
     /** System email address, used also as username for authentication. */
     public static final String MAIL_USER = "mail.user";
 
@@ -115,9 +199,39 @@ public class Config extends AbstractProperties {
         set(SCHOLARSHIP_DISCOUNT, "0.80");
 
         // database settings
+        set(DB_DIALECT, "mysql");
+        set(DB_URL, "");
+        set(DB_SCRIPT, "resources/uacbd.sql");
         set(DB_NAME, "uacbd");
         set(DB_USER, "root");
         set(DB_PASS, "root");
+        set(DB_POOL_SIZE, "8");
+        set(DB_POOL_MAX_WAIT, "5000");
+        set(DB_POOL_VALIDATION_INTERVAL, "30000");
+        set(DB_POOL_STATEMENT_CACHE, "64");
+        set(DB_FETCH_SIZE, "0");
+
+        // loaded objects cache
+        set(IDENTITY_MAP, "lru");
+        set(IDENTITY_MAP_SIZE, "10000");
+        set(IDENTITY_MAP_TTL, "600");
+        set(COURSE_CACHE_REFRESH, "0");
+        set(QUERY_CACHE_SIZE, "1000");
+        set(QUERY_CACHE_TTL, "60");
+
+        // account log compaction
+        set(ACCOUNT_COMPACT_INTERVAL, "60");
+        set(ACCOUNT_COMPACT_LOG_SIZE, "4096");
+        set(ACCOUNT_COMPACT_RECORDS, "10000");
+        set(ACCOUNT_COMPACT_IDLE, "300");
+
+        // account group commit
+        set(ACCOUNT_COMMIT_DELAY, "5");
+        set(ACCOUNT_COMMIT_BATCH, "50");
+
+        // background mapper operations
+        set(ASYNC_THREADS, "4");
+        set(ASYNC_MAX_PENDING, "100");
 
         // email account
         set(MAIL_USER, "univent.uac@gmail.com");
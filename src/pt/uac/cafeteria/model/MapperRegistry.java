@@ -22,13 +22,13 @@
 package pt.uac.cafeteria.model;
 
 import java.lang.reflect.Constructor;
-import java.sql.Connection;
-import java.util.HashMap;
-import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import pt.uac.cafeteria.model.persistence.*;
 import pt.uac.cafeteria.model.persistence.abstracts.DataMapper;
+import pt.uac.cafeteria.model.persistence.jdbc.ConnectionPool;
 
 /**
  * A well-known class that other objects can use to find data mappers.
@@ -40,17 +40,21 @@ import pt.uac.cafeteria.model.persistence.abstracts.DataMapper;
  * <p>Each public class method is a factory for a different
  * <code>DataMapper</code> instance, initializing it with the
  * default parameter.
+ *
+ * <p>The Registry is safe to use from several threads. Each mapper is only
+ * ever created once, and then shared by all.
  */
 public class MapperRegistry {
 
     /** Common parent path of all files, for file based mappers. */
     private static final String DATA_PATH = "data/";
 
-    /** Default database connection used in all database based mappers. */
-    private static final Connection DB = Application.getDBConnection();
+    /** Default database connection pool used in all database based mappers. */
+    private static final ConnectionPool DB = Application.getConnectionPool();
 
     /** Map with loaded mapper instances. */
-    private static Map<String, DataMapper> instances = new HashMap<String, DataMapper>();
+    private static final ConcurrentMap<String, DataMapper> instances =
+            new ConcurrentHashMap<String, DataMapper>();
 
     /** Gets an AccountMapper instance. */
     public static AccountMapper account() {
@@ -141,7 +145,8 @@ public class MapperRegistry {
      * clean and lean, without code duplication.
      *
      * <p>New instances of a mapper are only created when there's none already
-     * loaded for the given key.
+     * loaded for the given key. Lookups don't lock; creation does, so that
+     * two threads asking for the same new mapper get the same instance.
      *
      * <p>The key should be formated as such: "<code>ClassName[:suffix]</code>".
      * The suffix is optional, and allows different instances of the same class.
@@ -153,17 +158,25 @@ public class MapperRegistry {
      * @return a DataMapper subclass object, as requested by the key parameter.
      */
     private static <T extends DataMapper, D> T getInstance(String key, D dep) {
-        if (!instances.containsKey(key)) {
-            try {
-                Constructor create = getClass(key).getConstructor(getType(dep));
-                instances.put(key, (T) create.newInstance(dep));
-            }
-            catch (Exception e) {
-                Logger.getLogger("Reflection").log(Level.SEVERE, null, e);
-                return null;
+        DataMapper instance = instances.get(key);
+        if (instance != null) {
+            return (T) instance;
+        }
+        synchronized (instances) {
+            instance = instances.get(key);
+            if (instance == null) {
+                try {
+                    Constructor create = getClass(key).getConstructor(getType(dep));
+                    instance = (DataMapper) create.newInstance(dep);
+                    instances.put(key, instance);
+                }
+                catch (Exception e) {
+                    Logger.getLogger("Reflection").log(Level.SEVERE, null, e);
+                    return null;
+                }
             }
         }
-        return (T) instances.get(key);
+        return (T) instance;
     }
 
     /**
@@ -190,13 +203,13 @@ public class MapperRegistry {
     }
 
     /**
-     * Filters an object.getClass() for java.sql.Connection, because
+     * Filters an object.getClass() for ConnectionPool, because
      * Class.getConstructor(Class... types) requires an exact match.
      *
      * @param o object to query the class from.
      * @return Class type of object in parameter.
      */
     private static Class getType(Object o) {
-        return o instanceof Connection ? Connection.class : o.getClass();
+        return o instanceof ConnectionPool ? ConnectionPool.class : o.getClass();
     }
 }
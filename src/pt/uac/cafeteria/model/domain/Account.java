@@ -29,7 +29,7 @@ import java.util.List;
  * A student account in the cafeteria. It manages access to the system,
  * a balance for buying meals and has the list of transactions made.
  */
-public class Account implements DomainObject<Integer>, java.io.Serializable {
+public class Account implements DomainObject<Integer>, Versioned, java.io.Serializable {
 
     /**
      * Serialization version.
@@ -80,6 +80,9 @@ public class Account implements DomainObject<Integer>, java.io.Serializable {
     /** Recorded number of consecutive failed attempts at logging in. */
     private int failedLoginAttempts;
 
+    /** Version for optimistic locking. */
+    private int version;
+
     /**
      * Creates a new Account, with auto-generated pin code.
      *
@@ -102,6 +105,28 @@ public class Account implements DomainObject<Integer>, java.io.Serializable {
         this.transactions = new ArrayList<Transaction>();
     }
 
+    /**
+     * Recreates an Account as stored, e.g., when loading from file.
+     *
+     * @param studentId the student id number.
+     * @param pinCode the access pin code.
+     * @param balance the balance available.
+     * @param status the account status.
+     * @param failedLoginAttempts consecutive failed attempts at logging in.
+     * @param version version for optimistic locking.
+     * @param transactions transactions made, oldest first.
+     */
+    public Account(Integer studentId, int pinCode, double balance, Status status,
+            int failedLoginAttempts, int version, List<Transaction> transactions) {
+        this.id = studentId;
+        this.pinCode = pinCode;
+        this.balance = balance;
+        this.status = status;
+        this.failedLoginAttempts = failedLoginAttempts;
+        this.version = version;
+        this.transactions = new ArrayList<Transaction>(transactions);
+    }
+
     /** Generates a number between given boundaries. */
     private static int randomNumber(int min, int max) {
         return min + (int)(Math.random() * (max - min));
@@ -117,6 +142,16 @@ public class Account implements DomainObject<Integer>, java.io.Serializable {
         this.id = id.intValue();
     }
 
+    @Override
+    public int getVersion() {
+        return version;
+    }
+
+    @Override
+    public void setVersion(int version) {
+        this.version = version;
+    }
+
     /** Gets the current pin code. */
     public int getPinCode() {
         return pinCode;
@@ -142,6 +177,11 @@ public class Account implements DomainObject<Integer>, java.io.Serializable {
         return status;
     }
 
+    /** Gets the number of consecutive failed attempts at logging in. */
+    public int getFailedLoginAttempts() {
+        return failedLoginAttempts;
+    }
+
     /** Sets account to a new status. */
     public void setStatus(Status status) {
         this.status = status;
@@ -24,7 +24,7 @@ package pt.uac.cafeteria.model.domain;
 /**
  * Class with simple address fields.
  */
-public class Address implements DomainObject<Integer> {
+public class Address implements DomainObject<Integer>, Versioned {
 
     /** Unique identifier for the address. */
     private Integer id;
@@ -45,6 +45,9 @@ public class Address implements DomainObject<Integer> {
     /** City. */
     private String city;
 
+    /** Version for optimistic locking. */
+    private int version;
+
     /**
      * Creates a new Address instance.
      *
@@ -70,6 +73,16 @@ public class Address implements DomainObject<Integer> {
         this.id = id;
     }
 
+    @Override
+    public int getVersion() {
+        return version;
+    }
+
+    @Override
+    public void setVersion(int version) {
+        this.version = version;
+    }
+
     /** Returns the street address. */
     public String getStreetAddress() {
         return streetAddress;
@@ -26,7 +26,7 @@ package pt.uac.cafeteria.model.domain;
  * <p>
  * Used for privileged access in the application.
  */
-public class Administrator implements DomainObject<Integer> {
+public class Administrator implements DomainObject<Integer>, Versioned {
 
     /** The admin's unique id. */
     private Integer id;
@@ -40,6 +40,9 @@ public class Administrator implements DomainObject<Integer> {
     /** The password */
     private String password;
 
+    /** Version for optimistic locking. */
+    private int version;
+
     /**
      * Public constructor.
      *
@@ -63,6 +66,16 @@ public class Administrator implements DomainObject<Integer> {
         this.id = id;
     }
 
+    @Override
+    public int getVersion() {
+        return version;
+    }
+
+    @Override
+    public void setVersion(int version) {
+        this.version = version;
+    }
+
     /** Returns the person's name */
     public String getName() {
         return name;
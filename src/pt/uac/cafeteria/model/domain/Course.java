@@ -24,7 +24,7 @@ package pt.uac.cafeteria.model.domain;
 /**
  * A University course, that students can be enrolled in.
  */
-public class Course implements DomainObject<Integer> {
+public class Course implements DomainObject<Integer>, Versioned {
 
     /** The course id. */
     private Integer id;
@@ -32,6 +32,9 @@ public class Course implements DomainObject<Integer> {
     /** The course name. */
     private String name;
 
+    /** Version for optimistic locking. */
+    private int version;
+
     /**
      * Creates a new Course object.
      * <p>
@@ -55,6 +58,16 @@ public class Course implements DomainObject<Integer> {
         this.id = id;
     }
 
+    @Override
+    public int getVersion() {
+        return version;
+    }
+
+    @Override
+    public void setVersion(int version) {
+        this.version = version;
+    }
+
     /** Gets the course name. */
     public String getName() {
         return name;
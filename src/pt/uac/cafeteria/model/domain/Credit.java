@@ -21,6 +21,8 @@
 
 package pt.uac.cafeteria.model.domain;
 
+import java.util.Date;
+
 /**
  * A type of transaction used when a student makes a payment to an
  * administrator to add credit to his account (increasing balance).
@@ -47,6 +49,18 @@ public class Credit extends Transaction {
         this.administrator = administrator;
     }
 
+    /**
+     * Recreates a Credit transaction made at a given date.
+     *
+     * @param date the date the transaction was made.
+     * @param administrator the administrator handling the transaction.
+     * @param amount the amount added to the account balance.
+     */
+    public Credit(Date date, String administrator, double amount) {
+        super(date, amount);
+        this.administrator = administrator;
+    }
+
     /** Gets the administrator responsible for the transaction. */
     public String getAdministrator() {
         return administrator;
@@ -27,7 +27,7 @@ package pt.uac.cafeteria.model.domain;
  * The id number should be an auto-incremented number
  * prefixed with the current year.
  */
-public class Student implements DomainObject<Integer> {
+public class Student implements DomainObject<Integer>, Versioned {
 
     /** Student identification. */
     private Integer id;
@@ -53,6 +53,9 @@ public class Student implements DomainObject<Integer> {
     /** Student's course. */
     private Course course;
 
+    /** Version for optimistic locking. */
+    private int version;
+
     /**
      * Creates a new Student instance.
      *
@@ -86,6 +89,16 @@ public class Student implements DomainObject<Integer> {
         this.id = id;
     }
 
+    @Override
+    public int getVersion() {
+        return version;
+    }
+
+    @Override
+    public void setVersion(int version) {
+        this.version = version;
+    }
+
     /** Returns the student account */
     public Account getAccount() {
         return this.account;
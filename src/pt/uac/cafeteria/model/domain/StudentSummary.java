@@ -0,0 +1,74 @@
+
+/**
+ * Cafeteria management application
+ * Copyright (c) 2011, 2012 Helder Correia
+ * 
+ * This file is part of Cafeteria.
+ * 
+ * Cafeteria is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * Cafeteria is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Cafeteria.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package pt.uac.cafeteria.model.domain;
+
+/**
+ * Read-only summary of a student, for listing search results.
+ * <p>
+ * Holds just enough to show and pick a student from a list, without the
+ * cost of loading the address, course and account. Use the id to load
+ * the full <code>Student</code> when needed.
+ */
+public final class StudentSummary {
+
+    /** Student identification. */
+    private final Integer id;
+
+    /** Student's full name. */
+    private final String name;
+
+    /** Name of the student's course. */
+    private final String course;
+
+    /**
+     * Creates a new StudentSummary instance.
+     *
+     * @param id the student id.
+     * @param name the student's full name.
+     * @param course the name of the student's course.
+     */
+    public StudentSummary(Integer id, String name, String course) {
+        this.id = id;
+        this.name = name;
+        this.course = course;
+    }
+
+    /** Gets the student id. */
+    public Integer getId() {
+        return id;
+    }
+
+    /** Gets the student's full name. */
+    public String getName() {
+        return name;
+    }
+
+    /** Gets the name of the student's course. */
+    public String getCourse() {
+        return course;
+    }
+
+    @Override
+    public String toString() {
+        return id + "       " + name;
+    }
+}
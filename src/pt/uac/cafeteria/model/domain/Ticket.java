@@ -21,6 +21,8 @@
 
 package pt.uac.cafeteria.model.domain;
 
+import java.util.Date;
+
 /**
  * A type of transaction used when a student buys a meal ticket.
  */
@@ -43,6 +45,18 @@ public class Ticket extends Transaction {
         this.meal = meal;
     }
 
+    /**
+     * Recreates a Ticket bought at a given date.
+     *
+     * @param date the date the ticket was bought.
+     * @param meal the meal bought.
+     * @param price the total price of the meal.
+     */
+    public Ticket(Date date, Meal meal, double price) {
+        super(date, price);
+        this.meal = meal;
+    }
+
     /** Gets the meal bought. */
     public Meal getMeal() {
         return meal;
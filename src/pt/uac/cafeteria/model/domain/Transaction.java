@@ -48,7 +48,18 @@ public abstract class Transaction implements java.io.Serializable {
      * @param amount amount being transacted.
      */
     protected Transaction(double amount) {
-        this.date = new Date();
+        this(new Date(), amount);
+    }
+
+    /**
+     * Base constructor for a transaction made at a given date, e.g.,
+     * when loaded from file.
+     *
+     * @param date the date the transaction was made.
+     * @param amount amount being transacted.
+     */
+    protected Transaction(Date date, double amount) {
+        this.date = date;
         this.amount = Math.abs(amount);
     }
 
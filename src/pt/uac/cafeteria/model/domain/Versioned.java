@@ -0,0 +1,42 @@
+
+/**
+ * Cafeteria management application
+ * Copyright (c) 2011, 2012 Helder Correia
+ * 
+ * This file is part of Cafeteria.
+ * 
+ * Cafeteria is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * Cafeteria is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Cafeteria.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package pt.uac.cafeteria.model.domain;
+
+/**
+ * Domain object with a version number, for Optimistic Offline Lock.
+ * <p>
+ * <i>Optimistic Offline Lock</i> prevents conflicts between concurrent
+ * business transactions by detecting a conflict and rolling back the
+ * transaction.
+ * <p>
+ * The version is incremented by the data mapper every time the object is
+ * saved. A save is refused if the stored version is no longer the one the
+ * object was loaded with, meaning someone else saved it in the meantime.
+ */
+public interface Versioned {
+
+    /** Gets the version the object was loaded or last saved with. */
+    int getVersion();
+
+    /** Sets the version. Only meant to be used by data mappers. */
+    void setVersion(int version);
+}
@@ -0,0 +1,461 @@
+
+/**
+ * Cafeteria management application
+ * Copyright (c) 2011, 2012 Helder Correia
+ * 
+ * This file is part of Cafeteria.
+ * 
+ * Cafeteria is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * Cafeteria is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Cafeteria.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package pt.uac.cafeteria.model.persistence;
+
+import java.io.BufferedInputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.StreamCorruptedException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import pt.uac.cafeteria.model.domain.Account;
+import pt.uac.cafeteria.model.domain.Credit;
+import pt.uac.cafeteria.model.domain.Day;
+import pt.uac.cafeteria.model.domain.Meal;
+import pt.uac.cafeteria.model.domain.Ticket;
+import pt.uac.cafeteria.model.domain.Transaction;
+
+/**
+ * Binary format of the accounts, in the accounts file and the account log.
+ * <p>
+ * Fields are written with fixed-width primitives: dates as milliseconds
+ * since the epoch, and enums by their ordinal. Each meal is written only
+ * once, in a table before the accounts, and tickets refer to it by its
+ * index in the table, instead of each ticket having its own copy of the
+ * meal, its day and dishes. Loaded tickets for the same meal share it.
+ * <p>
+ * Data starts with a format version, so that the format can change and
+ * still read what was written before. Data written with Java
+ * serialization, by older versions of the application, is still read.
+ * <p>
+ * Accounts file: magic number, version, meal table, number of accounts,
+ * then the accounts. Log record of a new account: version, meal table,
+ * then the account. Log record of a changed account: version, meal table
+ * of the new tickets, the account state, and only the transactions added
+ * since it was last saved (see <code>Change</code>), so that the record
+ * doesn't grow with the account's history.
+ */
+final class AccountCodec {
+
+    /**
+     * A change to a stored account: its new state, and the transactions
+     * added to it.
+     */
+    static class Change {
+
+        /** Account id. */
+        final Integer id;
+
+        /** New version. */
+        final int version;
+
+        /** New pin code. */
+        final int pinCode;
+
+        /** New balance. */
+        final double balance;
+
+        /** New status. */
+        final Account.Status status;
+
+        /** New number of failed login attempts. */
+        final int failedLoginAttempts;
+
+        /** Number of transactions the account had before the change. */
+        final int from;
+
+        /** Transactions added. */
+        final List<Transaction> transactions;
+
+        Change(Integer id, int version, int pinCode, double balance, Account.Status status,
+                int failedLoginAttempts, int from, List<Transaction> transactions) {
+            this.id = id;
+            this.version = version;
+            this.pinCode = pinCode;
+            this.balance = balance;
+            this.status = status;
+            this.failedLoginAttempts = failedLoginAttempts;
+            this.from = from;
+            this.transactions = transactions;
+        }
+
+        /**
+         * Applies the change to the account as stored before it.
+         *
+         * @param account the account before the change.
+         * @return A new account, with the change applied.
+         * @throws IOException if the account doesn't have the transactions
+         *         the change was made over.
+         */
+        Account applyTo(Account account) throws IOException {
+            List<Transaction> all = account.getTransactions();
+            if (all.size() != from) {
+                throw new StreamCorruptedException("Account change out of order: " + id);
+            }
+            all = new ArrayList<Transaction>(all);
+            all.addAll(transactions);
+            return new Account(id, pinCode, balance, status, failedLoginAttempts, version, all);
+        }
+    }
+
+    /** Identifies an accounts file. */
+    private static final int MAGIC = 0x41434354;
+
+    /** Current format version. */
+    static final byte VERSION = 1;
+
+    /** First two bytes of data written with Java serialization. */
+    private static final int SERIALIZED = 0xACED;
+
+    /** Transaction type of a ticket. */
+    private static final byte TICKET = 1;
+
+    /** Transaction type of a credit. */
+    private static final byte CREDIT = 2;
+
+    /** Reference to no meal. */
+    private static final int NO_MEAL = -1;
+
+    /** No instances, only static methods. */
+    private AccountCodec() {
+    }
+
+    /**
+     * Writes an accounts file.
+     *
+     * @param accounts the accounts.
+     * @param out where to write.
+     * @throws IOException in case of I/O error.
+     */
+    static void writeAll(Collection<Account> accounts, DataOutput out) throws IOException {
+        out.writeInt(MAGIC);
+        out.writeByte(VERSION);
+        List<Transaction> transactions = new ArrayList<Transaction>();
+        for (Account account : accounts) {
+            transactions.addAll(account.getTransactions());
+        }
+        Map<List<Object>, Integer> meals = writeMeals(transactions, out);
+        out.writeInt(accounts.size());
+        for (Account account : accounts) {
+            writeState(account, out);
+            writeTransactions(account.getTransactions(), meals, out);
+        }
+    }
+
+    /**
+     * Reads an accounts file, in this format or written with Java
+     * serialization.
+     *
+     * @param stream the file contents.
+     * @return The accounts, by id. Empty if there's no data.
+     * @throws IOException in case of I/O error, or if the data isn't valid.
+     */
+    static Map<Integer, Account> readAll(InputStream stream) throws IOException {
+        BufferedInputStream buffered = new BufferedInputStream(stream);
+        buffered.mark(2);
+        int first = buffered.read();
+        int second = buffered.read();
+        buffered.reset();
+        if (first == -1) {
+            return new HashMap<Integer, Account>();
+        }
+        if ((first << 8 | second) == SERIALIZED) {
+            // older versions serialized the whole map of accounts by id
+            @SuppressWarnings("unchecked")
+            Map<Integer, Account> legacy = (Map<Integer, Account>) readSerialized(buffered);
+            return legacy;
+        }
+
+        DataInputStream in = new DataInputStream(buffered);
+        if (in.readInt() != MAGIC) {
+            throw new StreamCorruptedException("Not an accounts file.");
+        }
+        checkVersion(in.readByte());
+        Meal[] meals = readMeals(in);
+        int count = in.readInt();
+        Map<Integer, Account> accounts = new HashMap<Integer, Account>(count * 4 / 3 + 1);
+        for (int i = 0; i < count; i++) {
+            Account account = readAccount(in, meals);
+            accounts.put(account.getId(), account);
+        }
+        return accounts;
+    }
+
+    /**
+     * Writes an account on its own, for a log record.
+     *
+     * @param account the account.
+     * @param out where to write.
+     * @throws IOException in case of I/O error.
+     */
+    static void write(Account account, DataOutput out) throws IOException {
+        out.writeByte(VERSION);
+        Map<List<Object>, Integer> meals = writeMeals(account.getTransactions(), out);
+        writeState(account, out);
+        writeTransactions(account.getTransactions(), meals, out);
+    }
+
+    /**
+     * Writes a change to a stored account, for a log record: its state,
+     * and the transactions added after the ones already stored.
+     *
+     * @param account the changed account.
+     * @param from number of transactions already stored.
+     * @param out where to write.
+     * @throws IOException in case of I/O error.
+     */
+    static void writeChange(Account account, int from, DataOutput out) throws IOException {
+        List<Transaction> added = account.getTransactions();
+        added = added.subList(from, added.size());
+        out.writeByte(VERSION);
+        Map<List<Object>, Integer> meals = writeMeals(added, out);
+        writeState(account, out);
+        out.writeInt(from);
+        writeTransactions(added, meals, out);
+    }
+
+    /**
+     * Reads a change to a stored account, written by writeChange().
+     *
+     * @param stream the record data.
+     * @return The change.
+     * @throws IOException in case of I/O error, or if the data isn't valid.
+     */
+    static Change readChange(InputStream stream) throws IOException {
+        DataInputStream in = new DataInputStream(stream);
+        checkVersion(in.readByte());
+        Meal[] meals = readMeals(in);
+        Integer id = in.readInt();
+        int version = in.readInt();
+        int pinCode = in.readInt();
+        double balance = in.readDouble();
+        Account.Status status = readStatus(in);
+        int failedLoginAttempts = in.readByte();
+        int from = in.readInt();
+        return new Change(id, version, pinCode, balance, status, failedLoginAttempts, from,
+                readTransactions(in, meals));
+    }
+
+    /**
+     * Reads an account written on its own, in this format or with Java
+     * serialization.
+     *
+     * @param stream the record data.
+     * @return The account.
+     * @throws IOException in case of I/O error, or if the data isn't valid.
+     */
+    static Account read(InputStream stream) throws IOException {
+        BufferedInputStream buffered = new BufferedInputStream(stream);
+        buffered.mark(2);
+        int first = buffered.read();
+        int second = buffered.read();
+        buffered.reset();
+        if ((first << 8 | second) == SERIALIZED) {
+            return (Account) readSerialized(buffered);
+        }
+        DataInputStream in = new DataInputStream(buffered);
+        checkVersion(in.readByte());
+        return readAccount(in, readMeals(in));
+    }
+
+    /** Reads an object written with Java serialization. */
+    private static Object readSerialized(InputStream stream) throws IOException {
+        try {
+            return new ObjectInputStream(stream).readObject();
+        } catch (ClassNotFoundException e) {
+            throw new IOException("Unknown object in account data.", e);
+        }
+    }
+
+    /** Refuses data written in a newer format than this one. */
+    private static void checkVersion(byte version) throws IOException {
+        if (version < 1 || version > VERSION) {
+            throw new StreamCorruptedException("Unsupported account data version: " + version);
+        }
+    }
+
+    /**
+     * Writes the table of meals in some tickets.
+     *
+     * @return The index of each meal in the table, by its fields.
+     */
+    private static Map<List<Object>, Integer> writeMeals(Collection<Transaction> transactions,
+            DataOutput out) throws IOException {
+        Map<List<Object>, Integer> index = new HashMap<List<Object>, Integer>();
+        List<Meal> meals = new ArrayList<Meal>();
+        for (Transaction transaction : transactions) {
+            if (transaction instanceof Ticket) {
+                Meal meal = ((Ticket) transaction).getMeal();
+                if (meal != null && !index.containsKey(key(meal))) {
+                    index.put(key(meal), meals.size());
+                    meals.add(meal);
+                }
+            }
+        }
+        out.writeInt(meals.size());
+        for (Meal meal : meals) {
+            out.writeLong(meal.getDay() == null ? Long.MIN_VALUE : meal.getDay().getDate().getTime());
+            out.writeByte(meal.getTime() == null ? -1 : meal.getTime().ordinal());
+            out.writeByte(meal.getType() == null ? -1 : meal.getType().ordinal());
+            writeString(meal.getSoup(), out);
+            writeString(meal.getMainCourse(), out);
+            writeString(meal.getDessert(), out);
+        }
+        return index;
+    }
+
+    /** Reads a table of meals. */
+    private static Meal[] readMeals(DataInput in) throws IOException {
+        int count = in.readInt();
+        if (count < 0) {
+            throw new StreamCorruptedException("Invalid number of meals: " + count);
+        }
+        Meal[] meals = new Meal[count];
+        for (int i = 0; i < meals.length; i++) {
+            long day = in.readLong();
+            byte time = in.readByte();
+            byte type = in.readByte();
+            meals[i] = new Meal(
+                day == Long.MIN_VALUE ? null : new Day(new Date(day)),
+                time < 0 ? null : Meal.Time.values()[time],
+                type < 0 ? null : Meal.Type.values()[type],
+                readString(in),
+                readString(in),
+                readString(in)
+            );
+        }
+        return meals;
+    }
+
+    /** Identifies a meal by its fields, so copies of the same meal are written once. */
+    private static List<Object> key(Meal meal) {
+        return Arrays.<Object>asList(
+            meal.getDay() == null ? null : meal.getDay().getDate().getTime(),
+            meal.getTime(),
+            meal.getType(),
+            meal.getSoup(),
+            meal.getMainCourse(),
+            meal.getDessert()
+        );
+    }
+
+    /** Writes the state of an account, without its transactions. */
+    private static void writeState(Account account, DataOutput out) throws IOException {
+        out.writeInt(account.getId());
+        out.writeInt(account.getVersion());
+        out.writeInt(account.getPinCode());
+        out.writeDouble(account.getBalance());
+        out.writeByte(account.getStatus().ordinal());
+        out.writeByte(account.getFailedLoginAttempts());
+    }
+
+    /** Writes transactions, with tickets referring to the meal table. */
+    private static void writeTransactions(List<Transaction> transactions, Map<List<Object>, Integer> meals,
+            DataOutput out) throws IOException {
+        out.writeInt(transactions.size());
+        for (Transaction transaction : transactions) {
+            if (transaction instanceof Ticket) {
+                Meal meal = ((Ticket) transaction).getMeal();
+                out.writeByte(TICKET);
+                out.writeLong(transaction.getDate().getTime());
+                out.writeDouble(transaction.getAmount());
+                out.writeInt(meal == null ? NO_MEAL : meals.get(key(meal)));
+            } else if (transaction instanceof Credit) {
+                out.writeByte(CREDIT);
+                out.writeLong(transaction.getDate().getTime());
+                out.writeDouble(transaction.getAmount());
+                writeString(((Credit) transaction).getAdministrator(), out);
+            } else {
+                throw new IOException("Unknown transaction: " + transaction.getClass().getName());
+            }
+        }
+    }
+
+    /** Reads an account, with tickets referring to a meal table. */
+    private static Account readAccount(DataInput in, Meal[] meals) throws IOException {
+        int id = in.readInt();
+        int version = in.readInt();
+        int pinCode = in.readInt();
+        double balance = in.readDouble();
+        Account.Status status = readStatus(in);
+        int failedLoginAttempts = in.readByte();
+        return new Account(id, pinCode, balance, status, failedLoginAttempts, version,
+                readTransactions(in, meals));
+    }
+
+    /** Reads an account status, by its ordinal. */
+    private static Account.Status readStatus(DataInput in) throws IOException {
+        byte status = in.readByte();
+        if (status < 0 || status >= Account.Status.values().length) {
+            throw new StreamCorruptedException("Unknown account status: " + status);
+        }
+        return Account.Status.values()[status];
+    }
+
+    /** Reads transactions, with tickets referring to a meal table. */
+    private static List<Transaction> readTransactions(DataInput in, Meal[] meals) throws IOException {
+        int count = in.readInt();
+        if (count < 0) {
+            throw new StreamCorruptedException("Invalid number of transactions: " + count);
+        }
+        List<Transaction> transactions = new ArrayList<Transaction>(count);
+        for (int i = 0; i < count; i++) {
+            byte type = in.readByte();
+            Date date = new Date(in.readLong());
+            double amount = in.readDouble();
+            if (type == TICKET) {
+                int meal = in.readInt();
+                if (meal != NO_MEAL && (meal < 0 || meal >= meals.length)) {
+                    throw new StreamCorruptedException("Unknown meal: " + meal);
+                }
+                transactions.add(new Ticket(date, meal == NO_MEAL ? null : meals[meal], amount));
+            } else if (type == CREDIT) {
+                transactions.add(new Credit(date, readString(in), amount));
+            } else {
+                throw new StreamCorruptedException("Unknown transaction type: " + type);
+            }
+        }
+        return transactions;
+    }
+
+    /** Writes a string that may be null. */
+    private static void writeString(String s, DataOutput out) throws IOException {
+        out.writeBoolean(s != null);
+        if (s != null) {
+            out.writeUTF(s);
+        }
+    }
+
+    /** Reads a string that may be null. */
+    private static String readString(DataInput in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+}
@@ -0,0 +1,574 @@
+
+/**
+ * Cafeteria management application
+ * Copyright (c) 2011, 2012 Helder Correia
+ * 
+ * This file is part of Cafeteria.
+ * 
+ * Cafeteria is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * Cafeteria is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Cafeteria.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package pt.uac.cafeteria.model.persistence;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileLock;
+import java.util.Collection;
+import java.util.Map;
+import java.util.zip.CRC32;
+import pt.uac.cafeteria.model.domain.Account;
+
+/**
+ * Append-only log of account changes, kept next to the accounts file.
+ * <p>
+ * Instead of rewriting every account on each save, only the accounts
+ * that changed are appended, one record each. A new account is written
+ * whole; a change to a stored account only has its state and the
+ * transactions added, so a record's size doesn't depend on the account's
+ * history. The current state is the accounts file with the log replayed
+ * over it.
+ * <p>
+ * The log starts with a header holding an epoch, which changes whenever
+ * the log is emptied after its records are moved into the accounts file.
+ * Each record is framed by its length and a checksum, so a record left
+ * half written by a crash is detected, ignored, and overwritten by the
+ * next append.
+ * <p>
+ * Appending locks the file, so that terminals sharing it take turns, and
+ * first reads the records appended by others since the last read. Each
+ * append is forced to disk before the lock is released, so it's durable
+ * once append() returns.
+ * <p>
+ * Compacting moves the records into a new accounts file, mostly without
+ * holding the lock: the records up to a mark are read and written to the
+ * new file first, and only then is the lock taken again to add any
+ * records appended in the meantime, swap the files and empty the log.
+ * Methods that use the log state synchronize on the log, so that saving
+ * and compacting can run in different threads.
+ */
+class AccountLog {
+
+    /** Receives the records read from the log. */
+    interface Replay {
+
+        /**
+         * The log read is not the one last read (e.g., it was emptied
+         * elsewhere after its records were moved into the accounts file),
+         * so the accounts file should be read again. Records in the log
+         * follow.
+         *
+         * @throws IOException if unable to read the accounts file.
+         */
+        void reset() throws IOException;
+
+        /**
+         * An account was saved.
+         *
+         * @param account the account, as saved.
+         */
+        void put(Account account);
+
+        /**
+         * A stored account was changed.
+         *
+         * @param change the new state, and the transactions added.
+         * @throws IOException if the change can't be applied to the
+         *         account as stored.
+         */
+        void change(AccountCodec.Change change) throws IOException;
+
+        /**
+         * An account was deleted.
+         *
+         * @param id the account id.
+         */
+        void delete(Integer id);
+    }
+
+    /** Installs a new accounts file, when compacting. */
+    interface Install {
+
+        /**
+         * Replaces the accounts file with the new one. Called holding
+         * the lock, right before the log is emptied.
+         *
+         * @param appended were records appended since the mark, and
+         *        added to the accounts written?
+         * @throws IOException in case of file system error.
+         */
+        void install(boolean appended) throws IOException;
+    }
+
+    /** A point in the log: its epoch, and the end of the records up to there. */
+    static class Mark {
+
+        /** Epoch of the log. */
+        final long epoch;
+
+        /** Position right after the last record. */
+        final long end;
+
+        Mark(long epoch, long end) {
+            this.epoch = epoch;
+            this.end = end;
+        }
+    }
+
+    /** Identifies a log file. */
+    private static final int MAGIC = 0x41434C47;
+
+    /** Size, in bytes, of the header: magic number and epoch. */
+    private static final int HEADER_SIZE = 12;
+
+    /** Size, in bytes, of a record frame: length and checksum. */
+    private static final int FRAME_SIZE = 8;
+
+    /** Record type of a saved account. */
+    private static final byte PUT = 1;
+
+    /** Record type of a deleted account. */
+    private static final byte DELETE = 2;
+
+    /** Record type of a changed account. */
+    private static final byte CHANGE = 3;
+
+    /** The log file. */
+    private final File file;
+
+    /** Epoch of the log as of the last read, or 0 if never read. */
+    private long epoch = 0;
+
+    /** Position right after the last valid record read or written. */
+    private long position = HEADER_SIZE;
+
+    /** Number of records read or written in the current epoch. */
+    private int count = 0;
+
+    /**
+     * Creates a new AccountLog instance.
+     *
+     * @param file the log file, created when first appended to.
+     */
+    AccountLog(File file) {
+        this.file = file;
+    }
+
+    /** Gets the log file. */
+    File getFile() {
+        return file;
+    }
+
+    /** Gets the size, in bytes, of the log as of the last read or write. */
+    synchronized long size() {
+        return epoch == 0 ? 0 : position;
+    }
+
+    /** Gets the number of records in the log as of the last read or write. */
+    synchronized int count() {
+        return count;
+    }
+
+    /**
+     * Reads the whole log, from the start.
+     *
+     * @param replay receives the records.
+     * @throws IOException in case of file system error.
+     */
+    synchronized void replay(Replay replay) throws IOException {
+        epoch = 0;
+        position = HEADER_SIZE;
+        count = 0;
+        if (!file.exists()) {
+            return;
+        }
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            readNew(raf, replay);
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * Reads the whole log, holding the lock, without changing what this
+     * log has read so far. Meant to get the stored version of accounts
+     * changed here, without merging anything else.
+     *
+     * @param replay receives reset() first, while the lock keeps the
+     *        accounts file from being replaced, then the records.
+     * @throws IOException in case of file system error.
+     */
+    synchronized void readAll(Replay replay) throws IOException {
+        if (!file.exists()) {
+            replay.reset();
+            return;
+        }
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            FileLock lock = raf.getChannel().lock();
+            try {
+                replay.reset();
+                long length = raf.length();
+                if (length >= HEADER_SIZE) {
+                    readEpoch(raf);
+                    scan(raf, HEADER_SIZE, length, replay, false);
+                }
+            } finally {
+                lock.release();
+            }
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * Appends saved and deleted accounts, in one write.
+     * <p>
+     * Records appended elsewhere since the last read are read first, while
+     * holding the lock. If the replay throws, nothing is appended. The
+     * records are forced to disk before returning. With nothing to append,
+     * only the records appended elsewhere are read.
+     *
+     * @param saved accounts saved.
+     * @param stored number of transactions already stored, by account id,
+     *        for the saved accounts that are only changed; the others
+     *        are written whole.
+     * @param deleted ids of accounts deleted.
+     * @param replay receives the records appended elsewhere.
+     * @throws IOException in case of file system error.
+     */
+    synchronized void append(Collection<Account> saved, Map<Integer, Integer> stored,
+            Collection<Integer> deleted, Replay replay) throws IOException {
+        file.getParentFile().mkdirs();
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            FileLock lock = raf.getChannel().lock();
+            try {
+                if (raf.length() < HEADER_SIZE) {
+                    startEpoch(raf, System.currentTimeMillis());
+                } else {
+                    readNew(raf, replay);
+                }
+
+                ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                for (Account account : saved) {
+                    Integer from = stored.get(account.getId());
+                    if (from == null) {
+                        frame(bytes, record(PUT, account.getId(), encode(account)));
+                    } else {
+                        frame(bytes, record(CHANGE, account.getId(), encode(account, from)));
+                    }
+                }
+                for (Integer id : deleted) {
+                    frame(bytes, record(DELETE, id, new byte[0]));
+                }
+                if (bytes.size() == 0) {
+                    return;
+                }
+                // drops any record left half written
+                raf.setLength(position);
+                raf.seek(position);
+                raf.write(bytes.toByteArray());
+                raf.getChannel().force(false);
+                position += bytes.size();
+                count += saved.size() + deleted.size();
+            } finally {
+                lock.release();
+            }
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * Marks the end of the records in the log, to compact up to there.
+     * <p>
+     * Only done when this log is up to date with the epoch in the file;
+     * otherwise, compacting waits until the next append catches up.
+     *
+     * @return The mark, or null if there's nothing to compact.
+     * @throws IOException in case of file system error.
+     */
+    synchronized Mark mark() throws IOException {
+        if (epoch == 0 || !file.exists()) {
+            return null;
+        }
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            FileLock lock = raf.getChannel().lock();
+            try {
+                long length = raf.length();
+                if (length < HEADER_SIZE || readEpoch(raf) != epoch || length < position) {
+                    return null;
+                }
+                // records before the position were already checked
+                long end = scan(raf, position, length, null, false);
+                return end > HEADER_SIZE ? new Mark(epoch, end) : null;
+            } finally {
+                lock.release();
+            }
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * Reads the records up to a mark, without locking. They can't change
+     * until the log is emptied, which changes the epoch.
+     *
+     * @param mark the mark.
+     * @param replay receives the records.
+     * @return true if read; false if the log was emptied since the mark.
+     * @throws IOException in case of file system error.
+     */
+    boolean readTo(Mark mark, Replay replay) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            if (raf.length() < mark.end || readEpoch(raf) != mark.epoch) {
+                return false;
+            }
+            if (scan(raf, HEADER_SIZE, mark.end, replay, false) != mark.end) {
+                throw new IOException("Account log changed while compacting: " + file);
+            }
+            return true;
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * Empties the log, after its records up to a mark were written to a
+     * new accounts file.
+     * <p>
+     * Holding the lock, records appended after the mark are passed on, so
+     * they can be added to the new file, which is then installed. The log
+     * is then emptied, starting a new epoch. If the accounts file was
+     * installed but the log not emptied, due to a crash, replaying the
+     * log again over it still gets the same accounts.
+     *
+     * @param mark the mark.
+     * @param appended receives the records appended after the mark.
+     * @param install installs the new accounts file.
+     * @return true if done; false if the log was emptied since the mark.
+     * @throws IOException in case of file system error.
+     */
+    synchronized boolean truncate(Mark mark, Replay appended, Install install) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            FileLock lock = raf.getChannel().lock();
+            try {
+                long length = raf.length();
+                if (length < mark.end || readEpoch(raf) != mark.epoch) {
+                    return false;
+                }
+                long end = scan(raf, mark.end, length, appended, false);
+                install.install(end > mark.end);
+
+                // up to date only if this log had read all the records
+                boolean current = epoch == mark.epoch && position == end;
+                raf.setLength(0);
+                startEpoch(raf, Math.max(mark.epoch + 1, System.currentTimeMillis()));
+                if (!current) {
+                    epoch = 0;
+                }
+                return true;
+            } finally {
+                lock.release();
+            }
+        } finally {
+            raf.close();
+        }
+    }
+
+    /** Writes a new header, with an empty log. */
+    private void startEpoch(RandomAccessFile raf, long newEpoch) throws IOException {
+        raf.seek(0);
+        raf.writeInt(MAGIC);
+        raf.writeLong(newEpoch);
+        epoch = newEpoch;
+        position = HEADER_SIZE;
+        count = 0;
+    }
+
+    /**
+     * Reads the records after the last one read, or all of them if the
+     * log was emptied since. Stops at the end, or at a record left half
+     * written.
+     */
+    private void readNew(RandomAccessFile raf, Replay replay) throws IOException {
+        long length = raf.length();
+        if (length < HEADER_SIZE) {
+            return;
+        }
+        long current = readEpoch(raf);
+        if (current != epoch || length < position) {
+            replay.reset();
+            epoch = current;
+            position = HEADER_SIZE;
+            count = 0;
+        }
+        position = scan(raf, position, length, replay, true);
+    }
+
+    /** Reads the epoch from the header. */
+    private long readEpoch(RandomAccessFile raf) throws IOException {
+        raf.seek(0);
+        if (raf.readInt() != MAGIC) {
+            throw new IOException("Not an account log: " + file);
+        }
+        return raf.readLong();
+    }
+
+    /**
+     * Reads the records between two positions, stopping early at a record
+     * left half written.
+     *
+     * @param raf the log file.
+     * @param from position of the first record.
+     * @param to position to stop at.
+     * @param replay receives the records, or null to only check them.
+     * @param counted add the records read to the count?
+     * @return The position right after the last valid record.
+     */
+    private long scan(RandomAccessFile raf, long from, long to, Replay replay, boolean counted)
+            throws IOException {
+        CRC32 crc = new CRC32();
+        long at = from;
+        while (at + FRAME_SIZE <= to) {
+            raf.seek(at);
+            int size = raf.readInt();
+            long checksum = raf.readInt() & 0xFFFFFFFFL;
+            if (size < 5 || at + FRAME_SIZE + size > to) {
+                break;
+            }
+            byte[] record = new byte[size];
+            raf.readFully(record);
+            crc.reset();
+            crc.update(record);
+            if (crc.getValue() != checksum) {
+                break;
+            }
+            if (replay != null) {
+                apply(record, replay);
+            }
+            if (counted) {
+                count++;
+            }
+            at += FRAME_SIZE + size;
+        }
+        return at;
+    }
+
+    /** Passes a record on to the replay. */
+    private static void apply(byte[] record, Replay replay) throws IOException {
+        Integer id = ((record[1] & 0xFF) << 24) | ((record[2] & 0xFF) << 16)
+                | ((record[3] & 0xFF) << 8) | (record[4] & 0xFF);
+        if (record[0] == PUT) {
+            replay.put(decode(record, 5));
+        } else if (record[0] == CHANGE) {
+            replay.change(AccountCodec.readChange(
+                    new ByteArrayInputStream(record, 5, record.length - 5)));
+        } else if (record[0] == DELETE) {
+            replay.delete(id);
+        }
+    }
+
+    /** Builds a record: type, account id and data. */
+    private static byte[] record(byte type, int id, byte[] data) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(5 + data.length);
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeByte(type);
+        out.writeInt(id);
+        out.write(data);
+        return bytes.toByteArray();
+    }
+
+    /** Writes a record framed by its length and checksum. */
+    private static void frame(ByteArrayOutputStream bytes, byte[] record) throws IOException {
+        CRC32 crc = new CRC32();
+        crc.update(record);
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(record.length);
+        out.writeInt((int) crc.getValue());
+        out.write(record);
+    }
+
+    /** Encodes an account for a record (see <code>AccountCodec</code>). */
+    private static byte[] encode(Account account) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        AccountCodec.write(account, new DataOutputStream(bytes));
+        return bytes.toByteArray();
+    }
+
+    /** Encodes a change to a stored account for a record. */
+    private static byte[] encode(Account account, int from) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        AccountCodec.writeChange(account, from, new DataOutputStream(bytes));
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Decodes an account from a record, starting at an offset. Records
+     * written with Java serialization are still read.
+     */
+    private static Account decode(byte[] record, int offset) throws IOException {
+        return AccountCodec.read(new ByteArrayInputStream(record, offset, record.length - offset));
+    }
+
+    /**
+     * Replays a record over a map of accounts, unless the map already has
+     * a newer version of the account.
+     * <p>
+     * Changes to accounts not in the map are skipped. They can only be
+     * replayed over an accounts file that was compacted with the log, but
+     * installed without emptying the log, and then the account was
+     * deleted by a later record.
+     *
+     * @param accounts accounts by id.
+     * @return A replay that updates the map.
+     */
+    static Replay into(final Map<Integer, Account> accounts) {
+        return new Replay() {
+            @Override
+            public void reset() {
+                // the accounts file was just read
+            }
+
+            @Override
+            public void put(Account account) {
+                Account current = accounts.get(account.getId());
+                if (current == null || current.getVersion() <= account.getVersion()) {
+                    accounts.put(account.getId(), account);
+                }
+            }
+
+            @Override
+            public void change(AccountCodec.Change change) throws IOException {
+                Account current = accounts.get(change.id);
+                if (current != null && current.getVersion() < change.version) {
+                    accounts.put(change.id, change.applyTo(current));
+                }
+            }
+
+            @Override
+            public void delete(Integer id) {
+                accounts.remove(id);
+            }
+        };
+    }
+}
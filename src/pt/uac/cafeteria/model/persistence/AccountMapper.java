@@ -21,38 +21,164 @@
 
 package pt.uac.cafeteria.model.persistence;
 
-import java.io.EOFException;
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
+import java.io.Flushable;
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
+import java.io.InputStream;
+import java.io.StreamCorruptedException;
+import java.nio.channels.FileLock;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 import pt.uac.cafeteria.model.ApplicationException;
+import pt.uac.cafeteria.model.ConcurrencyException;
+import pt.uac.cafeteria.model.Config;
 import pt.uac.cafeteria.model.domain.Account;
+import pt.uac.cafeteria.model.persistence.abstracts.AsyncMapper;
 import pt.uac.cafeteria.model.persistence.abstracts.DataMapper;
 import pt.uac.cafeteria.model.persistence.abstracts.FileAccess;
+import pt.uac.cafeteria.model.persistence.abstracts.UnitOfWork;
 
 /**
  * Data Mapper for Account domain objects.
+ * <p>
+ * The state of each account is recorded when the file is loaded or saved,
+ * so that only accounts that changed are saved. Saving appends them to a
+ * log next to the accounts file (see <code>AccountLog</code>), instead of
+ * rewriting every account, and loading replays the log over the file.
+ * With auto saving on, changes made during a unit of work are saved once,
+ * when it commits.
+ * <p>
+ * The pin code, balance, status and login attempts of each account, and
+ * its version, are also kept in a table of fixed-width records mapped into
+ * memory (see <code>AccountTable</code>), which always has the latest
+ * state. An account changed without new transactions (e.g., a new pin
+ * code, or blocked after failed logins) is saved by writing its record in
+ * place, without appending to the log. Loading takes the state in the
+ * table over the one in the file and log, when newer. Like the log, the
+ * table is part of the stored accounts, and must be kept with the file.
+ * <p>
+ * Accounts are versioned, since a kiosk and a backend may share the same
+ * files. Before saving, the records appended elsewhere are read and
+ * merged, and the table checked: accounts saved elsewhere in the meantime
+ * are picked up, and changing one of them here too is refused with a
+ * <code>ConcurrencyException</code>. The changes made here to such an
+ * account are then discarded, and the stored version takes its place in
+ * the loaded map, so that saving the other accounts isn't blocked.
+ * <p>
+ * To keep the log, and the time to replay it, from growing forever, it's
+ * compacted in the background when it gets too big, or when the mapper is
+ * idle, as set in Config: its records are moved into a new accounts file,
+ * which replaces the old one, and the log is emptied. Saving carries on
+ * while the new file is written. Compaction, like group commit below, is
+ * only started on startBackgroundWork(), by the application at startup.
+ * <p>
+ * Each save is forced to disk, which is slow compared to the write
+ * itself. When many accounts change at nearly the same time (e.g., kiosks
+ * at lunch time), updateLater() saves them with group commit instead: it
+ * returns right away, and a background thread saves all the accounts
+ * changed in the last few milliseconds with one write and one sync, after
+ * which each caller's <code>Future</code> is done.
+ * <p>
+ * All operations synchronize on the mapper, so it can be shared by threads.
  */
-public class AccountMapper extends FileAccess implements DataMapper<Account, Integer> {
+public class AccountMapper extends FileAccess implements DataMapper<Account, Integer>, Flushable {
 
     /** Map with already loaded instances of the domain object. */
     private Map<Integer, Account> loadedMap;
 
+    /** State of each account as of the last load or save. */
+    private final Map<Integer, Object[]> savedState = new HashMap<Integer, Object[]>();
+
     /** Automatically save to file on each insert, update or delete? */
-    private boolean autoSave = false;
+    private volatile boolean autoSave = false;
+
+    /** Log of the changes not yet in the accounts file. */
+    private final AccountLog log;
+
+    /** Latest state of each account, apart from the transactions. */
+    private final AccountTable table;
+
+    /** Number of changes to the table as of the last load or save. */
+    private int tableStamp;
+
+    /** Time, in milliseconds, of the last save. */
+    private volatile long lastSave = System.currentTimeMillis();
+
+    /** Checks periodically if the log should be compacted, if set in Config. */
+    private ScheduledExecutorService compactor;
+
+    /** Tells the flusher to save what's pending and stop. */
+    private static final PendingSave STOP = new PendingSave(null, null);
+
+    /** Saves waiting for the flusher. */
+    private final BlockingQueue<PendingSave> commits = new LinkedBlockingQueue<PendingSave>();
+
+    /** Saves pending accounts in groups, if set in Config. */
+    private Thread flusher;
 
     /**
      * Creates a new instance of the mapper.
      *
      * @param filePath the path to the file used to persist Account objects.
+     *        The log and table are kept next to it, with <code>.log</code>
+     *        and <code>.tbl</code> extensions.
      */
     public AccountMapper(String filePath) {
         super(filePath);
+        String base = filePath.replaceFirst("\\.dat$", "");
+        log = new AccountLog(new File(base + ".log"));
+        table = new AccountTable(new File(base + ".tbl"));
+    }
+
+    /**
+     * Starts compacting the log and saving accounts in groups, in
+     * background threads, as set in Config. Not done by the constructor,
+     * so that a mapper used briefly (e.g., by a tool or a test) doesn't
+     * leave threads running. Nothing happens for what's already started.
+     */
+    public void startBackgroundWork() {
+        Config config = Config.getInstance();
+        synchronized (this) {
+            int interval = config.getInt(Config.ACCOUNT_COMPACT_INTERVAL, 60);
+            if (interval > 0 && compactor == null) {
+                startCompaction(interval,
+                    config.getInt(Config.ACCOUNT_COMPACT_LOG_SIZE, 4096) * 1024L,
+                    config.getInt(Config.ACCOUNT_COMPACT_RECORDS, 10000),
+                    config.getInt(Config.ACCOUNT_COMPACT_IDLE, 300) * 1000L
+                );
+            }
+        }
+        synchronized (commits) {
+            int delay = config.getInt(Config.ACCOUNT_COMMIT_DELAY, 5);
+            if (delay > 0 && flusher == null) {
+                startGroupCommit(delay, Math.max(1, config.getInt(Config.ACCOUNT_COMMIT_BATCH, 50)));
+            }
+        }
     }
 
     /**
@@ -69,7 +195,7 @@ public class AccountMapper extends FileAccess implements DataMapper<Account, Int
      *
      * @return The loaded map of Account instances.
      */
-    private Map<Integer, Account> getLoaded() {
+    private synchronized Map<Integer, Account> getLoaded() {
         if (loadedMap == null) {
             loadedMap = new HashMap<Integer, Account>();
             loadAll();
@@ -83,49 +209,751 @@ public class AccountMapper extends FileAccess implements DataMapper<Account, Int
      * @throws ApplicationException if data file is corrupted, or problem with
      * file system operations.
      */
-    public void loadAll() {
+    public synchronized void loadAll() {
+        loadedMap = readFile();
+        markSaved();
+    }
+
+    /**
+     * Reads all accounts stored, in the file and the log, with the state
+     * in the table when newer.
+     * <p>
+     * The table is brought up to date with the accounts read, in case it
+     * was missing or behind.
+     *
+     * @return A map with the stored accounts, by id.
+     * @throws ApplicationException if data file is corrupted, or problem with
+     * file system operations.
+     */
+    private Map<Integer, Account> readFile() {
         try {
-            ObjectInputStream in = new ObjectInputStream(new FileInputStream(useFile()));
-            loadedMap = (Map<Integer, Account>) in.readObject();
-            in.close();
-
-        } catch (ClassNotFoundException e) {
-            throw new ApplicationException("Objecto desconhecido ao carregar contas.", e);
-        } catch (EOFException e) {
-            // do nothing (means the file is empty, so there's nothing to load)
+            FileLock lock = table.lock();
+            try {
+                Map<Integer, Account> stored = readSnapshot();
+                log.replay(AccountLog.into(stored));
+
+                for (Map.Entry<Integer, Account> entry : stored.entrySet()) {
+                    Account account = entry.getValue();
+                    Account restored = table.restore(account);
+                    if (restored != account) {
+                        entry.setValue(restored);
+                    } else if (table.version(account.getId()) < account.getVersion()) {
+                        table.put(account);
+                    }
+                }
+                for (Integer id : table.ids()) {
+                    if (!stored.containsKey(id)) {
+                        table.remove(id);
+                    }
+                }
+                table.force();
+                tableStamp = table.stamp();
+                return stored;
+            } finally {
+                lock.release();
+            }
         } catch (IOException e) {
             throw new ApplicationException("Problema ao recuperar dados das contas.", e);
         }
     }
 
     /**
-     * Saves all accounts in loaded map to file.
+     * Reads the accounts stored in the file, without the log.
+     * <p>
+     * A file written with Java serialization, by older versions, is still
+     * read. It's written in the current format (see <code>AccountCodec</code>)
+     * the next time the log is compacted.
      *
+     * @return A map with the accounts in the file, by id.
+     * @throws ApplicationException if data file is corrupted, or problem with
+     * file system operations.
+     */
+    private Map<Integer, Account> readSnapshot() {
+        try {
+            InputStream in = new FileInputStream(useFile());
+            try {
+                return AccountCodec.readAll(in);
+            } finally {
+                in.close();
+            }
+        } catch (StreamCorruptedException e) {
+            throw new ApplicationException("Ficheiro de contas corrompido.", e);
+        } catch (IOException e) {
+            throw new ApplicationException("Problema ao recuperar dados das contas.", e);
+        }
+    }
+
+    /**
+     * Writes all accounts to a new file, in the format of the accounts
+     * file, and syncs it to disk.
+     *
+     * @param accounts the accounts, by id.
+     * @param target the new file.
+     * @throws IOException in case of file system error.
+     */
+    private static void writeSnapshot(Map<Integer, Account> accounts, File target) throws IOException {
+        FileOutputStream stream = new FileOutputStream(target);
+        try {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(stream));
+            AccountCodec.writeAll(accounts.values(), out);
+            out.flush();
+            stream.getFD().sync();
+        } finally {
+            stream.close();
+        }
+    }
+
+    /**
+     * Renames a file over another, so the target is always complete.
+     *
+     * @param source the file to rename.
+     * @param target the file to replace.
+     * @throws IOException if unable to rename.
+     */
+    private static void replace(File source, File target) throws IOException {
+        // renaming over an existing file fails on some systems
+        if (!source.renameTo(target) && !(target.delete() && source.renameTo(target))) {
+            throw new IOException("Unable to replace " + target);
+        }
+    }
+
+    /**
+     * Moves the records in the log into a new accounts file, and empties
+     * the log.
+     * <p>
+     * Only the accounts as stored are written, not changes not yet saved.
+     * The new file is written without holding up saving, so it may need to
+     * be written again, at the end, if accounts are saved in the meantime
+     * by another terminal.
+     *
+     * @return true if compacted; false if there was nothing to compact, or
+     *         it has to wait until this mapper next saves.
      * @throws ApplicationException if there's a problem with file system operations.
      */
-    public void save() {
+    public boolean compact() {
         try {
-            ObjectOutputStream out = new ObjectOutputStream(new FileOutputStream(useFile()));
-            out.writeObject(getLoaded());
-            out.close();
+            AccountLog.Mark mark = log.mark();
+            if (mark == null) {
+                return false;
+            }
+            final Map<Integer, Account> stored = readSnapshot();
+            if (!log.readTo(mark, AccountLog.into(stored))) {
+                return false;
+            }
+            final File tmp = new File(file.getPath() + ".new");
+            writeSnapshot(stored, tmp);
 
+            return log.truncate(mark, AccountLog.into(stored), new AccountLog.Install() {
+                @Override
+                public void install(boolean appended) throws IOException {
+                    if (appended) {
+                        writeSnapshot(stored, tmp);
+                    }
+                    replace(tmp, file);
+                }
+            });
         } catch (IOException e) {
+            throw new ApplicationException("Problema ao compactar dados das contas.", e);
+        }
+    }
+
+    /**
+     * Starts checking periodically, in a background thread, if the log
+     * should be compacted.
+     *
+     * @param interval time, in seconds, between checks.
+     * @param maxSize log size, in bytes, above which it's compacted.
+     * @param maxRecords number of records above which the log is compacted.
+     * @param idle time, in milliseconds, without saving after which the
+     *        log is compacted, if not empty.
+     */
+    private void startCompaction(int interval, final long maxSize, final int maxRecords, final long idle) {
+        compactor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "account-compactor");
+                thread.setDaemon(true);
+                thread.setPriority(Thread.MIN_PRIORITY);
+                return thread;
+            }
+        });
+        compactor.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                boolean due = log.size() > maxSize || log.count() > maxRecords
+                        || (log.count() > 0 && System.currentTimeMillis() - lastSave > idle);
+                if (!due) {
+                    return;
+                }
+                try {
+                    compact();
+                } catch (ApplicationException e) {
+                    // try again next time
+                    Logger.getLogger(AccountMapper.class.getName()).log(Level.WARNING, null, e);
+                }
+            }
+        }, interval, interval, TimeUnit.SECONDS);
+    }
+
+    /** Stops compacting the log in the background, if it was. */
+    public synchronized void stopCompaction() {
+        if (compactor != null) {
+            compactor.shutdownNow();
+            compactor = null;
+        }
+    }
+
+    /**
+     * Starts saving accounts in groups, in a background thread.
+     * <p>
+     * The thread waits for a save, then up to <code>delay</code>
+     * milliseconds more for others, or until <code>batch</code> of them
+     * are waiting, and saves all changed accounts at once.
+     *
+     * @param delay time, in milliseconds, to wait for more saves.
+     * @param batch maximum number of saves done at once.
+     */
+    private void startGroupCommit(int delay, final int batch) {
+        final long wait = TimeUnit.MILLISECONDS.toNanos(delay);
+        flusher = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    PendingSave next = null;
+                    while (next != STOP) {
+                        List<PendingSave> group = new ArrayList<PendingSave>();
+                        next = commits.take();
+                        long deadline = System.nanoTime() + wait;
+                        while (next != null && next != STOP) {
+                            group.add(next);
+                            if (group.size() >= batch) {
+                                break;
+                            }
+                            next = commits.poll(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+                        }
+                        commit(group);
+                    }
+                } catch (InterruptedException e) {
+                    // stopped abruptly; pending saves are done on stopGroupCommit()
+                }
+            }
+        }, "account-flusher");
+        flusher.setDaemon(true);
+        flusher.start();
+    }
+
+    /**
+     * Stops saving accounts in groups, if it was. Saves already pending
+     * are done first, and later ones are done right away.
+     */
+    public void stopGroupCommit() {
+        Thread thread;
+        synchronized (commits) {
+            thread = flusher;
+            flusher = null;
+        }
+        if (thread == null) {
+            return;
+        }
+        commits.add(STOP);
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        List<PendingSave> group = new ArrayList<PendingSave>();
+        commits.drainTo(group);
+        group.remove(STOP);
+        commit(group);
+    }
+
+    /**
+     * Saves the accounts of the pending saves, and completes them with
+     * the outcome. Other changed accounts are left for their own saves.
+     * <p>
+     * An account in conflict fails only its own saves, and the others
+     * are saved without it. Accounts that fail to save have their changes
+     * discarded, and are replaced by the stored version.
+     *
+     * @param group the pending saves.
+     */
+    private void commit(List<PendingSave> group) {
+        if (group.isEmpty()) {
+            return;
+        }
+        Set<Integer> ids = new HashSet<Integer>();
+        for (PendingSave pending : group) {
+            ids.add(pending.account.getId());
+        }
+        List<PendingSave> failed = new ArrayList<PendingSave>();
+        RuntimeException error = null;
+        synchronized (this) {
+            for (int attempt = 0; attempt < group.size(); attempt++) {
+                try {
+                    save(ids);
+                    error = null;
+                    break;
+                } catch (ConcurrencyException e) {
+                    // the accounts in conflict were replaced by the stored
+                    // ones, so try again with the others
+                    error = e;
+                } catch (RuntimeException e) {
+                    error = e;
+                    break;
+                }
+            }
+            for (PendingSave pending : group) {
+                Account account = pending.account;
+                if (error != null || find(account.getId()) != account) {
+                    failed.add(pending);
+                    rollback(account);
+                }
+            }
+        }
+
+        for (PendingSave pending : group) {
+            if (!failed.contains(pending)) {
+                pending.succeed();
+            } else if (error != null) {
+                pending.fail(error);
+            } else {
+                pending.fail(new ConcurrencyException(pending.account));
+            }
+        }
+    }
+
+    /**
+     * Discards the changes made here to an account that failed to save,
+     * so they aren't saved later along with some other account, e.g.,
+     * a purchase the user was told failed.
+     *
+     * @param account the account.
+     */
+    private void rollback(Account account) {
+        try {
+            refresh(account.getId());
+        } catch (ApplicationException e) {
+            // stays changed until it can be read again
+            Logger.getLogger(AccountMapper.class.getName()).log(Level.WARNING, null, e);
+        }
+    }
+
+    /**
+     * Updates an account with group commit: it's saved in the background,
+     * together with other accounts changed at about the same time.
+     * <p>
+     * If group commit is off, the account is saved right away. Either
+     * way, the account is saved even if auto saving is off.
+     *
+     * @param account the changed account.
+     * @param callback called when saved, or if it fails, or null.
+     * @return The pending result: true once the account is saved to
+     *         disk. Fails with a <code>ConcurrencyException</code> if the
+     *         account was also saved elsewhere since it was loaded. If it
+     *         fails, the changes to the account are discarded, and the
+     *         stored version replaces it (get it again with find()).
+     */
+    public Future<Boolean> updateLater(Account account, AsyncMapper.Callback<Boolean> callback) {
+        PendingSave pending = new PendingSave(account, callback);
+        synchronized (this) {
+            if (!isDirty(account)) {
+                pending.succeed();
+                return pending;
+            }
+            getLoaded().put(account.getId(), account);
+        }
+        synchronized (commits) {
+            if (flusher != null) {
+                commits.add(pending);
+                return pending;
+            }
+        }
+        commit(Collections.singletonList(pending));
+        return pending;
+    }
+
+    /**
+     * Saves the accounts changed or deleted since the last load or save.
+     * <p>
+     * Accounts with new transactions, new accounts and deleted ones are
+     * appended to the log. Accounts changed otherwise only have their
+     * record in the table written, in place. Accounts changed here get a
+     * new version. Accounts saved elsewhere since they were loaded, and
+     * unchanged here, are picked up from the log and the table, and
+     * replace the ones in the loaded map.
+     *
+     * @throws ConcurrencyException if an account changed here was also
+     *         saved elsewhere since it was loaded. Nothing is saved, and
+     *         such accounts are replaced by their stored version in the
+     *         loaded map (see refresh()).
+     * @throws ApplicationException if there's a problem with file system operations.
+     */
+    public synchronized void save() {
+        save(null);
+    }
+
+    /**
+     * Saves some of the accounts changed or deleted since the last load
+     * or save, as in save().
+     *
+     * @param ids ids of the accounts to save, or null for all.
+     * @throws ConcurrencyException if one of the accounts changed here was
+     *         also saved elsewhere since it was loaded.
+     * @throws ApplicationException if there's a problem with file system operations.
+     */
+    private synchronized void save(Set<Integer> ids) {
+        final Map<Integer, Account> loaded = getLoaded();
+
+        final Set<Account> changed = Collections.newSetFromMap(new IdentityHashMap<Account, Boolean>());
+        for (Account account : loaded.values()) {
+            if ((ids == null || ids.contains(account.getId())) && isDirty(account)) {
+                changed.add(account);
+            }
+        }
+        final List<Integer> deleted = new ArrayList<Integer>();
+        for (Integer id : savedState.keySet()) {
+            if ((ids == null || ids.contains(id)) && !loaded.containsKey(id)) {
+                deleted.add(id);
+            }
+        }
+        if (changed.isEmpty() && deleted.isEmpty()) {
+            return;
+        }
+
+        // only the table needs accounts without new transactions, and the
+        // log only the new transactions of stored accounts
+        final List<Account> logged = new ArrayList<Account>();
+        final Map<Integer, Integer> stored = new HashMap<Integer, Integer>();
+        for (Account account : changed) {
+            Object[] saved = savedState.get(account.getId());
+            if (saved == null) {
+                logged.add(account);
+            } else if (!saved[4].equals(account.getTransactions().size())) {
+                logged.add(account);
+                stored.put(account.getId(), (Integer) saved[4]);
+            }
+        }
+
+        for (Account account : changed) {
+            account.setVersion(account.getVersion() + 1);
+        }
+        try {
+            FileLock lock = table.lock();
+            try {
+                boolean elsewhere = table.stamp() != tableStamp;
+                for (Account account : changed) {
+                    if (table.version(account.getId()) >= account.getVersion()) {
+                        throw new ConcurrencyException(account);
+                    }
+                }
+                appendLog(loaded, changed, logged, stored, deleted);
+
+                for (Account account : changed) {
+                    table.put(account);
+                }
+                for (Integer id : deleted) {
+                    table.remove(id);
+                }
+                table.force();
+                if (elsewhere) {
+                    for (Account ours : new ArrayList<Account>(loaded.values())) {
+                        Account theirs = changed.contains(ours) ? ours : table.restore(ours);
+                        if (theirs != ours) {
+                            loaded.put(theirs.getId(), theirs);
+                            savedState.put(theirs.getId(), snapshot(theirs));
+                        }
+                    }
+                }
+                tableStamp = table.stamp();
+            } finally {
+                lock.release();
+            }
+        } catch (IOException e) {
+            for (Account account : changed) {
+                account.setVersion(account.getVersion() - 1);
+            }
             throw new ApplicationException("Problema ao guardar dados das contas.", e);
+        } catch (ConcurrencyException e) {
+            for (Account account : changed) {
+                account.setVersion(account.getVersion() - 1);
+            }
+            discardStale(changed);
+            throw e;
+        } catch (RuntimeException e) {
+            for (Account account : changed) {
+                account.setVersion(account.getVersion() - 1);
+            }
+            throw e;
+        }
+
+        for (Account account : changed) {
+            savedState.put(account.getId(), snapshot(account));
+        }
+        for (Integer id : deleted) {
+            savedState.remove(id);
+        }
+        lastSave = System.currentTimeMillis();
+    }
+
+    /**
+     * Appends accounts to the log, after merging the records appended
+     * elsewhere since the last read. Called holding the table lock.
+     *
+     * @param loaded the loaded map.
+     * @param changed all accounts changed here, with their new version.
+     * @param logged the changed accounts to append.
+     * @param stored number of transactions already stored, by id, of the
+     *        logged accounts that are only changed.
+     * @param deleted ids of the accounts deleted here.
+     * @throws ConcurrencyException if an account changed here was also
+     *         saved elsewhere.
+     * @throws IOException in case of file system error.
+     */
+    private void appendLog(final Map<Integer, Account> loaded, final Set<Account> changed,
+            List<Account> logged, Map<Integer, Integer> stored, final List<Integer> deleted)
+            throws IOException {
+        log.append(logged, stored, deleted, new AccountLog.Replay() {
+            @Override
+            public void reset() {
+                for (Account theirs : readSnapshot().values()) {
+                    put(theirs);
+                }
+            }
+
+            @Override
+            public void put(Account theirs) {
+                Account ours = loaded.get(theirs.getId());
+                if (ours != null && changed.contains(ours)) {
+                    // ours was already given its next version
+                    if (theirs.getVersion() >= ours.getVersion()) {
+                        throw new ConcurrencyException(ours);
+                    }
+                } else if (ours == null ? !deleted.contains(theirs.getId())
+                        : theirs.getVersion() > ours.getVersion()) {
+                    loaded.put(theirs.getId(), theirs);
+                    savedState.put(theirs.getId(), snapshot(theirs));
+                }
+            }
+
+            @Override
+            public void change(AccountCodec.Change theirs) throws IOException {
+                Account ours = loaded.get(theirs.id);
+                if (ours != null && changed.contains(ours)) {
+                    if (theirs.version >= ours.getVersion()) {
+                        throw new ConcurrencyException(ours);
+                    }
+                } else if (ours != null && theirs.version > ours.getVersion()) {
+                    Account merged = theirs.applyTo(ours);
+                    loaded.put(merged.getId(), merged);
+                    savedState.put(merged.getId(), snapshot(merged));
+                }
+            }
+
+            @Override
+            public void delete(Integer id) {
+                Account ours = loaded.get(id);
+                if (ours != null && !changed.contains(ours)) {
+                    loaded.remove(id);
+                    savedState.remove(id);
+                }
+            }
+        });
+    }
+
+    /**
+     * Discards the changes made here to an account, and replaces it in
+     * the loaded map with the version stored, e.g., after it was changed
+     * in another terminal. Objects holding the account (like a student)
+     * should be given the one returned.
+     *
+     * @param id the account id.
+     * @return The stored account, or null if it isn't stored.
+     * @throws ApplicationException if there's a problem with file system operations.
+     */
+    public synchronized Account refresh(Integer id) {
+        Map<Integer, Account> loaded = getLoaded();
+        try {
+            Account theirs = readStored().get(id);
+            if (theirs == null) {
+                loaded.remove(id);
+                savedState.remove(id);
+            } else {
+                loaded.put(id, theirs);
+                savedState.put(id, snapshot(theirs));
+            }
+            return theirs;
+        } catch (IOException e) {
+            throw new ApplicationException("Problema ao recuperar dados das contas.", e);
+        }
+    }
+
+    /**
+     * Replaces accounts in the loaded map with their stored version, if
+     * it's newer, or removes them if no longer stored. Reads everything
+     * stored, so only meant for the rare case of a conflict.
+     *
+     * @param accounts the accounts, with the version they were loaded with.
+     * @throws ApplicationException if there's a problem with file system operations.
+     */
+    private void discardStale(Collection<Account> accounts) {
+        try {
+            Map<Integer, Account> stored = readStored();
+            for (Account ours : accounts) {
+                Account theirs = stored.get(ours.getId());
+                if (theirs == null) {
+                    if (savedState.containsKey(ours.getId())) {
+                        loadedMap.remove(ours.getId());
+                        savedState.remove(ours.getId());
+                    }
+                } else if (theirs.getVersion() > ours.getVersion()) {
+                    loadedMap.put(theirs.getId(), theirs);
+                    savedState.put(theirs.getId(), snapshot(theirs));
+                }
+            }
+        } catch (IOException e) {
+            throw new ApplicationException("Problema ao recuperar dados das contas.", e);
+        }
+    }
+
+    /**
+     * Reads all accounts as currently stored, without changing what the
+     * log has read so far.
+     *
+     * @return The stored accounts, by id.
+     * @throws IOException in case of file system error.
+     */
+    private Map<Integer, Account> readStored() throws IOException {
+        final Map<Integer, Account> stored = new HashMap<Integer, Account>();
+        final AccountLog.Replay into = AccountLog.into(stored);
+        FileLock lock = table.lock();
+        try {
+            log.readAll(new AccountLog.Replay() {
+                @Override
+                public void reset() {
+                    stored.clear();
+                    stored.putAll(readSnapshot());
+                }
+
+                @Override
+                public void put(Account account) {
+                    into.put(account);
+                }
+
+                @Override
+                public void change(AccountCodec.Change change) throws IOException {
+                    into.change(change);
+                }
+
+                @Override
+                public void delete(Integer id) {
+                    into.delete(id);
+                }
+            });
+            for (Map.Entry<Integer, Account> entry : stored.entrySet()) {
+                entry.setValue(table.restore(entry.getValue()));
+            }
+            return stored;
+        } finally {
+            lock.release();
         }
     }
 
+    /** Same as save(), to be flushed by a unit of work. */
     @Override
-    public Integer insert(Account account) {
-        getLoaded().put(account.getId(), account);
-        if (autoSave) {
+    public void flush() {
+        save();
+    }
+
+    /**
+     * Saves to file if auto saving is on. If a unit of work is in progress,
+     * saving is left for when it commits.
+     */
+    private void autoSave() {
+        if (!autoSave) {
+            return;
+        }
+        UnitOfWork uow = UnitOfWork.getCurrent();
+        if (uow != null) {
+            uow.registerFlush(this);
+        } else {
             save();
         }
+    }
+
+    /** Records the state of all loaded accounts as saved. */
+    private void markSaved() {
+        savedState.clear();
+        for (Account account : loadedMap.values()) {
+            savedState.put(account.getId(), snapshot(account));
+        }
+    }
+
+    /**
+     * Takes a snapshot of the persisted fields of an account.
+     * Transactions are only ever added, so their number is enough.
+     */
+    private static Object[] snapshot(Account account) {
+        return new Object[] {
+            account.getPinCode(),
+            account.getBalance(),
+            account.getStatus(),
+            account.getFailedLoginAttempts(),
+            account.getTransactions().size()
+        };
+    }
+
+    /**
+     * Checks if an account has changed since it was last loaded or saved.
+     *
+     * @param account the account.
+     * @return true if it needs to be saved; false otherwise.
+     */
+    public synchronized boolean isDirty(Account account) {
+        Object[] saved = savedState.get(account.getId());
+        return saved == null || getLoaded().get(account.getId()) != account
+                || !Arrays.equals(saved, snapshot(account));
+    }
+
+    @Override
+    public synchronized Integer insert(Account account) {
+        getLoaded().put(account.getId(), account);
+        autoSave();
         return account.getId();
     }
 
-    /** Finds all loaded accounts. */
-    public Collection<Account> findAll() {
-        return loadedMap.values();
+    /**
+     * Saves many new accounts at once, with a single write to file.
+     *
+     * @param accounts the new accounts.
+     */
+    public synchronized void insertAll(Collection<Account> accounts) {
+        for (Account account : accounts) {
+            getLoaded().put(account.getId(), account);
+        }
+        if (!accounts.isEmpty()) {
+            autoSave();
+        }
+    }
+
+    /**
+     * Updates many accounts at once, with a single write to file.
+     * Nothing is saved if none of them changed.
+     *
+     * @param accounts the changed accounts.
+     */
+    public synchronized void updateAll(Collection<Account> accounts) {
+        List<Account> changed = new ArrayList<Account>();
+        for (Account account : accounts) {
+            if (isDirty(account)) {
+                changed.add(account);
+            }
+        }
+        insertAll(changed);
+    }
+
+    /** Finds all loaded accounts, as a copy safe to iterate from any thread. */
+    public synchronized Collection<Account> findAll() {
+        return new ArrayList<Account>(getLoaded().values());
     }
 
     /**
@@ -139,21 +967,75 @@ public class AccountMapper extends FileAccess implements DataMapper<Account, Int
     }
 
     @Override
-    public Account find(Integer id) {
+    public synchronized Account find(Integer id) {
         return getLoaded().get(id);
     }
 
+    /**
+     * {@inheritDoc}
+     * <p>
+     * Nothing is saved if the account hasn't changed.
+     */
     @Override
-    public boolean update(Account account) {
+    public synchronized boolean update(Account account) {
+        if (!isDirty(account)) {
+            return true;
+        }
         return insert(account) != null;
     }
 
     @Override
-    public boolean delete(Account account) {
+    public synchronized boolean delete(Account account) {
         Account removed = getLoaded().remove(account.getId());
-        if (autoSave) {
-            save();
-        }
+        autoSave();
         return removed != null;
     }
+
+    /** A save waiting for group commit, done by the flusher. */
+    private static class PendingSave extends FutureTask<Boolean> {
+
+        /** The account to save. */
+        private final Account account;
+
+        /** Called with the outcome, or null. */
+        private final AsyncMapper.Callback<Boolean> callback;
+
+        PendingSave(Account account, AsyncMapper.Callback<Boolean> callback) {
+            super(new Callable<Boolean>() {
+                @Override
+                public Boolean call() {
+                    // never run; completed by succeed() or fail()
+                    return Boolean.TRUE;
+                }
+            });
+            this.account = account;
+            this.callback = callback;
+        }
+
+        /** Completes the save successfully. */
+        void succeed() {
+            set(Boolean.TRUE);
+        }
+
+        /** Completes the save with an error. */
+        void fail(Throwable e) {
+            setException(e);
+        }
+
+        @Override
+        protected void done() {
+            if (callback == null || isCancelled()) {
+                return;
+            }
+            try {
+                callback.done(get());
+            } catch (ExecutionException e) {
+                callback.failed(e.getCause());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (CancellationException e) {
+                // do nothing (cancelled callers don't want the result)
+            }
+        }
+    }
 }
@@ -0,0 +1,365 @@
+
+/**
+ * Cafeteria management application
+ * Copyright (c) 2011, 2012 Helder Correia
+ * 
+ * This file is part of Cafeteria.
+ * 
+ * Cafeteria is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * Cafeteria is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Cafeteria.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package pt.uac.cafeteria.model.persistence;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import pt.uac.cafeteria.model.domain.Account;
+
+/**
+ * Table of the state of each account that changes on every purchase or
+ * login, kept next to the accounts file, apart from the transactions.
+ * <p>
+ * The file is mapped into memory and holds one fixed-width record per
+ * account: id, version, pin code, balance, status and failed login
+ * attempts. The slot of each account is found by its id, so reading or
+ * changing an account touches only its few bytes, in place, with no
+ * deserialization. New accounts take the slot of a deleted one, if any,
+ * or else a new slot at the end, and the file grows as needed.
+ * <p>
+ * The table always has the latest version of each account, which makes
+ * it the reference when checking for concurrent changes. Only the
+ * transactions, which grow with every purchase, need the accounts file
+ * and log. Terminals sharing the table take turns with lock(), and see
+ * each other's changes as soon as they're made, since they map the same
+ * file.
+ */
+class AccountTable {
+
+    /** Identifies a table file. */
+    private static final int MAGIC = 0x41435442;
+
+    /** Size, in bytes, of the header: magic number, slots used, stamp and slots reused. */
+    private static final int HEADER_SIZE = 16;
+
+    /** Size, in bytes, of a record. */
+    private static final int SLOT_SIZE = 32;
+
+    /** Number of slots in a new file. */
+    private static final int INITIAL_CAPACITY = 1024;
+
+    /** Header offset of the number of slots used. */
+    private static final int COUNT = 4;
+
+    /** Header offset of the number of changes to the table. */
+    private static final int STAMP = 8;
+
+    /** Header offset of the number of times a slot was reused. */
+    private static final int REUSED = 12;
+
+    /** Record offset of the account id. */
+    private static final int ID = 0;
+
+    /** Record offset of the version. */
+    private static final int VERSION = 4;
+
+    /** Record offset of the pin code. */
+    private static final int PIN_CODE = 8;
+
+    /** Record offset of the balance. */
+    private static final int BALANCE = 12;
+
+    /** Record offset of the status ordinal. */
+    private static final int STATUS = 20;
+
+    /** Record offset of the failed login attempts. */
+    private static final int FAILED_ATTEMPTS = 21;
+
+    /** Record offset of the flags. */
+    private static final int FLAGS = 22;
+
+    /** Flag of a slot in use. */
+    private static final byte IN_USE = 1;
+
+    /** The table file. */
+    private final File file;
+
+    /** Open file, or null until first used. */
+    private RandomAccessFile raf;
+
+    /** The file mapped into memory. */
+    private MappedByteBuffer buffer;
+
+    /** Number of slots mapped. */
+    private int capacity;
+
+    /** Number of slots already read into the index. */
+    private int scanned;
+
+    /** Number of slots reused, as of the last time slots were read. */
+    private int reused;
+
+    /** Slot of each account, by id. */
+    private final Map<Integer, Integer> slots = new HashMap<Integer, Integer>();
+
+    /** Slots left unused by deleted accounts, possibly already taken elsewhere. */
+    private final List<Integer> free = new ArrayList<Integer>();
+
+    /**
+     * Creates a new AccountTable instance.
+     *
+     * @param file the table file, created when first used.
+     */
+    AccountTable(File file) {
+        this.file = file;
+    }
+
+    /**
+     * Locks the table, for changes or a consistent read, and picks up
+     * slots added elsewhere. Must be released after use.
+     *
+     * @return The lock.
+     * @throws IOException in case of file system error.
+     */
+    synchronized FileLock lock() throws IOException {
+        open();
+        FileLock lock = raf.getChannel().lock();
+        try {
+            refresh();
+        } catch (IOException e) {
+            lock.release();
+            throw e;
+        }
+        return lock;
+    }
+
+    /**
+     * Gets the number of changes made to the table, here or elsewhere.
+     * Unchanged since a previous call means no account changed.
+     */
+    synchronized int stamp() throws IOException {
+        open();
+        return buffer.getInt(STAMP);
+    }
+
+    /**
+     * Gets the version of an account.
+     *
+     * @param id the account id.
+     * @return The version, or -1 if the account isn't in the table.
+     */
+    synchronized int version(Integer id) throws IOException {
+        int at = offset(id);
+        return at < 0 ? -1 : buffer.getInt(at + VERSION);
+    }
+
+    /** Gets the ids of all accounts in the table. */
+    synchronized Set<Integer> ids() throws IOException {
+        open();
+        return new HashSet<Integer>(slots.keySet());
+    }
+
+    /**
+     * Writes the state of an account to its slot, or a free one if not
+     * in the table yet. Must hold the lock.
+     *
+     * @param account the account.
+     * @throws IOException in case of file system error.
+     */
+    synchronized void put(Account account) throws IOException {
+        int at = offset(account.getId());
+        if (at < 0) {
+            int slot = freeSlot();
+            at = HEADER_SIZE + slot * SLOT_SIZE;
+            buffer.putInt(at + ID, account.getId());
+            buffer.put(at + FLAGS, IN_USE);
+            slots.put(account.getId(), slot);
+        }
+        buffer.putInt(at + VERSION, account.getVersion());
+        buffer.putInt(at + PIN_CODE, account.getPinCode());
+        buffer.putLong(at + BALANCE, Double.doubleToLongBits(account.getBalance()));
+        buffer.put(at + STATUS, (byte) account.getStatus().ordinal());
+        buffer.put(at + FAILED_ATTEMPTS, (byte) account.getFailedLoginAttempts());
+        buffer.putInt(STAMP, buffer.getInt(STAMP) + 1);
+    }
+
+    /**
+     * Removes an account from the table, leaving its slot unused. Must
+     * hold the lock.
+     *
+     * @param id the account id.
+     * @throws IOException in case of file system error.
+     */
+    synchronized void remove(Integer id) throws IOException {
+        int at = offset(id);
+        if (at >= 0) {
+            buffer.put(at + FLAGS, (byte) 0);
+            buffer.putInt(STAMP, buffer.getInt(STAMP) + 1);
+            free.add(slots.remove(id));
+        }
+    }
+
+    /**
+     * Takes a slot for a new account: a free one, or a new one at the end.
+     * Other terminals read all slots again when one is reused, since their
+     * index no longer matches.
+     *
+     * @return The slot.
+     */
+    private int freeSlot() throws IOException {
+        while (!free.isEmpty()) {
+            int slot = free.remove(free.size() - 1);
+            if (buffer.get(HEADER_SIZE + slot * SLOT_SIZE + FLAGS) != IN_USE) {
+                reused++;
+                buffer.putInt(REUSED, reused);
+                return slot;
+            }
+        }
+        int count = buffer.getInt(COUNT);
+        if (count == capacity) {
+            map(capacity * 2);
+        }
+        buffer.putInt(COUNT, count + 1);
+        scanned = count + 1;
+        return count;
+    }
+
+    /**
+     * Gets an account with the state in the table, if newer.
+     *
+     * @param account the account, as stored with its transactions.
+     * @return The same account if the table has no newer version;
+     *         otherwise a new one, with the same transactions.
+     * @throws IOException in case of file system error.
+     */
+    synchronized Account restore(Account account) throws IOException {
+        int at = offset(account.getId());
+        if (at < 0 || buffer.getInt(at + VERSION) <= account.getVersion()) {
+            return account;
+        }
+        return new Account(
+            account.getId(),
+            buffer.getInt(at + PIN_CODE),
+            Double.longBitsToDouble(buffer.getLong(at + BALANCE)),
+            Account.Status.values()[buffer.get(at + STATUS)],
+            buffer.get(at + FAILED_ATTEMPTS),
+            buffer.getInt(at + VERSION),
+            account.getTransactions()
+        );
+    }
+
+    /**
+     * Writes the changes in the table to disk.
+     */
+    synchronized void force() {
+        if (buffer != null) {
+            buffer.force();
+        }
+    }
+
+    /** Opens and maps the file, the first time, creating it if needed. */
+    private void open() throws IOException {
+        if (raf != null) {
+            return;
+        }
+        file.getParentFile().mkdirs();
+        raf = new RandomAccessFile(file, "rw");
+        FileLock lock = raf.getChannel().lock();
+        try {
+            if (raf.length() < HEADER_SIZE) {
+                map(INITIAL_CAPACITY);
+                buffer.putInt(0, MAGIC);
+                buffer.putInt(COUNT, 0);
+                buffer.putInt(STAMP, 0);
+                buffer.putInt(REUSED, 0);
+            } else {
+                map((int) ((raf.length() - HEADER_SIZE) / SLOT_SIZE));
+                if (buffer.getInt(0) != MAGIC) {
+                    throw new IOException("Not an account table: " + file);
+                }
+            }
+            refresh();
+        } catch (IOException e) {
+            raf.close();
+            raf = null;
+            throw e;
+        } finally {
+            if (raf != null) {
+                lock.release();
+            }
+        }
+    }
+
+    /** Maps the file with room for a number of slots, growing it if needed. */
+    private void map(int slotCount) throws IOException {
+        buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0,
+                HEADER_SIZE + (long) slotCount * SLOT_SIZE);
+        capacity = slotCount;
+    }
+
+    /**
+     * Reads the slots added elsewhere into the index, or all of them again
+     * if some were reused elsewhere.
+     */
+    private void refresh() throws IOException {
+        int count = buffer.getInt(COUNT);
+        if (count > capacity) {
+            map((int) ((raf.length() - HEADER_SIZE) / SLOT_SIZE));
+        }
+        if (buffer.getInt(REUSED) != reused) {
+            reused = buffer.getInt(REUSED);
+            slots.clear();
+            free.clear();
+            scanned = 0;
+        }
+        for (int slot = scanned; slot < count; slot++) {
+            int at = HEADER_SIZE + slot * SLOT_SIZE;
+            if (buffer.get(at + FLAGS) == IN_USE) {
+                slots.put(buffer.getInt(at + ID), slot);
+            } else {
+                free.add(slot);
+            }
+        }
+        scanned = count;
+    }
+
+    /**
+     * Finds the position of an account's record in the buffer.
+     *
+     * @return The position, or -1 if the account isn't in the table.
+     */
+    private int offset(Integer id) throws IOException {
+        open();
+        Integer slot = slots.get(id);
+        if (slot == null) {
+            return -1;
+        }
+        int at = HEADER_SIZE + slot * SLOT_SIZE;
+        if (buffer.get(at + FLAGS) != IN_USE || buffer.getInt(at + ID) != id) {
+            // removed elsewhere
+            slots.remove(id);
+            free.add(slot);
+            return -1;
+        }
+        return at;
+    }
+}
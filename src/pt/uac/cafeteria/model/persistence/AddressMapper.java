@@ -21,25 +21,228 @@
 
 package pt.uac.cafeteria.model.persistence;
 
-import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
 import pt.uac.cafeteria.model.domain.Address;
 import pt.uac.cafeteria.model.persistence.abstracts.DatabaseMapper;
+import pt.uac.cafeteria.model.persistence.abstracts.UniqueKey;
+import pt.uac.cafeteria.model.persistence.jdbc.ConnectionPool;
 
 /**
  * Data Mapper for Address domain objects.
+ * <p>
+ * Addresses are shared: students living at the same address (e.g., the
+ * same residence hall) refer to the same row and the same instance. New
+ * addresses should be interned with intern() or internAll() before being
+ * referred to, which finds an identical one, by content, before inserting.
+ * Since they're shared, addresses must not be changed in place. Refer to
+ * a new one instead, and delete the old one, which is only deleted if
+ * no student refers to it anymore.
  */
 public class AddressMapper extends DatabaseMapper<Address> {
 
+    /** Content of each loaded address, for finding identical ones in memory. */
+    private final UniqueKey<Address> contents = new UniqueKey<Address>("rua, nr, cod_postal, localidade") {
+        @Override
+        protected String keyOf(Address address) {
+            return contentOf(address);
+        }
+    };
+
     /**
      * Creates a new AddressMapper instance.
      *
-     * @param con a database connection object.
+     * @param pool a pool of database connections.
+     */
+    public AddressMapper(ConnectionPool pool) {
+        super(pool);
+        addUniqueKey("content", contents);
+    }
+
+    /**
+     * Gets the content of an address as a single string, with extra
+     * white space removed from each field.
+     *
+     * @param address the address.
+     * @return The content key, or null if some field is missing.
+     */
+    private static String contentOf(Address address) {
+        String[] fields = fieldsOf(address);
+        if (fields == null) {
+            return null;
+        }
+        StringBuilder key = new StringBuilder();
+        for (String field : fields) {
+            key.append(field).append('\n');
+        }
+        return key.toString();
+    }
+
+    /**
+     * Gets the fields of an address, with extra white space removed.
+     *
+     * @param address the address.
+     * @return Street, number, postal code and city, or null if some is missing.
+     */
+    private static String[] fieldsOf(Address address) {
+        String[] fields = {
+            address.getStreetAddress(),
+            address.getNumber(),
+            address.getPostalCode(),
+            address.getCity()
+        };
+        for (int i = 0; i < fields.length; i++) {
+            if (fields[i] == null) {
+                return null;
+            }
+            fields[i] = fields[i].trim().replaceAll("\\s+", " ");
+        }
+        return fields;
+    }
+
+    /**
+     * Finds a stored address with the same content as the given one.
+     * <p>
+     * Case and extra white space are ignored. Loaded addresses are looked
+     * up in memory first.
+     *
+     * @param address the address to match.
+     * @return An identical stored address, or null if there's none.
+     */
+    public Address findIdentical(Address address) {
+        String key = contentOf(address);
+        if (key == null) {
+            return null;
+        }
+        Integer id = contents.lookup(key);
+        if (id != null) {
+            Address found = find(id);
+            if (found != null && contents.matches(found, key)) {
+                return found;
+            }
+        }
+        List<Address> list = findMany(
+                findStatement("rua = ? AND nr = ? AND cod_postal = ? AND localidade = ?"
+                        + " ORDER BY id LIMIT 1"),
+                fieldsOf(address));
+        return !list.isEmpty() ? list.get(0) : null;
+    }
+
+    /**
+     * Gets the stored address identical to a new one, inserting the new one
+     * if there's none.
+     *
+     * @param address an address, new or stored.
+     * @return The stored address to refer to, which may be the given one.
+     */
+    public Address intern(Address address) {
+        if (address.getId() != null) {
+            return address;
+        }
+        Address found = findIdentical(address);
+        if (found != null) {
+            return found;
+        }
+        insert(address);
+        return address;
+    }
+
+    /**
+     * Interns many addresses at once, for bulk enrollment.
+     * <p>
+     * Identical new addresses are merged with each other, and looked up
+     * in the database with one query for each chunk of them. Those not
+     * found are inserted in one batch.
+     *
+     * @param addresses addresses, new or stored.
+     * @return The stored addresses to refer to, in the same order.
+     */
+    public List<Address> internAll(List<Address> addresses) {
+        Map<String, Address> byContent = new LinkedHashMap<String, Address>();
+        List<Address> unmatched = new ArrayList<Address>();
+        for (Address address : addresses) {
+            String key = contentOf(address);
+            if (address.getId() == null && key == null) {
+                unmatched.add(address);
+            } else if (address.getId() == null && !byContent.containsKey(normalize(key))) {
+                byContent.put(normalize(key), address);
+            }
+        }
+
+        Map<String, Address> stored = findIdentical(byContent);
+        List<Address> newAddresses = new ArrayList<Address>(unmatched);
+        for (Map.Entry<String, Address> entry : byContent.entrySet()) {
+            if (stored.containsKey(entry.getKey())) {
+                entry.setValue(stored.get(entry.getKey()));
+            } else {
+                newAddresses.add(entry.getValue());
+            }
+        }
+        insertAll(newAddresses);
+
+        List<Address> result = new ArrayList<Address>(addresses.size());
+        for (Address address : addresses) {
+            String key = contentOf(address);
+            if (address.getId() == null && key != null) {
+                result.add(byContent.get(normalize(key)));
+            } else {
+                result.add(address);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Finds stored addresses identical to many new ones.
+     *
+     * @param addresses new addresses, by normalized content key.
+     * @return Stored addresses found, by normalized content key.
      */
-    public AddressMapper(Connection con) {
-        super(con);
+    private Map<String, Address> findIdentical(Map<String, Address> addresses) {
+        Map<String, Address> found = new HashMap<String, Address>();
+        List<Address> missing = new ArrayList<Address>();
+        for (Map.Entry<String, Address> entry : addresses.entrySet()) {
+            Integer id = contents.lookup(entry.getKey());
+            Address loaded = id != null ? retrieve(id) : null;
+            if (loaded != null && contents.matches(loaded, entry.getKey())) {
+                found.put(entry.getKey(), loaded);
+            } else {
+                missing.add(entry.getValue());
+            }
+        }
+
+        int chunkSize = IN_CHUNK_SIZE / 4;
+        for (int from = 0; from < missing.size(); from += chunkSize) {
+            List<Address> chunk = missing.subList(from, Math.min(from + chunkSize, missing.size()));
+            StringBuilder in = new StringBuilder("(rua, nr, cod_postal, localidade) IN (");
+            List<String> parameters = new ArrayList<String>(chunk.size() * 4);
+            for (int i = 0; i < chunk.size(); i++) {
+                in.append(i == 0 ? "(?, ?, ?, ?)" : ", (?, ?, ?, ?)");
+                for (String field : fieldsOf(chunk.get(i))) {
+                    parameters.add(field);
+                }
+            }
+            in.append(") ORDER BY id");
+            for (Address address : findMany(findStatement(in.toString()), parameters.toArray())) {
+                String key = normalize(contentOf(address));
+                if (!found.containsKey(key)) {
+                    found.put(key, address);
+                }
+            }
+        }
+        return found;
+    }
+
+    /** Puts a content key in the form it's indexed by. */
+    private static String normalize(String key) {
+        return key.toLowerCase(Locale.ENGLISH);
     }
 
     @Override
@@ -47,10 +250,15 @@ public class AddressMapper extends DatabaseMapper<Address> {
         return "Moradas";
     }
 
+    @Override
+    protected String findStatement(String criteria) {
+        return "SELECT id, rua, nr, cod_postal, localidade, versao"
+                + " FROM " + table() + " WHERE " + criteria;
+    }
+
     @Override
     protected String findStatement() {
-        return "SELECT id, rua, nr, cod_postal, localidade"
-                + " FROM " + table() + " WHERE id = ?";
+        return findStatement("id = ?");
     }
 
     @Override
@@ -61,6 +269,7 @@ public class AddressMapper extends DatabaseMapper<Address> {
         String city = rs.getString("localidade");
         Address result = new Address(streetAddress, number, postalCode, city);
         result.setId(id);
+        result.setVersion(rs.getInt("versao"));
         return result;
     }
 
@@ -81,13 +290,36 @@ public class AddressMapper extends DatabaseMapper<Address> {
     @Override
     protected String updateStatement() {
         return "UPDATE " + table()
-                + " SET rua = ?, nr = ?, cod_postal = ?, localidade = ?"
-                + " WHERE id = ?";
+                + " SET rua = ?, nr = ?, cod_postal = ?, localidade = ?, versao = versao + 1"
+                + " WHERE id = ? AND versao = ?";
     }
 
     @Override
     protected void doUpdate(Address address, PreparedStatement stmt) throws SQLException {
         doInsert(address, stmt);
         stmt.setInt(5, address.getId().intValue());
+        stmt.setInt(6, address.getVersion());
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * Only deletes the address if no student, current or old, refers to it.
+     */
+    @Override
+    protected String deleteStatement() {
+        return "DELETE FROM " + table() + " WHERE id = ?"
+                + " AND NOT EXISTS (SELECT 1 FROM Alunos WHERE morada = " + table() + ".id)"
+                + " AND NOT EXISTS (SELECT 1 FROM histAlunos WHERE morada = " + table() + ".id)";
+    }
+
+    @Override
+    protected Object[] snapshot(Address address) {
+        return new Object[] {
+            address.getStreetAddress(),
+            address.getNumber(),
+            address.getPostalCode(),
+            address.getCity()
+        };
     }
  }
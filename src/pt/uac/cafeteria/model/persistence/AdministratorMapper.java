@@ -21,13 +21,15 @@
 
 package pt.uac.cafeteria.model.persistence;
 
-import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.util.List;
 import pt.uac.cafeteria.model.domain.Administrator;
 import pt.uac.cafeteria.model.persistence.abstracts.DatabaseMapper;
+import pt.uac.cafeteria.model.persistence.abstracts.Page;
+import pt.uac.cafeteria.model.persistence.abstracts.UniqueKey;
+import pt.uac.cafeteria.model.persistence.jdbc.ConnectionPool;
 
 /**
  * DataMapper for the Administrator domain object.
@@ -37,10 +39,16 @@ public class AdministratorMapper extends DatabaseMapper<Administrator> {
     /**
      * Creates a new AdministratorMapper instance.
      *
-     * @param con a database connection object.
+     * @param pool a pool of database connections.
      */
-    public AdministratorMapper(Connection con) {
-        super(con);
+    public AdministratorMapper(ConnectionPool pool) {
+        super(pool);
+        addUniqueKey("username", new UniqueKey<Administrator>("username") {
+            @Override
+            protected String keyOf(Administrator admin) {
+                return admin.getUsername();
+            }
+        });
     }
 
     @Override
@@ -57,8 +65,24 @@ public class AdministratorMapper extends DatabaseMapper<Administrator> {
      * @return A list of matching administrators.
      */
     public List<Administrator> findByName(String name) {
-        String query = findStatement("nome RLIKE ?");
-        return findMany(query, new String[]{name});
+        String query = findStatement(regexp("nome"));
+        return findCached(query, new String[]{name});
+    }
+
+    /**
+     * Finds a page of administrators from a name, ordered by name.
+     * <p>
+     * The name can be a partial match, and is not case sensitive. The
+     * total number of matches is counted for the first page only.
+     *
+     * @param name a full or partial match for an administrator name.
+     * @param token continuation token from the previous page, or null
+     *        for the first page.
+     * @param size maximum number of administrators in the page.
+     * @return A page of matching administrators.
+     */
+    public Page<Administrator> findPageByName(String name, String token, int size) {
+        return findPage(regexp("nome"), new Object[]{name}, "nome", token, size);
     }
 
     /**
@@ -68,9 +92,7 @@ public class AdministratorMapper extends DatabaseMapper<Administrator> {
      * @return An Administrator domain object.
      */
     public Administrator findByUsername(String username) {
-        String query = findStatement("username = ?");
-        List<Administrator> admins = findMany(query, new String[]{username});
-        return !admins.isEmpty() ? admins.get(0) : null;
+        return findByUniqueKey("username", username);
     }
 
     /**
@@ -80,8 +102,9 @@ public class AdministratorMapper extends DatabaseMapper<Administrator> {
      * @param criteria contents of "WHERE" part of the SQL statement.
      * @return A complete SQL statement string.
      */
+    @Override
     protected String findStatement(String criteria) {
-        return "SELECT id, nome, username, password"
+        return "SELECT id, nome, username, password, versao"
                 + " FROM " + table() + " WHERE " + criteria;
     }
 
@@ -97,6 +120,7 @@ public class AdministratorMapper extends DatabaseMapper<Administrator> {
         String password = rs.getString("password");
         Administrator result = new Administrator(name, username, password);
         result.setId(id);
+        result.setVersion(rs.getInt("versao"));
         return result;
     }
 
@@ -116,13 +140,23 @@ public class AdministratorMapper extends DatabaseMapper<Administrator> {
     @Override
     protected String updateStatement() {
         return "UPDATE " + table()
-                + " SET nome = ?, username = ?, password = ?"
-                + " WHERE id = ?";
+                + " SET nome = ?, username = ?, password = ?, versao = versao + 1"
+                + " WHERE id = ? AND versao = ?";
     }
 
     @Override
     protected void doUpdate(Administrator admin, PreparedStatement stmt) throws SQLException {
         doInsert(admin, stmt);
         stmt.setInt(4, admin.getId().intValue());
+        stmt.setInt(5, admin.getVersion());
+    }
+
+    @Override
+    protected Object[] snapshot(Administrator admin) {
+        return new Object[] {
+            admin.getName(),
+            admin.getUsername(),
+            admin.getPassword()
+        };
     }
 }
@@ -22,22 +22,58 @@
 package pt.uac.cafeteria.model.persistence;
 
 import java.sql.*;
+import java.text.Collator;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import pt.uac.cafeteria.model.ApplicationException;
+import pt.uac.cafeteria.model.Config;
 import pt.uac.cafeteria.model.domain.Course;
 import pt.uac.cafeteria.model.persistence.abstracts.DatabaseMapper;
+import pt.uac.cafeteria.model.persistence.jdbc.ConnectionPool;
+import pt.uac.cafeteria.model.persistence.jdbc.PooledConnection;
 
 /**
  * DataMapper for the Course domain object.
+ * <p>
+ * Courses are reference data: few, and rarely changed. The whole table is
+ * loaded the first time it's needed into a snapshot sorted by name, and
+ * finding courses is served from it. Inserting, updating or deleting a
+ * course here replaces the snapshot with a new one.
+ * <p>
+ * To pick up courses changed elsewhere, the snapshot can also be reloaded
+ * periodically, if set in Config.
  */
 public class CourseMapper extends DatabaseMapper<Course> {
 
+    /** Courses loaded from the table, replaced as a whole on each change. */
+    private volatile Snapshot snapshot;
+
+    /** Reloads the snapshot periodically, if set in Config. */
+    private ScheduledExecutorService refresher;
+
     /**
      * Creates a new instance of the mapper.
      *
-     * @param con a database connection object.
+     * @param pool a pool of database connections.
      */
-    public CourseMapper(Connection con) {
-        super(con);
+    public CourseMapper(ConnectionPool pool) {
+        super(pool);
+        int interval = Config.getInstance().getInt(Config.COURSE_CACHE_REFRESH, 0);
+        if (interval > 0) {
+            startRefresh(interval);
+        }
     }
 
     @Override
@@ -45,20 +81,156 @@ public class CourseMapper extends DatabaseMapper<Course> {
         return "Cursos";
     }
 
-    /** Gets a list, ordered by name, of all courses. */
+    /** Gets a list, ordered by name, of all courses. The list can't be modified. */
     public List<Course> findAll() {
-        return findMany("SELECT id, nome FROM " + table() + " ORDER BY nome");
+        return getSnapshot().sorted;
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * Courses in the snapshot are found there first.
+     */
+    @Override
+    public Course retrieve(Integer id) {
+        Snapshot current = snapshot;
+        if (current != null) {
+            Course course = current.byId.get(id);
+            if (course != null) {
+                return course;
+            }
+        }
+        return super.retrieve(id);
+    }
+
+    /** Gets the snapshot of all courses, loading it the first time. */
+    private Snapshot getSnapshot() {
+        Snapshot current = snapshot;
+        if (current == null) {
+            synchronized (this) {
+                current = snapshot;
+                if (current == null) {
+                    current = new Snapshot(findMany(findStatement("1 = 1")));
+                    snapshot = current;
+                }
+            }
+        }
+        return current;
+    }
+
+    /**
+     * Reloads the snapshot from the table, to pick up courses inserted,
+     * changed or deleted elsewhere.
+     * <p>
+     * Loaded courses are kept, unless changed elsewhere. Those are loaded
+     * into new instances, instead of being updated in place, since this
+     * may run in the background while other threads read them; students
+     * loaded before keep the old instance. Courses with unsaved changes
+     * here are left alone.
+     *
+     * @throws ApplicationException in case of SQL error.
+     */
+    public synchronized void refresh() {
+        Map<Integer, Course> known = snapshot != null
+                ? snapshot.byId : Collections.<Integer, Course>emptyMap();
+        List<Course> courses = new ArrayList<Course>();
+
+        PooledConnection con = pool.borrow();
+        PreparedStatement stmt = null;
+        try {
+            stmt = con.prepareStatement(findStatement("1 = 1"));
+            ResultSet rs = stmt.executeQuery();
+            while (rs.next()) {
+                Integer id = Integer.valueOf(rs.getInt("id"));
+                Course course = known.get(id);
+                if (course == null) {
+                    course = super.retrieve(id);
+                }
+                if (course == null
+                        || course.getVersion() != rs.getInt("versao") && !isDirty(course)) {
+                    course = doLoad(id, rs);
+                    register(id, course);
+                }
+                courses.add(course);
+            }
+        } catch (SQLException e) {
+            throw new ApplicationException(e.getMessage());
+        } finally {
+            cleanUp(con, stmt);
+            pool.release(con);
+        }
+        snapshot = new Snapshot(courses);
+    }
+
+    /**
+     * Starts reloading the snapshot periodically, in a background thread.
+     *
+     * @param interval time, in seconds, between reloads.
+     */
+    private void startRefresh(int interval) {
+        refresher = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "course-refresh");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        refresher.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    refresh();
+                } catch (ApplicationException e) {
+                    // try again next time
+                    Logger.getLogger(CourseMapper.class.getName()).log(Level.WARNING, null, e);
+                }
+            }
+        }, interval, interval, TimeUnit.SECONDS);
+    }
+
+    /** Stops reloading the snapshot periodically, if it was. */
+    public synchronized void stopRefresh() {
+        if (refresher != null) {
+            refresher.shutdownNow();
+            refresher = null;
+        }
+    }
+
+    @Override
+    protected synchronized void saved(Course course) {
+        if (snapshot != null) {
+            Map<Integer, Course> courses = new HashMap<Integer, Course>(snapshot.byId);
+            courses.put(course.getId(), course);
+            snapshot = new Snapshot(courses.values());
+        }
+    }
+
+    @Override
+    protected synchronized void deleted(Course course) {
+        if (snapshot != null) {
+            Map<Integer, Course> courses = new HashMap<Integer, Course>(snapshot.byId);
+            courses.remove(course.getId());
+            snapshot = new Snapshot(courses.values());
+        }
+    }
+
+    @Override
+    protected String findStatement(String criteria) {
+        return "SELECT id, nome, versao FROM " + table() + " WHERE " + criteria;
     }
 
     @Override
     protected String findStatement() {
-        return "SELECT id, nome FROM " + table() + " WHERE id = ?";
+        return findStatement("id = ?");
     }
 
     @Override
     protected Course doLoad(Integer id, ResultSet rs) throws SQLException {
         String name = rs.getString("nome");
-        return new Course(id, name);
+        Course result = new Course(id, name);
+        result.setVersion(rs.getInt("versao"));
+        return result;
     }
 
     @Override
@@ -73,13 +245,20 @@ public class CourseMapper extends DatabaseMapper<Course> {
 
     @Override
     protected String updateStatement() {
-        return "UPDATE " + table() + " SET nome = ? WHERE id = ?";
+        return "UPDATE " + table() + " SET nome = ?, versao = versao + 1"
+                + " WHERE id = ? AND versao = ?";
     }
 
     @Override
     protected void doUpdate(Course course, PreparedStatement stmt) throws SQLException {
         doInsert(course, stmt);
         stmt.setInt(2, course.getId().intValue());
+        stmt.setInt(3, course.getVersion());
+    }
+
+    @Override
+    protected Object[] snapshot(Course course) {
+        return new Object[] { course.getName() };
     }
 
     /**
@@ -91,4 +270,32 @@ public class CourseMapper extends DatabaseMapper<Course> {
     public Integer insert(String course) {
         return insert(new Course(null, course));
     }
+
+    /** All courses at some point in time, by id and sorted by name. Never modified. */
+    private static class Snapshot {
+
+        /** Courses sorted by name. */
+        final List<Course> sorted;
+
+        /** Courses by id. */
+        final Map<Integer, Course> byId;
+
+        Snapshot(Collection<Course> courses) {
+            List<Course> list = new ArrayList<Course>(courses);
+            final Collator collator = Collator.getInstance(new Locale("pt", "PT"));
+            collator.setStrength(Collator.SECONDARY);
+            Collections.sort(list, new Comparator<Course>() {
+                @Override
+                public int compare(Course a, Course b) {
+                    return collator.compare(a.getName(), b.getName());
+                }
+            });
+            Map<Integer, Course> map = new HashMap<Integer, Course>();
+            for (Course course : list) {
+                map.put(course.getId(), course);
+            }
+            sorted = Collections.unmodifiableList(list);
+            byId = Collections.unmodifiableMap(map);
+        }
+    }
 }
@@ -22,6 +22,7 @@
 package pt.uac.cafeteria.model.persistence;
 
 import pt.uac.cafeteria.model.domain.Account;
+import pt.uac.cafeteria.model.persistence.jdbc.ConnectionPool;
 
 /**
  * Data Mapper for old Student objects.
@@ -34,10 +35,10 @@ public class OldStudentMapper extends StudentMapper {
     /**
      * Creates a new OldStudentMapper instance.
      *
-     * @param con a database connection object.
+     * @param pool a pool of database connections.
      */
-    public OldStudentMapper(java.sql.Connection con) {
-        super(con);
+    public OldStudentMapper(ConnectionPool pool) {
+        super(pool);
     }
 
     @Override
@@ -21,30 +21,62 @@
 
 package pt.uac.cafeteria.model.persistence;
 
-import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import pt.uac.cafeteria.model.ApplicationException;
+import pt.uac.cafeteria.model.ConcurrencyException;
 import pt.uac.cafeteria.model.MapperRegistry;
 import pt.uac.cafeteria.model.domain.Account;
 import pt.uac.cafeteria.model.domain.Address;
 import pt.uac.cafeteria.model.domain.Course;
 import pt.uac.cafeteria.model.domain.Student;
+import pt.uac.cafeteria.model.domain.StudentSummary;
+import pt.uac.cafeteria.model.persistence.abstracts.Cursor;
 import pt.uac.cafeteria.model.persistence.abstracts.DatabaseMapper;
+import pt.uac.cafeteria.model.persistence.abstracts.Page;
+import pt.uac.cafeteria.model.persistence.abstracts.UniqueKey;
+import pt.uac.cafeteria.model.persistence.abstracts.UnitOfWork;
+import pt.uac.cafeteria.model.persistence.cache.NameIndex;
+import pt.uac.cafeteria.model.persistence.jdbc.ConnectionPool;
+import pt.uac.cafeteria.model.persistence.jdbc.PooledConnection;
 
 /**
  * Data Mapper for the Student domain object.
+ * <p>
+ * Keeps an in-memory index of student names, for searching by name
+ * without going to the database. It's built from the table the first
+ * time it's needed (or at startup), and kept up to date on every insert,
+ * update and delete.
  */
 public class StudentMapper extends DatabaseMapper<Student> {
 
+    /** Index of student names, by id. */
+    private final NameIndex nameIndex = new NameIndex();
+
+    /** Accounts created while loading many students, by the loading thread. */
+    private final ThreadLocal<List<Account>> newAccounts = new ThreadLocal<List<Account>>();
+
     /**
      * Creates a new StudentMapper instance.
      *
-     * @param con a database connection object.
+     * @param pool a pool of database connections.
      */
-    public StudentMapper(Connection con) {
-        super(con);
+    public StudentMapper(ConnectionPool pool) {
+        super(pool);
+        addUniqueKey("email", new UniqueKey<Student>("email") {
+            @Override
+            protected String keyOf(Student student) {
+                return student.getEmail();
+            }
+        });
     }
 
     @Override
@@ -61,8 +93,179 @@ public class StudentMapper extends DatabaseMapper<Student> {
      * @return A list of matching students.
      */
     public List<Student> findByName(String name) {
-        String query = findStatement("a.nome RLIKE ?");
-        return findMany(query, new String[]{name});
+        String query = findStatement(regexp("a.nome"));
+        return findCached(query, new String[]{name});
+    }
+
+    /**
+     * Searches students by name in the name index, best matches first.
+     * <p>
+     * Accents and case don't matter, and each word in the query may be
+     * a partial match.
+     *
+     * @param query one or more words of the name.
+     * @param limit maximum number of results.
+     * @return A list of matching student ids, ranked.
+     */
+    public List<Integer> searchIdsByName(String query, int limit) {
+        if (!nameIndex.isBuilt()) {
+            buildNameIndex();
+        }
+        return nameIndex.search(query, limit);
+    }
+
+    /**
+     * Searches students by name in the name index, best matches first.
+     *
+     * @param query one or more words of the name.
+     * @param limit maximum number of results.
+     * @return A list of matching students, ranked.
+     * @see #searchIdsByName(String, int)
+     */
+    public List<Student> searchByName(String query, int limit) {
+        return findAll(searchIdsByName(query, limit));
+    }
+
+    /**
+     * Finds summaries of many students from their ids, for listing.
+     * <p>
+     * Only the id, name and course name are read, straight from the result
+     * set. Nothing is registered in the identity maps and no account is
+     * touched, so it's much cheaper than loading full students.
+     *
+     * @param ids student ids.
+     * @return A list of summaries in the same order as <code>ids</code>.
+     *         Ids not found are left out.
+     */
+    public List<StudentSummary> findSummaries(Collection<Integer> ids) {
+        List<Integer> all = new ArrayList<Integer>(ids);
+        Map<Integer, StudentSummary> found = new HashMap<Integer, StudentSummary>();
+
+        PooledConnection con = pool.borrow();
+        PreparedStatement stmt = null;
+        try {
+            for (int from = 0; from < all.size(); from += IN_CHUNK_SIZE) {
+                List<Integer> chunk = all.subList(from, Math.min(from + IN_CHUNK_SIZE, all.size()));
+
+                Object[] parameters = paddedIds(chunk);
+
+                stmt = con.prepareStatement(summaryStatement(inCriteria("a.id", parameters.length)));
+                for (int i = 0; i < parameters.length; i++) {
+                    stmt.setObject(i+1, parameters[i]);
+                }
+                ResultSet rs = stmt.executeQuery();
+                while (rs.next()) {
+                    StudentSummary summary = loadSummary(rs);
+                    found.put(summary.getId(), summary);
+                }
+                cleanUp(con, stmt);
+                stmt = null;
+            }
+        } catch (SQLException e) {
+            throw new ApplicationException(e.getMessage());
+        } finally {
+            cleanUp(con, stmt);
+            pool.release(con);
+        }
+
+        List<StudentSummary> result = new ArrayList<StudentSummary>(found.size());
+        for (Integer id : all) {
+            StudentSummary summary = found.get(id);
+            if (summary != null) {
+                result.add(summary);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * SQL SELECT statement for student summaries, missing only the criteria
+     * to append to the WHERE clause.
+     *
+     * @param criteria contents of "WHERE" part of the SQL statement.
+     * @return A complete SQL statement string.
+     */
+    protected String summaryStatement(String criteria) {
+        return "SELECT a.id, a.nome, c.nome AS curso"
+                + " FROM " + table() + " AS a"
+                + " INNER JOIN Cursos AS c ON a.curso = c.id"
+                + " WHERE " + criteria;
+    }
+
+    /**
+     * Reads a student summary from the current row of a result set.
+     *
+     * @param rs the result set, from summaryStatement().
+     * @return A student summary.
+     * @throws SQLException in case of SQL error.
+     */
+    protected StudentSummary loadSummary(ResultSet rs) throws SQLException {
+        return new StudentSummary(rs.getInt("id"), rs.getString("nome"), rs.getString("curso"));
+    }
+
+    /**
+     * Builds the name index from all the names in the table, with a
+     * single query that loads no students.
+     */
+    public synchronized void buildNameIndex() {
+        PooledConnection con = pool.borrow();
+        PreparedStatement stmt = null;
+        try {
+            stmt = con.prepareStatement("SELECT id, nome FROM " + table());
+            ResultSet rs = stmt.executeQuery();
+            Map<Integer, String> names = new HashMap<Integer, String>();
+            while (rs.next()) {
+                names.put(rs.getInt(1), rs.getString(2));
+            }
+            nameIndex.build(names);
+
+        } catch (SQLException e) {
+            throw new ApplicationException(e.getMessage());
+        } finally {
+            cleanUp(con, stmt);
+            pool.release(con);
+        }
+    }
+
+    @Override
+    protected void saved(Student student) {
+        nameIndex.put(student.getId(), student.getName());
+    }
+
+    @Override
+    protected void deleted(Student student) {
+        nameIndex.remove(student.getId());
+    }
+
+    /**
+     * Finds a page of students with a name that matches a regular
+     * expression, ordered by name.
+     * <p>
+     * The total number of matches is counted for the first page only.
+     *
+     * @param name regular expression to match the name with.
+     * @param token continuation token from the previous page, or null
+     *        for the first page.
+     * @param size maximum number of students in the page.
+     * @return A page of students.
+     */
+    public Page<Student> findPageByName(String name, String token, int size) {
+        return findPage(regexp("a.nome"), new Object[]{name}, "a.nome", token, size);
+    }
+
+    /**
+     * Streams the students with a name that matches a regular expression,
+     * ordered by name.
+     * <p>
+     * Use instead of findByName() when the result may be too large to
+     * keep in memory.
+     *
+     * @param name regular expression to match the name with.
+     * @return A cursor over the students found. Must be closed.
+     */
+    public Cursor<Student> cursorByName(String name) {
+        String query = findStatement(regexp("a.nome") + " ORDER BY a.nome, a.id");
+        return findCursor(query, new String[]{name});
     }
 
     /**
@@ -72,9 +275,7 @@ public class StudentMapper extends DatabaseMapper<Student> {
      * @return the student domain object.
      */
     public Student findByEmail(String email) {
-        String query = findStatement("email = ?");
-        List<Student> list = findMany(query, new String[]{email});
-        return !list.isEmpty() ? list.get(0) : null;
+        return findByUniqueKey("email", email);
     }
 
     /**
@@ -84,17 +285,28 @@ public class StudentMapper extends DatabaseMapper<Student> {
      * @param criteria contents of "WHERE" part of the SQL statement.
      * @return A complete SQL statement string.
      */
+    @Override
     protected String findStatement(String criteria) {
         // We will attempt to load the foreign keys too, to save calls to the db.
-        return "SELECT a.id, a.nome, telefone, email, bolsa, "
-                + "m.id AS idMorada, rua, nr, cod_postal, localidade, "
-                + "c.id AS idCurso, c.nome AS curso"
+        return "SELECT a.id, a.nome, telefone, email, bolsa, a.versao, "
+                + "m.id AS idMorada, rua, nr, cod_postal, localidade, m.versao AS versaoMorada, "
+                + "c.id AS idCurso, c.nome AS curso, c.versao AS versaoCurso"
                 + " FROM " + table() + " AS a"
                 + " INNER JOIN Moradas AS m ON morada = m.id"
                 + " INNER JOIN Cursos  AS c ON a.curso = c.id"
                 + " WHERE " + criteria;
     }
 
+    @Override
+    protected String countStatement(String criteria) {
+        return "SELECT COUNT(*) FROM " + table() + " AS a WHERE " + criteria;
+    }
+
+    @Override
+    protected String idColumn() {
+        return "a.id";
+    }
+
     @Override
     protected String findStatement() {
         return findStatement("a.id = ?");
@@ -117,6 +329,7 @@ public class StudentMapper extends DatabaseMapper<Student> {
         Course course = loadCourse(courseId, rs);
 
         student = new Student(id, name, address, phone, email, scholarship, course);
+        student.setVersion(rs.getInt("versao"));
         student.setAccount(loadAccount(id));
 
         return student;
@@ -135,8 +348,9 @@ public class StudentMapper extends DatabaseMapper<Student> {
     protected Address loadAddress(Integer id, ResultSet rs) throws SQLException {
         AddressMapper addressMapper = MapperRegistry.address();
 
-        if (addressMapper.isLoaded(id)) {
-            return addressMapper.find(id);
+        Address loaded = addressMapper.retrieve(id);
+        if (loaded != null) {
+            return loaded;
         }
 
         String streetAddress = rs.getString("rua");
@@ -146,9 +360,9 @@ public class StudentMapper extends DatabaseMapper<Student> {
 
         Address address = new Address(streetAddress, number, postalCode, city);
         address.setId(id);
+        address.setVersion(rs.getInt("versaoMorada"));
 
-        addressMapper.register(id, address);
-        return address;
+        return addressMapper.registerIfAbsent(id, address);
     }
 
     /**
@@ -164,17 +378,55 @@ public class StudentMapper extends DatabaseMapper<Student> {
     protected Course loadCourse(Integer id, ResultSet rs) throws SQLException {
         CourseMapper courseMapper = MapperRegistry.course();
 
-        if (courseMapper.isLoaded(id)) {
-            return courseMapper.find(id);
+        Course loaded = courseMapper.retrieve(id);
+        if (loaded != null) {
+            return loaded;
         }
 
         Course course = new Course(id, rs.getString("curso"));
-        courseMapper.register(id, course);
-        return course;
+        course.setVersion(rs.getInt("versaoCurso"));
+        return courseMapper.registerIfAbsent(id, course);
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * Accounts missing for any of the students are all inserted at once,
+     * by endLoad(), so there's a single write to the accounts file instead
+     * of one per student.
+     */
+    @Override
+    protected boolean beginLoad() {
+        if (newAccounts.get() != null) {
+            return false;
+        }
+        newAccounts.set(new ArrayList<Account>());
+        return true;
+    }
+
+    /** Inserts the accounts created while loading the students. */
+    @Override
+    protected void endLoad(boolean failed) {
+        List<Account> created = newAccounts.get();
+        newAccounts.remove();
+        if (created.isEmpty()) {
+            return;
+        }
+        try {
+            MapperRegistry.account().insertAll(created);
+        } catch (RuntimeException e) {
+            if (!failed) {
+                throw e;
+            }
+            // the exception that stopped loading is the one to report
+        }
     }
 
     /**
      * Loads an Account domain object from the student id.
+     * <p>
+     * If missing, a new account is created. While loading many students,
+     * it's inserted along with the others at the end, by endLoad().
      *
      * @param id the student id number.
      * @return The corresponding Account object for the id.
@@ -183,7 +435,12 @@ public class StudentMapper extends DatabaseMapper<Student> {
         Account account = MapperRegistry.account().find(id);
         if (account == null) {
             account = createNewAccount(id);
-            MapperRegistry.account().insert(account);
+            List<Account> pending = newAccounts.get();
+            if (pending != null) {
+                pending.add(account);
+            } else {
+                MapperRegistry.account().insert(account);
+            }
         }
         return account;
     }
@@ -215,10 +472,10 @@ public class StudentMapper extends DatabaseMapper<Student> {
         if (courseId == null) {
             courseId = MapperRegistry.course().insert(student.getCourse());
         }
-        Integer addressId = student.getAddress().getId();
-        if (addressId == null) {
-            addressId = MapperRegistry.address().insert(student.getAddress());
+        if (student.getAddress().getId() == null) {
+            student.setAddress(MapperRegistry.address().intern(student.getAddress()));
         }
+        Integer addressId = student.getAddress().getId();
         stmt.setInt(1, student.getId());
         stmt.setString(2, student.getName());
         stmt.setInt(3, addressId);
@@ -237,23 +494,275 @@ public class StudentMapper extends DatabaseMapper<Student> {
         return id;
     }
 
+    /**
+     * Saves many new students at once, for bulk enrollment.
+     * <p>
+     * New addresses are interned in one batch, so students sharing an address
+     * refer to the same one, and the students inserted in another, in the
+     * same transaction. Accounts are then created for all of them
+     * with a single write to the account store.
+     *
+     * @param students new students, with id already set.
+     * @return A list with the ids of the inserted students, in order.
+     */
+    @Override
+    public List<Integer> insertAll(Collection<Student> students) {
+        List<Address> addresses = new ArrayList<Address>(students.size());
+        for (Student student : students) {
+            addresses.add(student.getAddress());
+        }
+
+        List<Integer> ids;
+        PooledConnection con = pool.borrow();
+        boolean transaction = false;
+        try {
+            transaction = con.begin();
+            List<Address> interned = MapperRegistry.address().internAll(addresses);
+            int i = 0;
+            for (Student student : students) {
+                student.setAddress(interned.get(i++));
+            }
+            ids = super.insertAll(students);
+            if (transaction) {
+                con.commit();
+            }
+        } catch (SQLException e) {
+            if (transaction) {
+                con.rollback();
+            }
+            throw new ApplicationException(e.getMessage());
+        } catch (RuntimeException e) {
+            if (transaction) {
+                con.rollback();
+            }
+            throw e;
+        } finally {
+            pool.release(con);
+        }
+
+        List<Account> newAccounts = new ArrayList<Account>(students.size());
+        for (Student student : students) {
+            Account account = createNewAccount(student.getId());
+            student.setAccount(account);
+            newAccounts.add(account);
+        }
+        MapperRegistry.account().insertAll(newAccounts);
+
+        return ids;
+    }
+
+    /**
+     * Moves many students to the historic of old students at once, for
+     * closing accounts at the end of the year.
+     * <p>
+     * Students are copied to the old students table and deleted from this
+     * one with a statement of each for every chunk of them, all in one
+     * transaction. They're copied as stored, so unsaved changes are lost.
+     * Accounts are left alone. The loaded students move from this mapper
+     * to the old students one once the transaction commits.
+     *
+     * @param students existing students.
+     * @return The number of students moved.
+     * @throws ApplicationException if some of the students no longer
+     *         exist. Nothing is moved.
+     */
+    public int archive(Collection<Student> students) {
+        final OldStudentMapper oldStudents = MapperRegistry.oldStudent();
+        final List<Student> archived = new ArrayList<Student>(students);
+        List<Integer> ids = new ArrayList<Integer>(archived.size());
+        for (Student student : archived) {
+            ids.add(student.getId());
+        }
+        if (ids.isEmpty()) {
+            return 0;
+        }
+
+        String columns = "id, nome, morada, telefone, email, bolsa, curso, versao";
+        PooledConnection con = pool.borrow();
+        PreparedStatement stmt = null;
+        boolean transaction = false;
+        try {
+            transaction = con.begin();
+            int moved = 0;
+            for (int from = 0; from < ids.size(); from += IN_CHUNK_SIZE) {
+                List<Integer> chunk = ids.subList(from, Math.min(from + IN_CHUNK_SIZE, ids.size()));
+
+                // padding repeats an id, which doesn't change the rows matched
+                Object[] parameters = paddedIds(chunk);
+                String in = inCriteria("id", parameters.length);
+
+                stmt = con.prepareStatement("INSERT INTO " + oldStudents.table() + " (" + columns + ")"
+                        + " SELECT " + columns + " FROM " + table() + " WHERE " + in);
+                for (int i = 0; i < parameters.length; i++) {
+                    stmt.setObject(i+1, parameters[i]);
+                }
+                int copied = stmt.executeUpdate();
+                cleanUp(con, stmt);
+
+                stmt = con.prepareStatement("DELETE FROM " + table() + " WHERE " + in);
+                for (int i = 0; i < parameters.length; i++) {
+                    stmt.setObject(i+1, parameters[i]);
+                }
+                int deleted = stmt.executeUpdate();
+                cleanUp(con, stmt);
+                stmt = null;
+
+                if (copied != chunk.size() || deleted != chunk.size()) {
+                    throw new ApplicationException("Alguns dos alunos já não existem.");
+                }
+                moved += deleted;
+            }
+
+            con.afterCommit(new Runnable() {
+                @Override
+                public void run() {
+                    forgetAll(archived);
+                    oldStudents.clearQueryCache();
+                    for (Student student : archived) {
+                        oldStudents.register(student.getId(), student);
+                        oldStudents.saved(student);
+                    }
+                }
+            });
+            if (transaction) {
+                con.commit();
+            }
+            return moved;
+
+        } catch (SQLException e) {
+            if (transaction) {
+                con.rollback();
+            }
+            throw new ApplicationException(e.getMessage());
+        } catch (RuntimeException e) {
+            if (transaction) {
+                con.rollback();
+            }
+            throw e;
+        } finally {
+            cleanUp(con, stmt);
+            pool.release(con);
+        }
+    }
+
+    /**
+     * Updates a student, along with its address, course and account.
+     * <p>
+     * Changes are committed as a unit of work, so only what actually
+     * changed is written, in one transaction, and the account store is
+     * saved at most once. If a unit of work is already in progress, the
+     * student just joins it.
+     * <p>
+     * A new address (e.g., when a student moves) is interned: an identical
+     * stored one is referred to instead, if there's one, or else it's
+     * inserted as part of the unit of work, so that nothing is left behind
+     * if the rest fails.
+     *
+     * @param student existing student.
+     * @return true if successful, or registered in the unit of work in
+     *         progress; false if the account couldn't be saved, in which
+     *         case nothing is.
+     * @throws ConcurrencyException if the student, or its account, was
+     *         changed by someone else since loaded.
+     */
+    @Override
+    public boolean update(Student student) {
+        UnitOfWork uow = UnitOfWork.getCurrent();
+        boolean joined = uow != null;
+        if (!joined) {
+            uow = UnitOfWork.begin(pool);
+        }
+        try {
+            AddressMapper addresses = MapperRegistry.address();
+            if (student.getAddress().getId() == null) {
+                Address found = addresses.findIdentical(student.getAddress());
+                if (found != null) {
+                    student.setAddress(found);
+                } else {
+                    uow.registerNew(addresses, student.getAddress());
+                }
+            }
+            uow.registerDirty(addresses, student.getAddress());
+            uow.registerDirty(MapperRegistry.course(), student.getCourse());
+            uow.registerDirty(this, student);
+
+            if (student.getAccount() != null && !MapperRegistry.account().update(student.getAccount())) {
+                return false;
+            }
+            if (!joined) {
+                uow.commit();
+            }
+            return true;
+
+        } finally {
+            if (!joined) {
+                uow.end();
+            }
+        }
+    }
+
+    /**
+     * Updates many students at once.
+     * <p>
+     * Addresses, courses and students are each updated in one batch, in
+     * the same transaction. Accounts are then saved with a single write to
+     * the account store.
+     *
+     * @param students existing students.
+     * @return The number of students updated.
+     */
+    @Override
+    public int updateAll(Collection<Student> students) {
+        List<Address> addresses = new ArrayList<Address>(students.size());
+        Set<Course> courses = new LinkedHashSet<Course>();
+        List<Account> accounts = new ArrayList<Account>(students.size());
+        for (Student student : students) {
+            addresses.add(student.getAddress());
+            courses.add(student.getCourse());
+            if (student.getAccount() != null) {
+                accounts.add(student.getAccount());
+            }
+        }
+
+        int updated;
+        PooledConnection con = pool.borrow();
+        boolean transaction = false;
+        try {
+            transaction = con.begin();
+            MapperRegistry.address().updateAll(addresses);
+            MapperRegistry.course().updateAll(courses);
+            updated = super.updateAll(students);
+            if (transaction) {
+                con.commit();
+            }
+        } catch (SQLException e) {
+            if (transaction) {
+                con.rollback();
+            }
+            throw new ApplicationException(e.getMessage());
+        } catch (RuntimeException e) {
+            if (transaction) {
+                con.rollback();
+            }
+            throw e;
+        } finally {
+            pool.release(con);
+        }
+
+        MapperRegistry.account().updateAll(accounts);
+        return updated;
+    }
+
     @Override
     protected String updateStatement() {
         return "UPDATE " + table() + " SET "
                 + "nome = ?, morada = ?, telefone = ?, "
-                + "email = ?, bolsa = ?, curso = ? "
-                + "WHERE id = ?";
+                + "email = ?, bolsa = ?, curso = ?, versao = versao + 1 "
+                + "WHERE id = ? AND versao = ?";
     }
 
     @Override
     protected void doUpdate(Student student, PreparedStatement stmt) throws SQLException {
-        MapperRegistry.address().update(student.getAddress());
-        MapperRegistry.course().update(student.getCourse());
-
-        if (student.getAccount() != null) {
-            MapperRegistry.account().update(student.getAccount());
-        }
-
         stmt.setString(1, student.getName());
         stmt.setInt(2, student.getAddress().getId());
         stmt.setString(3, student.getPhone().toString());
@@ -261,5 +770,18 @@ public class StudentMapper extends DatabaseMapper<Student> {
         stmt.setInt(5, student.hasScholarship() ? 1 : 0 );
         stmt.setInt(6, student.getCourse().getId());
         stmt.setInt(7, student.getId());
+        stmt.setInt(8, student.getVersion());
+    }
+
+    @Override
+    protected Object[] snapshot(Student student) {
+        return new Object[] {
+            student.getName(),
+            student.getAddress().getId(),
+            student.getPhone(),
+            student.getEmail(),
+            Boolean.valueOf(student.hasScholarship()),
+            student.getCourse().getId()
+        };
     }
 }
@@ -214,6 +214,19 @@ public abstract class AbstractProperties extends FileAccess {
         return get(key);
     }
 
+    /**
+     * Same as getString, with a fallback value for properties missing from
+     * older configuration files.
+     *
+     * @param key the property key.
+     * @param defaultValue the value to return if the property isn't set.
+     * @return the string value corresponding to the key, or defaultValue.
+     */
+    public String getString(String key, String defaultValue) {
+        String value = get(key);
+        return value != null ? value : defaultValue;
+    }
+
     /**
      * Similar to get, but using an int value.
      *
@@ -224,6 +237,19 @@ public abstract class AbstractProperties extends FileAccess {
         return Integer.parseInt(get(key));
     }
 
+    /**
+     * Similar to get, but using an int value, with a fallback value for
+     * properties missing from older configuration files.
+     *
+     * @param key the property key.
+     * @param defaultValue the value to return if the property isn't set.
+     * @return the int value corresponding to the key, or defaultValue.
+     */
+    public int getInt(String key, int defaultValue) {
+        String value = get(key);
+        return value != null ? Integer.parseInt(value.trim()) : defaultValue;
+    }
+
     /**
      * Similar to get, but using a double value.
      *
@@ -0,0 +1,283 @@
+
+/**
+ * Cafeteria management application
+ * Copyright (c) 2011, 2012 Helder Correia
+ * 
+ * This file is part of Cafeteria.
+ * 
+ * Cafeteria is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * Cafeteria is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Cafeteria.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package pt.uac.cafeteria.model.persistence.abstracts;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import pt.uac.cafeteria.model.ApplicationException;
+import pt.uac.cafeteria.model.Config;
+
+/**
+ * Runs the operations of a data mapper in the background, so that the
+ * user interface doesn't freeze waiting for the database or disk.
+ * <p>
+ * Each operation returns right away with a <code>Future</code>, which can
+ * be used to wait for the result or to cancel it. Optionally, a callback
+ * is called when it's done. Several lookups can be issued in parallel and
+ * then combined:
+ * <pre>
+ *   Future&lt;Student&gt; student = new AsyncMapper&lt;Student, Integer&gt;(MapperRegistry.student()).findAsync(id);
+ *   Future&lt;Menu&gt; menu = new AsyncMapper&lt;Menu, Day&gt;(MapperRegistry.menu()).findAsync(day);
+ *   show(student.get(), menu.get());
+ * </pre>
+ * All mappers share a small pool of daemon threads. Only a limited number
+ * of operations may be waiting to run, after which new ones are refused
+ * with an <code>ApplicationException</code>, instead of piling up.
+ * <p>
+ * Callbacks run in the background thread. Swing components must only be
+ * touched from the event dispatch thread, so use
+ * <code>SwingUtilities.invokeLater()</code> from the callback to update them.
+ *
+ * @param <T> the domain object type.
+ * @param <I> the domain object id type.
+ */
+public class AsyncMapper<T, I> {
+
+    /**
+     * Receives the outcome of a background operation.
+     *
+     * @param <V> the result type.
+     */
+    public interface Callback<V> {
+
+        /**
+         * Called when the operation is successful.
+         *
+         * @param result the operation result.
+         */
+        void done(V result);
+
+        /**
+         * Called when the operation fails. Not called if cancelled.
+         *
+         * @param e the error.
+         */
+        void failed(Throwable e);
+    }
+
+    /** Runs operations in the background, shared by all mappers. */
+    private static ThreadPoolExecutor executor;
+
+    /** The mapper to run operations on. */
+    private final DataMapper<T, I> mapper;
+
+    /**
+     * Creates a new AsyncMapper instance.
+     *
+     * @param mapper the mapper to run operations on.
+     */
+    public AsyncMapper(DataMapper<T, I> mapper) {
+        this.mapper = mapper;
+    }
+
+    /** Gets the mapper operations are run on. */
+    public DataMapper<T, I> getMapper() {
+        return mapper;
+    }
+
+    /**
+     * Finds a domain object in the background.
+     *
+     * @param id the domain object id.
+     * @return The pending result: the domain object, or null if not found.
+     */
+    public Future<T> findAsync(I id) {
+        return findAsync(id, null);
+    }
+
+    /**
+     * Finds a domain object in the background.
+     *
+     * @param id the domain object id.
+     * @param callback called with the result, or null.
+     * @return The pending result: the domain object, or null if not found.
+     */
+    public Future<T> findAsync(final I id, Callback<T> callback) {
+        return submit(new Callable<T>() {
+            @Override
+            public T call() {
+                return mapper.find(id);
+            }
+        }, callback);
+    }
+
+    /**
+     * Saves a new domain object in the background.
+     *
+     * @param subject the domain object.
+     * @return The pending result: the domain object id.
+     */
+    public Future<I> insertAsync(T subject) {
+        return insertAsync(subject, null);
+    }
+
+    /**
+     * Saves a new domain object in the background.
+     *
+     * @param subject the domain object.
+     * @param callback called with the result, or null.
+     * @return The pending result: the domain object id.
+     */
+    public Future<I> insertAsync(final T subject, Callback<I> callback) {
+        return submit(new Callable<I>() {
+            @Override
+            public I call() {
+                return mapper.insert(subject);
+            }
+        }, callback);
+    }
+
+    /**
+     * Updates a domain object in the background.
+     *
+     * @param subject the existing domain object.
+     * @return The pending result: true if updated; false otherwise.
+     */
+    public Future<Boolean> updateAsync(T subject) {
+        return updateAsync(subject, null);
+    }
+
+    /**
+     * Updates a domain object in the background.
+     *
+     * @param subject the existing domain object.
+     * @param callback called with the result, or null.
+     * @return The pending result: true if updated; false otherwise.
+     */
+    public Future<Boolean> updateAsync(final T subject, Callback<Boolean> callback) {
+        return submit(new Callable<Boolean>() {
+            @Override
+            public Boolean call() {
+                return Boolean.valueOf(mapper.update(subject));
+            }
+        }, callback);
+    }
+
+    /**
+     * Deletes a domain object in the background.
+     *
+     * @param subject the existing domain object.
+     * @return The pending result: true if deleted; false otherwise.
+     */
+    public Future<Boolean> deleteAsync(T subject) {
+        return deleteAsync(subject, null);
+    }
+
+    /**
+     * Deletes a domain object in the background.
+     *
+     * @param subject the existing domain object.
+     * @param callback called with the result, or null.
+     * @return The pending result: true if deleted; false otherwise.
+     */
+    public Future<Boolean> deleteAsync(final T subject, Callback<Boolean> callback) {
+        return submit(new Callable<Boolean>() {
+            @Override
+            public Boolean call() {
+                return Boolean.valueOf(mapper.delete(subject));
+            }
+        }, callback);
+    }
+
+    /**
+     * Runs any task in the background, in the same pool as the mappers.
+     * <p>
+     * Useful to combine several mapper calls that depend on each other
+     * into one background operation.
+     *
+     * @param task the task to run.
+     * @param callback called with the result, or null.
+     * @return The pending result.
+     * @throws ApplicationException if too many operations are waiting to run.
+     */
+    public static <V> Future<V> submit(Callable<V> task, final Callback<V> callback) {
+        FutureTask<V> future = new FutureTask<V>(task) {
+            @Override
+            protected void done() {
+                if (callback == null || isCancelled()) {
+                    return;
+                }
+                try {
+                    callback.done(get());
+                } catch (ExecutionException e) {
+                    callback.failed(e.getCause());
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } catch (CancellationException e) {
+                    // do nothing (cancelled callers don't want the result)
+                }
+            }
+        };
+        try {
+            getExecutor().execute(future);
+        } catch (RejectedExecutionException e) {
+            throw new ApplicationException("Demasiados pedidos pendentes. Tente novamente.");
+        }
+        return future;
+    }
+
+    /**
+     * Gets the shared background threads, creating them the first time.
+     * Pool and queue sizes are taken from Config.
+     */
+    private static synchronized ThreadPoolExecutor getExecutor() {
+        if (executor == null || executor.isShutdown()) {
+            Config config = Config.getInstance();
+            int threads = Math.max(1, config.getInt(Config.ASYNC_THREADS, 4));
+            int queued = Math.max(1, config.getInt(Config.ASYNC_MAX_PENDING, 100));
+
+            executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                    new ArrayBlockingQueue<Runnable>(queued), new ThreadFactory() {
+                        private final AtomicInteger count = new AtomicInteger();
+
+                        @Override
+                        public Thread newThread(Runnable r) {
+                            Thread thread = new Thread(r, "mapper-async-" + count.incrementAndGet());
+                            thread.setDaemon(true);
+                            return thread;
+                        }
+                    });
+            executor.allowCoreThreadTimeOut(true);
+        }
+        return executor;
+    }
+
+    /**
+     * Stops the background threads. Operations already submitted are run,
+     * but new ones start a new pool.
+     */
+    public static synchronized void shutdown() {
+        if (executor != null) {
+            executor.shutdown();
+            executor = null;
+        }
+    }
+}
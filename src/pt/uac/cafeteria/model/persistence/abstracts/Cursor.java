@@ -0,0 +1,174 @@
+
+/**
+ * Cafeteria management application
+ * Copyright (c) 2011, 2012 Helder Correia
+ * 
+ * This file is part of Cafeteria.
+ * 
+ * Cafeteria is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * Cafeteria is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Cafeteria.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package pt.uac.cafeteria.model.persistence.abstracts;
+
+import java.io.Closeable;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.NoSuchElementException;
+import pt.uac.cafeteria.model.ApplicationException;
+import pt.uac.cafeteria.model.domain.DomainObject;
+import pt.uac.cafeteria.model.persistence.jdbc.ConnectionPool;
+import pt.uac.cafeteria.model.persistence.jdbc.PooledConnection;
+
+/**
+ * Iterates over the results of a query, loading domain objects a few rows
+ * at a time, only as they're asked for.
+ * <p>
+ * Unlike <code>findMany</code>, which loads the whole result into a list,
+ * rows are streamed from the database as the cursor advances, so scans over
+ * large tables run in constant memory.
+ * <p>
+ * A cursor holds a database connection of its own until closed. It closes
+ * itself when the last row is read, but should always be closed in a
+ * <code>finally</code> block in case iteration stops early:
+ * <pre>
+ *   Cursor&lt;Student&gt; students = MapperRegistry.oldStudent().cursorAll();
+ *   try {
+ *       for (Student student : students) {
+ *           ...
+ *       }
+ *   } finally {
+ *       students.close();
+ *   }
+ * </pre>
+ *
+ * @param <T> the domain object type.
+ */
+public class Cursor<T extends DomainObject<Integer>> implements Iterator<T>, Iterable<T>, Closeable {
+
+    /** Number of rows loaded at a time, as a single batch. */
+    private static final int CHUNK_SIZE = 100;
+
+    /** Mapper that loads each row. */
+    private final DatabaseMapper<T> mapper;
+
+    /** Pool where the connection goes back to when done. */
+    private final ConnectionPool pool;
+
+    /** Connection dedicated to this cursor. */
+    private final PooledConnection con;
+
+    /** Statement the results came from. */
+    private final Statement stmt;
+
+    /** Results being streamed. */
+    private final ResultSet rs;
+
+    /** Next objects to return, already loaded by hasNext(). */
+    private final LinkedList<T> loaded = new LinkedList<T>();
+
+    /** Has the cursor been closed? */
+    private boolean closed = false;
+
+    /**
+     * Creates a new Cursor instance.
+     *
+     * @param mapper the mapper that loads each row.
+     * @param pool the pool where the connection goes back to when done.
+     * @param con a connection dedicated to this cursor.
+     * @param stmt the executed statement.
+     * @param rs the results to iterate over.
+     */
+    Cursor(DatabaseMapper<T> mapper, ConnectionPool pool, PooledConnection con,
+            Statement stmt, ResultSet rs) {
+        this.mapper = mapper;
+        this.pool = pool;
+        this.con = con;
+        this.stmt = stmt;
+        this.rs = rs;
+    }
+
+    @Override
+    public Iterator<T> iterator() {
+        return this;
+    }
+
+    /**
+     * Checks if there are more rows, loading the next ones if needed.
+     * <p>
+     * Rows are loaded in chunks, so that mappers can batch the work done
+     * while loading them (see DatabaseMapper.beginLoad()).
+     *
+     * @return true if there are more rows; false otherwise.
+     * @throws ApplicationException in case of SQL error.
+     */
+    @Override
+    public boolean hasNext() {
+        if (!loaded.isEmpty()) {
+            return true;
+        }
+        if (closed) {
+            return false;
+        }
+        try {
+            List<T> chunk = mapper.loadSome(rs, CHUNK_SIZE);
+            loaded.addAll(chunk);
+            if (chunk.size() < CHUNK_SIZE) {
+                close();
+            }
+            return !loaded.isEmpty();
+
+        } catch (SQLException e) {
+            close();
+            throw new ApplicationException(e.getMessage());
+        }
+    }
+
+    @Override
+    public T next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        return loaded.removeFirst();
+    }
+
+    /** Not supported. Use the mapper to delete objects. */
+    @Override
+    public void remove() {
+        throw new UnsupportedOperationException();
+    }
+
+    /**
+     * Stops streaming and gives the connection back to the pool.
+     * Nothing happens if already closed.
+     */
+    @Override
+    public void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            rs.close();
+            stmt.close();
+        } catch (SQLException e) {
+            // do nothing (the connection is reset or discarded on release)
+        } finally {
+            pool.release(con);
+        }
+    }
+}
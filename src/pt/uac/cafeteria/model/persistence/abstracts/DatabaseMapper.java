@@ -21,17 +21,36 @@
 
 package pt.uac.cafeteria.model.persistence.abstracts;
 
-import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
 import pt.uac.cafeteria.model.ApplicationException;
+import pt.uac.cafeteria.model.ConcurrencyException;
+import pt.uac.cafeteria.model.Config;
 import pt.uac.cafeteria.model.domain.DomainObject;
+import pt.uac.cafeteria.model.domain.Versioned;
+import pt.uac.cafeteria.model.persistence.cache.CacheStatistics;
+import pt.uac.cafeteria.model.persistence.cache.IdentityMap;
+import pt.uac.cafeteria.model.persistence.cache.QueryCache;
+import pt.uac.cafeteria.model.persistence.jdbc.ConnectionPool;
+import pt.uac.cafeteria.model.persistence.jdbc.PooledConnection;
 
 /**
  * Abstraction for database based data mappers.
@@ -44,32 +63,326 @@ import pt.uac.cafeteria.model.domain.DomainObject;
  * because it allows one mapper to load objects associated to it but managed
  * by other mappers, in only one call. It may also be useful to force the
  * mapper to refresh a load from the database in some cases.
+ * <p>
+ * Each operation borrows a connection from a <code>ConnectionPool</code>
+ * and gives it back when done, so mappers don't wait in line for a single
+ * shared connection.
+ * <p>
+ * Mappers are shared by all threads. Loaded objects are registered
+ * atomically, and when several threads load the same id at the same time,
+ * only one of them maps it while the others wait for that same object.
+ * <p>
+ * Unique columns other than the id can be declared with addUniqueKey(),
+ * so that finding by them goes through an in-memory index to the identity
+ * map, without any SQL when the object is already loaded.
+ * <p>
+ * Mappers that implement snapshot() get dirty checking: the state of each
+ * object is recorded when it's loaded or saved, and updates to objects that
+ * haven't changed since don't go to the database.
+ * <p>
+ * Objects that implement <code>Versioned</code> are saved with optimistic
+ * locking. Mappers for them must increment the version column in
+ * updateStatement(), and only match the row with the version the object
+ * was loaded with. When no row matches, someone else changed (or deleted)
+ * it in the meantime, and a <code>ConcurrencyException</code> is thrown.
  * 
  * @param <T> the domain object type.
  */
 public abstract class DatabaseMapper<T extends DomainObject<Integer>>
                 implements DataMapper<T, Integer>, Loader<T, Integer> {
 
+    /** Maximum number of ids in the IN list of a single query. */
+    protected static final int IN_CHUNK_SIZE = 512;
+
     /** Map with already loaded instances of the domain object. */
-    protected Map<Integer, T> loadedMap = new HashMap<Integer, T>();
+    protected final IdentityMap<Integer, T> loadedMap;
 
-    /** Database connection object. */
-    protected final Connection DB;
+    /** Ids found by recent queries, invalidated on every write. */
+    protected final QueryCache queryCache;
+
+    /** Pool of database connections. */
+    protected final ConnectionPool pool;
+
+    /** Objects being mapped from a result set right now, by id. */
+    private final ConcurrentMap<Integer, FutureTask<T>> loading =
+            new ConcurrentHashMap<Integer, FutureTask<T>>();
+
+    /** Unique keys indexed in memory, by name. */
+    private final Map<String, UniqueKey<T>> uniqueKeys = new LinkedHashMap<String, UniqueKey<T>>();
+
+    /** Persisted state of each known object, as of its last load or save. */
+    private final Map<T, Object[]> snapshots =
+            Collections.synchronizedMap(new WeakHashMap<T, Object[]>());
 
     /**
      * Creates a new instance of the mapper.
      *
-     * @param con a database connection object.
+     * @param pool a pool of database connections.
+     */
+    public DatabaseMapper(ConnectionPool pool) {
+        this.pool = pool;
+        this.loadedMap = createIdentityMap();
+        this.queryCache = createQueryCache();
+        loadedMap.setEvictionListener(new IdentityMap.EvictionListener<Integer>() {
+            @Override
+            public void evicted(Integer id) {
+                for (UniqueKey<T> key : uniqueKeys.values()) {
+                    key.remove(id);
+                }
+            }
+        });
+    }
+
+    /**
+     * Creates the map that keeps loaded instances in memory.
+     * <p>
+     * The strategy and bounds are taken from Config, so that memory stays
+     * flat in long running processes. Override for mappers that need a
+     * different strategy. Called from the constructor, before the fields
+     * of subclasses are set, so overrides must not depend on them.
+     *
+     * @return A new, empty identity map.
+     */
+    protected IdentityMap<Integer, T> createIdentityMap() {
+        Config config = Config.getInstance();
+        return IdentityMap.create(
+            config.getString(Config.IDENTITY_MAP, "lru"),
+            config.getInt(Config.IDENTITY_MAP_SIZE, 10000),
+            config.getInt(Config.IDENTITY_MAP_TTL, 600) * 1000L
+        );
+    }
+
+    /**
+     * Creates the cache of query results, with bounds taken from Config.
+     * Called from the constructor, like createIdentityMap().
+     *
+     * @return A new, empty query cache.
      */
-    public DatabaseMapper(Connection con) {
-        this.DB = con;
+    protected QueryCache createQueryCache() {
+        Config config = Config.getInstance();
+        return new QueryCache(
+            config.getInt(Config.QUERY_CACHE_SIZE, 1000),
+            config.getInt(Config.QUERY_CACHE_TTL, 60) * 1000L
+        );
+    }
+
+    /** Gets the hit, miss and eviction counters of the query cache. */
+    public CacheStatistics getQueryCacheStatistics() {
+        return queryCache.getStatistics();
     }
 
+    /**
+     * Forgets all cached query results, e.g., after changing the table
+     * other than through this mapper.
+     */
+    public void clearQueryCache() {
+        queryCache.invalidate();
+    }
+
+    /** Gets the hit, miss and eviction counters of the loaded instances. */
+    public CacheStatistics getCacheStatistics() {
+        return loadedMap.getStatistics();
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * The object is assumed to be in sync with the database, and its
+     * current state is recorded for dirty checking.
+     */
     @Override
     public T register(Integer id, T subject) {
+        markClean(subject);
+        indexKeys(subject);
         return loadedMap.put(id, subject);
     }
 
+    /**
+     * Declares a unique key to index in memory. Meant to be called from
+     * the constructor of subclasses.
+     *
+     * @param name name to find by the key with.
+     * @param key the unique key.
+     */
+    protected void addUniqueKey(String name, UniqueKey<T> key) {
+        uniqueKeys.put(name, key);
+    }
+
+    /** Indexes the unique keys of a loaded or saved domain object. */
+    private void indexKeys(T subject) {
+        for (UniqueKey<T> key : uniqueKeys.values()) {
+            key.put(subject);
+        }
+    }
+
+    /**
+     * Finds a domain object by a unique key.
+     * <p>
+     * If the key is in the index, and the object with that id still has
+     * the key, it's returned without a query when already loaded. Otherwise
+     * the database is queried by the key column.
+     *
+     * @param name the name the key was declared with.
+     * @param value the key value.
+     * @return The domain object, or null if not found.
+     * @throws IllegalArgumentException if no key was declared with that name.
+     */
+    protected T findByUniqueKey(String name, String value) {
+        UniqueKey<T> key = uniqueKeys.get(name);
+        if (key == null) {
+            throw new IllegalArgumentException("Unknown unique key: " + name);
+        }
+        Integer id = key.lookup(value);
+        if (id != null) {
+            T subject = find(id);
+            if (subject != null && key.matches(subject, value)) {
+                return subject;
+            }
+        }
+        List<T> list = findCached(findStatement(key.getColumn() + " = ?"), new Object[]{value});
+        return !list.isEmpty() ? list.get(0) : null;
+    }
+
+    /**
+     * Takes a snapshot of the persisted fields of a domain object, for
+     * dirty checking.
+     * <p>
+     * Values must be comparable with <code>equals()</code>, and in the same
+     * order every time. Foreign keys should be recorded as the associated
+     * object's id. By default there's no snapshot, which means an object is
+     * always considered dirty.
+     *
+     * @param subject the domain object.
+     * @return The values of the persisted fields, or null if not supported.
+     */
+    protected Object[] snapshot(T subject) {
+        return null;
+    }
+
+    /**
+     * Checks if a domain object has changed since it was last loaded or saved.
+     *
+     * @param subject the domain object.
+     * @return true if it needs to be saved; false otherwise.
+     */
+    public boolean isDirty(T subject) {
+        if (subject.getId() == null) {
+            return true;
+        }
+        Object[] saved = snapshots.get(subject);
+        return saved == null || !Arrays.equals(saved, snapshot(subject));
+    }
+
+    /** Records the current state of a domain object as persisted. */
+    void markClean(T subject) {
+        Object[] state = snapshot(subject);
+        if (state != null) {
+            snapshots.put(subject, state);
+        }
+    }
+
+    /** Forgets the persisted state of a domain object, so it's saved next time. */
+    void markDirty(T subject) {
+        snapshots.remove(subject);
+    }
+
+    /** Sets the version of a newly inserted object, if versioned. */
+    private static void firstVersion(Object subject) {
+        if (subject instanceof Versioned) {
+            ((Versioned) subject).setVersion(0);
+        }
+    }
+
+    /** Increments the version of a saved object, if versioned. */
+    private static void nextVersion(Object subject) {
+        if (subject instanceof Versioned) {
+            Versioned versioned = (Versioned) subject;
+            versioned.setVersion(versioned.getVersion() + 1);
+        }
+    }
+
+    /** Gets the ids of some domain objects, in order. */
+    private static Integer[] idsOf(List<? extends DomainObject<Integer>> subjects) {
+        Integer[] ids = new Integer[subjects.size()];
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = subjects.get(i).getId();
+        }
+        return ids;
+    }
+
+    /** Gets the versions of some domain objects, in order (0 if not versioned). */
+    private static int[] versionsOf(List<?> subjects) {
+        int[] versions = new int[subjects.size()];
+        for (int i = 0; i < versions.length; i++) {
+            if (subjects.get(i) instanceof Versioned) {
+                versions[i] = ((Versioned) subjects.get(i)).getVersion();
+            }
+        }
+        return versions;
+    }
+
+    /**
+     * Keeps track of saved domain objects: registers them, records their
+     * state for dirty checking and indexes their keys, then calls saved().
+     * <p>
+     * When the save is part of a transaction in progress, this waits for
+     * it to commit, so that nothing is kept of rows rolled back with it.
+     * If it rolls back instead, the objects get back the ids and versions
+     * they had before the save, and are saved again next time.
+     *
+     * @param con the connection the objects were saved with.
+     * @param subjects the saved domain objects, with new ids and versions.
+     * @param ids the ids of the objects before the save.
+     * @param versions the versions of the objects before the save.
+     */
+    private void afterSave(PooledConnection con, final List<T> subjects,
+            final Integer[] ids, final int[] versions) {
+        queryCache.invalidate();
+        if (!con.inTransaction()) {
+            recordSaved(subjects);
+            return;
+        }
+        con.afterCommit(new Runnable() {
+            @Override
+            public void run() {
+                queryCache.invalidate();
+                recordSaved(subjects);
+            }
+        });
+        con.afterRollback(new Runnable() {
+            @Override
+            public void run() {
+                queryCache.invalidate();
+                for (int i = 0; i < ids.length; i++) {
+                    T subject = subjects.get(i);
+                    subject.setId(ids[i]);
+                    if (subject instanceof Versioned) {
+                        ((Versioned) subject).setVersion(versions[i]);
+                    }
+                }
+            }
+        });
+    }
+
+    /** Registers saved domain objects, and calls saved() for each. */
+    private void recordSaved(List<T> subjects) {
+        for (T subject : subjects) {
+            register(subject.getId(), subject);
+            saved(subject);
+        }
+    }
+
+    @Override
+    public T registerIfAbsent(Integer id, T subject) {
+        T existing = loadedMap.putIfAbsent(id, subject);
+        if (existing != null) {
+            return existing;
+        }
+        markClean(subject);
+        indexKeys(subject);
+        return subject;
+    }
+
     @Override
     public boolean isLoaded(Integer id) {
         return loadedMap.containsKey(id);
@@ -105,9 +418,10 @@ public abstract class DatabaseMapper<T extends DomainObject<Integer>>
         if (result != null) {
             return result;
         }
+        PooledConnection con = pool.borrow();
         PreparedStatement findStatement = null;
         try {
-            findStatement = DB.prepareStatement(findStatement());
+            findStatement = con.prepareStatement(findStatement());
             findStatement.setInt(1, id.intValue());
 
             ResultSet rs = findStatement.executeQuery();
@@ -120,15 +434,120 @@ public abstract class DatabaseMapper<T extends DomainObject<Integer>>
         } catch (SQLException e) {
             throw new ApplicationException(e.getMessage());
         } finally {
-            cleanUp(findStatement);
+            cleanUp(con, findStatement);
+            pool.release(con);
+        }
+    }
+
+    /**
+     * Finds many domain objects from their ids.
+     * <p>
+     * Objects already loaded are served from memory. The rest are loaded
+     * with as few <code>WHERE id IN (...)</code> queries as possible, instead
+     * of one query per id.
+     *
+     * @param ids domain object ids.
+     * @return A list of the domain objects found, in the same order as
+     *         <code>ids</code>. Ids not found are left out.
+     */
+    public List<T> findAll(Collection<Integer> ids) {
+        Map<Integer, T> found = new HashMap<Integer, T>();
+        Set<Integer> missing = new LinkedHashSet<Integer>();
+        for (Integer id : ids) {
+            T loaded = retrieve(id);
+            if (loaded != null) {
+                found.put(id, loaded);
+            } else {
+                missing.add(id);
+            }
         }
+
+        List<Integer> chunk = new ArrayList<Integer>(IN_CHUNK_SIZE);
+        for (Integer id : missing) {
+            chunk.add(id);
+            if (chunk.size() == IN_CHUNK_SIZE) {
+                findChunk(chunk, found);
+                chunk.clear();
+            }
+        }
+        if (!chunk.isEmpty()) {
+            findChunk(chunk, found);
+        }
+
+        List<T> result = new ArrayList<T>(ids.size());
+        for (Integer id : ids) {
+            T subject = found.get(id);
+            if (subject != null) {
+                result.add(subject);
+            }
+        }
+        return result;
     }
 
-    /** Attempts to close a Statement resource. */
-    protected void cleanUp(Statement stmt) {
+    /**
+     * Loads a chunk of ids with a single <code>IN (...)</code> query.
+     *
+     * @param ids ids to load (no more than IN_CHUNK_SIZE).
+     * @param found map where to put the loaded objects, by id.
+     */
+    private void findChunk(List<Integer> ids, Map<Integer, T> found) {
+        Object[] parameters = paddedIds(ids);
+        String in = inCriteria(idColumn(), parameters.length);
+        for (T subject : findMany(findStatement(in), parameters)) {
+            found.put(subject.getId(), subject);
+        }
+    }
+
+    /**
+     * Pads a chunk of ids for an <code>IN (...)</code> list to the next power
+     * of two, by repeating the last id, so that only a handful of distinct
+     * statements are ever prepared.
+     *
+     * @param ids ids to match (at least one).
+     * @return The parameters to bind, padding included.
+     */
+    protected static Object[] paddedIds(List<Integer> ids) {
+        int size = Integer.highestOneBit(ids.size());
+        if (size < ids.size()) {
+            size <<= 1;
+        }
+        Object[] parameters = new Object[size];
+        for (int i = 0; i < size; i++) {
+            parameters[i] = ids.get(Math.min(i, ids.size() - 1));
+        }
+        return parameters;
+    }
+
+    /**
+     * Gets the criteria that matches a column against a list of values.
+     * <p>
+     * Typical usage:
+     * <code>id IN (?, ?, ?, ?)</code>
+     *
+     * @param column the column, as in the SQL statement.
+     * @param count number of input fields in the list.
+     * @return The criteria, to append to a WHERE clause.
+     */
+    protected static String inCriteria(String column, int count) {
+        StringBuilder in = new StringBuilder(column).append(" IN (");
+        for (int i = 0; i < count; i++) {
+            in.append(i == 0 ? "?" : ", ?");
+        }
+        return in.append(")").toString();
+    }
+
+    /**
+     * Attempts to close a Statement resource.
+     * <p>
+     * Statements cached by the connection are kept open for reuse.
+     *
+     * @param con the connection the statement was prepared with.
+     * @param stmt the statement, or null.
+     */
+    protected void cleanUp(PooledConnection con, Statement stmt) {
         if (stmt != null) {
             try {
-                stmt.close();
+                con.closeStatement(stmt);
             } catch (SQLException e) {
                 throw new ApplicationException(e.getMessage());
             }
@@ -145,6 +564,27 @@ public abstract class DatabaseMapper<T extends DomainObject<Integer>>
      */
     abstract protected String findStatement();
 
+    /**
+     * SQL SELECT statement missing only the criteria to append to the
+     * WHERE clause.
+     * <p>
+     * Typical usage:
+     * <code>SELECT field1, field2 FROM table WHERE [criteria]</code>
+     *
+     * @param criteria contents of "WHERE" part of the SQL statement.
+     * @return A complete SQL statement string.
+     */
+    abstract protected String findStatement(String criteria);
+
+    /**
+     * Gets the id column name, as used in findStatement(String criteria).
+     * <p>
+     * Override when the select statement needs it qualified (e.g., in joins).
+     */
+    protected String idColumn() {
+        return "id";
+    }
+
     /**
      * Makes the mapping between a database result set to the corresponding
      * domain object.
@@ -158,14 +598,65 @@ public abstract class DatabaseMapper<T extends DomainObject<Integer>>
      * @return The domain object mapped from the ResultSet.
      * @throws SQLException in case of SQL error. 
      */
-    protected T load(ResultSet rs) throws SQLException {
-        Integer id = new Integer(rs.getInt(1));
-        if (isLoaded(id)) {
-            return retrieve(id);
+    protected T load(final ResultSet rs) throws SQLException {
+        final Integer id = new Integer(rs.getInt(1));
+        T result = retrieve(id);
+        if (result != null) {
+            return result;
+        }
+
+        FutureTask<T> task = new FutureTask<T>(new Callable<T>() {
+            @Override
+            public T call() throws SQLException {
+                return registerIfAbsent(id, doLoad(id, rs));
+            }
+        });
+        FutureTask<T> running = loading.putIfAbsent(id, task);
+        if (running == null) {
+            running = task;
+            try {
+                task.run();
+            } finally {
+                loading.remove(id, task);
+            }
+        }
+        return waitFor(running);
+    }
+
+    /**
+     * Waits for an object being mapped, by this or another thread.
+     *
+     * @param task the mapping task.
+     * @return The mapped object.
+     * @throws SQLException in case of SQL error while mapping.
+     */
+    private T waitFor(FutureTask<T> task) throws SQLException {
+        boolean interrupted = false;
+        try {
+            while (true) {
+                try {
+                    return task.get();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof SQLException) {
+                throw (SQLException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new ApplicationException(cause.getMessage());
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
         }
-        T result = doLoad(id, rs);
-        register(id, result);
-        return result;
     }
 
     /**
@@ -187,11 +678,58 @@ public abstract class DatabaseMapper<T extends DomainObject<Integer>>
      * @throws SQLException in case of SQL error. 
      */
     protected List<T> loadAll(ResultSet rs) throws SQLException {
+        return loadSome(rs, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Loads up to a number of records from a result set, as a single
+     * batch (see beginLoad()).
+     *
+     * @param rs the database result set.
+     * @param max maximum number of records to load.
+     * @return A list of domain objects loaded from the result set.
+     * @throws SQLException in case of SQL error.
+     */
+    List<T> loadSome(ResultSet rs, int max) throws SQLException {
         List<T> result = new ArrayList<T>();
-        while (rs.next()) {
-            result.add(load(rs));
+        boolean batch = beginLoad();
+        boolean failed = true;
+        try {
+            while (result.size() < max && rs.next()) {
+                result.add(load(rs));
+            }
+            failed = false;
+            return result;
+        } finally {
+            if (batch) {
+                endLoad(failed);
+            }
         }
-        return result;
+    }
+
+    /**
+     * Called before loading many records at once (a whole result set, a
+     * page, or the next rows of a cursor), for mappers that batch work
+     * done while loading each one, e.g., saving associated objects that
+     * were missing. Does nothing by default.
+     * <p>
+     * Loads may nest, and only the outermost one ends the batch.
+     *
+     * @return true if a new batch was started; false if joining one.
+     */
+    protected boolean beginLoad() {
+        return false;
+    }
+
+    /**
+     * Called after loading many records, if beginLoad() started a batch,
+     * to finish the work batched while loading them. Does nothing by
+     * default.
+     *
+     * @param failed true if loading stopped with an exception, in which
+     *        case this must not throw, so as not to hide it.
+     */
+    protected void endLoad(boolean failed) {
     }
 
     /**
@@ -213,9 +751,10 @@ public abstract class DatabaseMapper<T extends DomainObject<Integer>>
      * @return A list of domain objects found.
      */
     protected List<T> findMany(String sql, Object[] parameters) {
+        PooledConnection con = pool.borrow();
         PreparedStatement stmt = null;
         try {
-            stmt = DB.prepareStatement(sql);
+            stmt = con.prepareStatement(sql);
             for (int i = 0; i < parameters.length; i++) {
                 stmt.setObject(i+1, parameters[i]);
             }
@@ -224,16 +763,231 @@ public abstract class DatabaseMapper<T extends DomainObject<Integer>>
         } catch (SQLException e) {
             throw new ApplicationException(e.getMessage());
         } finally {
-            cleanUp(stmt);
+            cleanUp(con, stmt);
+            pool.release(con);
+        }
+    }
+
+    /**
+     * Finds more than one object for any criteria, through the query cache.
+     * <p>
+     * If the query ran recently, and the table hasn't been written since,
+     * the ids it found are resolved through the identity map, loading only
+     * the objects no longer there. Otherwise, it works like findMany().
+     *
+     * @param sql SQL select statement with input fields.
+     * @param parameters array of parameters to bind to the sql input fields.
+     * @return A list of domain objects found.
+     */
+    protected List<T> findCached(String sql, Object[] parameters) {
+        long generation = queryCache.generation();
+        List<Integer> ids = queryCache.get(sql, parameters);
+        if (ids != null) {
+            List<T> result = findAll(ids);
+            if (result.size() == ids.size()) {
+                return result;
+            }
+            // some were deleted elsewhere, so query again
+            generation = queryCache.generation();
+        }
+        List<T> result = findMany(sql, parameters);
+        List<Integer> found = new ArrayList<Integer>(result.size());
+        for (T subject : result) {
+            found.add(subject.getId());
+        }
+        queryCache.put(sql, parameters, found, generation);
+        return result;
+    }
+
+    /**
+     * Finds one page of objects for any criteria, ordered by a column and
+     * then by id.
+     * <p>
+     * Uses keyset pagination: the continuation token holds the sort column
+     * value and id of the last row, and the next page starts right after
+     * them. The total is only counted for the first page.
+     *
+     * @param criteria contents of "WHERE" part of the SQL statement.
+     * @param parameters array of parameters to bind to the criteria input fields.
+     * @param sortColumn column to order by, as in the SELECT statement.
+     * @param token continuation token from the previous page, or null
+     *        for the first page.
+     * @param size maximum number of objects in the page.
+     * @return A page of domain objects.
+     * @throws IllegalArgumentException if the token is invalid.
+     */
+    protected Page<T> findPage(String criteria, Object[] parameters,
+            String sortColumn, String token, int size) {
+        if (size < 1) {
+            throw new IllegalArgumentException("Page size must be at least 1.");
+        }
+        String where = "(" + criteria + ")";
+        List<Object> params = new ArrayList<Object>(Arrays.asList(parameters));
+        if (token != null) {
+            int separator = token.indexOf(':');
+            if (separator < 0) {
+                throw new IllegalArgumentException("Invalid page token: " + token);
+            }
+            Integer lastId = Integer.valueOf(token.substring(0, separator));
+            String lastKey = token.substring(separator + 1);
+
+            where += " AND (" + sortColumn + " > ? OR (" + sortColumn + " = ? AND " + idColumn() + " > ?))";
+            params.add(lastKey);
+            params.add(lastKey);
+            params.add(lastId);
+        }
+        String sql = findStatement(where + " ORDER BY " + sortColumn + ", " + idColumn()
+                + " LIMIT " + (size + 1));
+        int total = token == null ? count(criteria, parameters) : -1;
+
+        // column label in the result set, without the table alias
+        String sortLabel = sortColumn.substring(sortColumn.lastIndexOf('.') + 1);
+
+        PooledConnection con = pool.borrow();
+        PreparedStatement stmt = null;
+        try {
+            stmt = con.prepareStatement(sql);
+            for (int i = 0; i < params.size(); i++) {
+                stmt.setObject(i+1, params.get(i));
+            }
+            ResultSet rs = stmt.executeQuery();
+
+            List<T> items = new ArrayList<T>(size);
+            String nextToken = null;
+            String lastKey = null;
+            int lastId = 0;
+            boolean batch = beginLoad();
+            boolean failed = true;
+            try {
+                while (rs.next()) {
+                    if (items.size() == size) {
+                        nextToken = lastId + ":" + lastKey;
+                        break;
+                    }
+                    lastKey = rs.getString(sortLabel);
+                    lastId = rs.getInt(1);
+                    items.add(load(rs));
+                }
+                failed = false;
+            } finally {
+                if (batch) {
+                    endLoad(failed);
+                }
+            }
+            return new Page<T>(items, nextToken, total);
+
+        } catch (SQLException e) {
+            throw new ApplicationException(e.getMessage());
+        } finally {
+            cleanUp(con, stmt);
+            pool.release(con);
         }
     }
 
+    /**
+     * Counts the rows for any criteria.
+     *
+     * @param criteria contents of "WHERE" part of the SQL statement.
+     * @param parameters array of parameters to bind to the criteria input fields.
+     * @return The number of rows that match.
+     */
+    protected int count(String criteria, Object[] parameters) {
+        PooledConnection con = pool.borrow();
+        PreparedStatement stmt = null;
+        try {
+            stmt = con.prepareStatement(countStatement(criteria));
+            for (int i = 0; i < parameters.length; i++) {
+                stmt.setObject(i+1, parameters[i]);
+            }
+            ResultSet rs = stmt.executeQuery();
+            return rs.next() ? rs.getInt(1) : 0;
+
+        } catch (SQLException e) {
+            throw new ApplicationException(e.getMessage());
+        } finally {
+            cleanUp(con, stmt);
+            pool.release(con);
+        }
+    }
+
+    /**
+     * SQL statement that counts the rows for a criteria, with the same
+     * table aliases as findStatement(String criteria).
+     *
+     * @param criteria contents of "WHERE" part of the SQL statement.
+     * @return A complete SQL statement string.
+     */
+    protected String countStatement(String criteria) {
+        return "SELECT COUNT(*) FROM " + table() + " WHERE " + criteria;
+    }
+
+    /**
+     * Streams every object in the table, ordered by id.
+     *
+     * @return A cursor over all domain objects. Must be closed.
+     */
+    public Cursor<T> cursorAll() {
+        return findCursor(findStatement("1 = 1 ORDER BY " + idColumn()), new Object[]{});
+    }
+
+    /**
+     * Streams the objects for any criteria, one row at a time.
+     * <p>
+     * Works like findMany(), but objects are loaded only as the cursor
+     * advances, so large results don't have to fit in memory. The cursor
+     * holds a connection of its own until closed.
+     *
+     * @param sql SQL select statement with input fields.
+     * @param parameters array of parameters to bind to the sql input fields.
+     * @return A cursor over the domain objects found. Must be closed.
+     */
+    protected Cursor<T> findCursor(String sql, Object[] parameters) {
+        PooledConnection con = pool.borrowDedicated();
+        PreparedStatement stmt = null;
+        try {
+            stmt = con.getConnection().prepareStatement(sql,
+                    ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+            stmt.setFetchSize(fetchSize());
+            for (int i = 0; i < parameters.length; i++) {
+                stmt.setObject(i+1, parameters[i]);
+            }
+            return new Cursor<T>(this, pool, con, stmt, stmt.executeQuery());
+        } catch (SQLException e) {
+            try {
+                cleanUp(con, stmt);
+            } finally {
+                pool.release(con);
+            }
+            throw new ApplicationException(e.getMessage());
+        }
+    }
+
+    /** Number of rows a cursor fetches at a time, from Config and the dialect. */
+    protected int fetchSize() {
+        return pool.getDialect().fetchSize(Config.getInstance().getInt(Config.DB_FETCH_SIZE, 0));
+    }
+
+    /**
+     * Gets the criteria that matches a column against a regular expression,
+     * ignoring case, in the database dialect.
+     *
+     * @param column the column name, as in the SELECT statement.
+     * @return The criteria, with one input field for the expression.
+     */
+    protected String regexp(String column) {
+        return pool.getDialect().regexp(column);
+    }
+
     @Override
     public Integer insert(T subject) {
+        PooledConnection con = pool.borrow();
         PreparedStatement insertStatement = null;
         try {
-            insertStatement = DB.prepareStatement(insertStatement(), Statement.RETURN_GENERATED_KEYS);
+            insertStatement = con.prepareStatement(insertStatement(), Statement.RETURN_GENERATED_KEYS);
             doInsert(subject, insertStatement);
+            List<T> saved = Collections.singletonList(subject);
+            Integer[] ids = idsOf(saved);
+            int[] versions = versionsOf(saved);
 
             int affectedRows = insertStatement.executeUpdate();
             if (affectedRows == 0) {
@@ -244,14 +998,83 @@ public abstract class DatabaseMapper<T extends DomainObject<Integer>>
             if (generatedKeys.next()) {
                 subject.setId(generatedKeys.getInt(1));
             }
+            generatedKeys.close();
 
-            register(subject.getId(), subject);
+            firstVersion(subject);
+            afterSave(con, saved, ids, versions);
             return subject.getId();
 
         } catch (SQLException e) {
             throw new ApplicationException(e.getMessage());
         } finally {
-            cleanUp(insertStatement);
+            cleanUp(con, insertStatement);
+            pool.release(con);
+        }
+    }
+
+    /**
+     * Saves many new domain objects to the data storage at once.
+     * <p>
+     * All rows are sent as a single JDBC batch, in one transaction (or as
+     * part of the transaction in progress). Generated ids are set, in order,
+     * on the objects that don't have one yet. The objects are only kept in
+     * memory once the transaction commits, and get their old ids back if
+     * it rolls back.
+     *
+     * @param subjects domain objects to insert.
+     * @return A list with the ids of the inserted objects, in the same order.
+     */
+    public List<Integer> insertAll(Collection<T> subjects) {
+        List<T> batch = new ArrayList<T>(subjects);
+        List<Integer> ids = new ArrayList<Integer>(batch.size());
+        if (batch.isEmpty()) {
+            return ids;
+        }
+        Integer[] oldIds = idsOf(batch);
+        int[] oldVersions = versionsOf(batch);
+        PooledConnection con = pool.borrow();
+        PreparedStatement insertStatement = null;
+        boolean transaction = false;
+        try {
+            transaction = con.begin();
+            insertStatement = con.prepareStatement(insertStatement(), Statement.RETURN_GENERATED_KEYS);
+            for (T subject : batch) {
+                doInsert(subject, insertStatement);
+                insertStatement.addBatch();
+            }
+            insertStatement.executeBatch();
+
+            ResultSet generatedKeys = insertStatement.getGeneratedKeys();
+            for (T subject : batch) {
+                if (subject.getId() == null && generatedKeys.next()) {
+                    subject.setId(generatedKeys.getInt(1));
+                }
+            }
+            generatedKeys.close();
+
+            for (T subject : batch) {
+                firstVersion(subject);
+                ids.add(subject.getId());
+            }
+            afterSave(con, batch, oldIds, oldVersions);
+            if (transaction) {
+                con.commit();
+            }
+            return ids;
+
+        } catch (SQLException e) {
+            if (transaction) {
+                con.rollback();
+            }
+            throw new ApplicationException(e.getMessage());
+        } catch (RuntimeException e) {
+            if (transaction) {
+                con.rollback();
+            }
+            throw e;
+        } finally {
+            cleanUp(con, insertStatement);
+            pool.release(con);
         }
     }
 
@@ -273,24 +1096,131 @@ public abstract class DatabaseMapper<T extends DomainObject<Integer>>
      */
     abstract protected void doInsert(T subject, PreparedStatement insertStatement) throws SQLException;
 
+    /**
+     * {@inheritDoc}
+     * <p>
+     * Nothing is sent to the database if the object hasn't changed since
+     * it was last loaded or saved.
+     *
+     * @throws ConcurrencyException if the object is versioned, and was
+     *         changed by someone else since it was loaded.
+     */
     @Override
     public boolean update(T subject) {
+        if (!isDirty(subject)) {
+            return true;
+        }
+        PooledConnection con = pool.borrow();
         PreparedStatement updateStatement = null;
         try {
-            updateStatement = DB.prepareStatement(updateStatement());
+            updateStatement = con.prepareStatement(updateStatement());
             doUpdate(subject, updateStatement);
+            List<T> saved = Collections.singletonList(subject);
+            Integer[] ids = idsOf(saved);
+            int[] versions = versionsOf(saved);
 
             int affectedRows = updateStatement.executeUpdate();
             if (affectedRows > 0) {
-                register(subject.getId(), subject);
+                nextVersion(subject);
+                afterSave(con, saved, ids, versions);
                 return true;
             }
+            if (subject instanceof Versioned) {
+                throw new ConcurrencyException(subject);
+            }
             return false;
 
         } catch (SQLException e) {
             throw new ApplicationException(e.getMessage());
         } finally {
-            cleanUp(updateStatement);
+            cleanUp(con, updateStatement);
+            pool.release(con);
+        }
+    }
+
+    /**
+     * Updates many changed in-memory domain objects at once.
+     * <p>
+     * All rows are sent as a single JDBC batch, in one transaction (or as
+     * part of the transaction in progress). Objects that haven't changed
+     * are left out of the batch, but still count as updated.
+     * <p>
+     * If any versioned object was changed by someone else since it was
+     * loaded, nothing is updated.
+     *
+     * @param subjects existing domain objects (with id not null).
+     * @return The number of objects updated.
+     * @throws ConcurrencyException on a version conflict.
+     */
+    public int updateAll(Collection<T> subjects) {
+        return updateRows(subjects);
+    }
+
+    /**
+     * Updates the rows of changed domain objects in one batch, without
+     * cascading to associated objects.
+     *
+     * @param subjects existing domain objects (with id not null).
+     * @return The number of objects updated.
+     */
+    int updateRows(Collection<T> subjects) {
+        List<T> batch = new ArrayList<T>(subjects.size());
+        for (T subject : subjects) {
+            if (isDirty(subject)) {
+                batch.add(subject);
+            }
+        }
+        int clean = subjects.size() - batch.size();
+        if (batch.isEmpty()) {
+            return clean;
+        }
+        PooledConnection con = pool.borrow();
+        PreparedStatement updateStatement = null;
+        boolean transaction = false;
+        try {
+            transaction = con.begin();
+            updateStatement = con.prepareStatement(updateStatement());
+            for (T subject : batch) {
+                doUpdate(subject, updateStatement);
+                updateStatement.addBatch();
+            }
+            int[] affectedRows = updateStatement.executeBatch();
+
+            for (int i = 0; i < affectedRows.length; i++) {
+                if (affectedRows[i] == 0 && batch.get(i) instanceof Versioned) {
+                    throw new ConcurrencyException(batch.get(i));
+                }
+            }
+            List<T> saved = new ArrayList<T>(batch.size());
+            for (int i = 0; i < affectedRows.length; i++) {
+                if (affectedRows[i] > 0 || affectedRows[i] == Statement.SUCCESS_NO_INFO) {
+                    saved.add(batch.get(i));
+                }
+            }
+            Integer[] ids = idsOf(saved);
+            int[] versions = versionsOf(saved);
+            for (T subject : saved) {
+                nextVersion(subject);
+            }
+            afterSave(con, saved, ids, versions);
+            if (transaction) {
+                con.commit();
+            }
+            return clean + saved.size();
+
+        } catch (SQLException e) {
+            if (transaction) {
+                con.rollback();
+            }
+            throw new ApplicationException(e.getMessage());
+        } catch (RuntimeException e) {
+            if (transaction) {
+                con.rollback();
+            }
+            throw e;
+        } finally {
+            cleanUp(con, updateStatement);
+            pool.release(con);
         }
     }
 
@@ -312,27 +1242,91 @@ public abstract class DatabaseMapper<T extends DomainObject<Integer>>
      */
     abstract protected void doUpdate(T subject, PreparedStatement updateStatement) throws SQLException;
 
+    /**
+     * {@inheritDoc}
+     * <p>
+     * When the delete is part of a transaction in progress, the object is
+     * only forgotten once it commits, so a rolled back delete leaves it
+     * loaded and indexed.
+     */
     @Override
-    public boolean delete(T subject) {
+    public boolean delete(final T subject) {
+        PooledConnection con = pool.borrow();
         PreparedStatement deleteStatement = null;
         try {
-            deleteStatement = DB.prepareStatement(deleteStatement());
+            deleteStatement = con.prepareStatement(deleteStatement());
             deleteStatement.setInt(1, subject.getId().intValue());
 
             int affectedRows = deleteStatement.executeUpdate();
-            if (affectedRows != 0) {
-                remove(subject.getId());
+            if (affectedRows == 0) {
+                return false;
+            }
+            if (!con.inTransaction()) {
+                forget(subject);
                 return true;
             }
-            return false;
+            con.afterCommit(new Runnable() {
+                @Override
+                public void run() {
+                    forget(subject);
+                }
+            });
+            return true;
 
         } catch (SQLException e) {
             throw new ApplicationException(e.getMessage());
         } finally {
-            cleanUp(deleteStatement);
+            cleanUp(con, deleteStatement);
+            pool.release(con);
         }
     }
 
+    /**
+     * Forgets a domain object deleted from the table, by this mapper or
+     * otherwise, removing it from the loaded map and unique key indexes.
+     *
+     * @param subject the deleted domain object.
+     */
+    protected void forget(T subject) {
+        forgetAll(Collections.singletonList(subject));
+    }
+
+    /**
+     * Forgets many domain objects deleted from the table at once, e.g.,
+     * by a single statement. Cached query results are dropped only once.
+     *
+     * @param subjects the deleted domain objects.
+     */
+    protected void forgetAll(Collection<T> subjects) {
+        queryCache.invalidate();
+        for (T subject : subjects) {
+            remove(subject.getId());
+            for (UniqueKey<T> key : uniqueKeys.values()) {
+                key.remove(subject.getId());
+            }
+            deleted(subject);
+        }
+    }
+
+    /**
+     * Called after a domain object is inserted or updated, for mappers that
+     * keep data derived from it (e.g., a search index). Does nothing by
+     * default.
+     *
+     * @param subject the saved domain object.
+     */
+    protected void saved(T subject) {
+    }
+
+    /**
+     * Called after a domain object is deleted, for mappers that keep data
+     * derived from it. Does nothing by default.
+     *
+     * @param subject the deleted domain object.
+     */
+    protected void deleted(T subject) {
+    }
+
     /**
      * Returns a SQL DELETE statement for one object.
      * <p>
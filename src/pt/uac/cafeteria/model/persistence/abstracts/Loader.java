@@ -23,6 +23,9 @@ package pt.uac.cafeteria.model.persistence.abstracts;
 
 /**
  * Contract for objects that need to manage loaded instances.
+ * <p>
+ * The loaded map may be bounded, so an object found by isLoaded() can still
+ * be evicted before being retrieved. Prefer retrieve() and a null check.
  *
  * @param <T> the object type.
  * @param <I> the object id type.
@@ -38,6 +41,17 @@ public interface Loader<T, I> {
      */
     public T register(I id, T o);
 
+    /**
+     * Adds a new object to the loaded map, unless one with the same id is
+     * already there. Checking and adding happen atomically.
+     *
+     * @param id object id.
+     * @param o object to be added.
+     * @return The object in the loaded map after the call, which is the
+     *         given one if none was loaded before.
+     */
+    public T registerIfAbsent(I id, T o);
+
     /**
      * Checks if an object is in the loaded map.
      *
@@ -0,0 +1,99 @@
+
+/**
+ * Cafeteria management application
+ * Copyright (c) 2011, 2012 Helder Correia
+ * 
+ * This file is part of Cafeteria.
+ * 
+ * Cafeteria is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * Cafeteria is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Cafeteria.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package pt.uac.cafeteria.model.persistence.abstracts;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * One page of results from a paginated finder.
+ * <p>
+ * Pages are fetched by keyset: the next page starts right after the last
+ * row of this one, instead of skipping an offset, so every page costs the
+ * same no matter how deep into the results. The continuation token carries
+ * that position, and is passed back to the finder to get the next page:
+ * <pre>
+ *   Page&lt;Student&gt; page = MapperRegistry.student().findPageByName("Ana", null, 50);
+ *   while (page.hasNext()) {
+ *       page = MapperRegistry.student().findPageByName("Ana", page.getNextToken(), 50);
+ *   }
+ * </pre>
+ * The token should be treated as opaque.
+ *
+ * @param <T> the domain object type.
+ */
+public class Page<T> {
+
+    /** Objects in this page. */
+    private final List<T> items;
+
+    /** Token to fetch the next page, or null if this is the last one. */
+    private final String nextToken;
+
+    /** Total number of results, or -1 if not known. */
+    private final int total;
+
+    /**
+     * Creates a new Page instance.
+     *
+     * @param items objects in this page.
+     * @param nextToken token to fetch the next page, or null if last.
+     * @param total total number of results, or -1 if not known.
+     */
+    public Page(List<T> items, String nextToken, int total) {
+        this.items = Collections.unmodifiableList(items);
+        this.nextToken = nextToken;
+        this.total = total;
+    }
+
+    /** Gets the objects in this page. */
+    public List<T> getItems() {
+        return items;
+    }
+
+    /** Checks if there are more results after this page. */
+    public boolean hasNext() {
+        return nextToken != null;
+    }
+
+    /** Gets the token to fetch the next page, or null if this is the last one. */
+    public String getNextToken() {
+        return nextToken;
+    }
+
+    /**
+     * Gets the total number of results across all pages.
+     * <p>
+     * Only counted for the first page, and may be off if rows change
+     * while paging.
+     *
+     * @return The total, or -1 if not known.
+     */
+    public int getTotal() {
+        return total;
+    }
+
+    /** Checks if the page has no objects. */
+    public boolean isEmpty() {
+        return items.isEmpty();
+    }
+}
@@ -0,0 +1,155 @@
+
+/**
+ * Cafeteria management application
+ * Copyright (c) 2011, 2012 Helder Correia
+ * 
+ * This file is part of Cafeteria.
+ * 
+ * Cafeteria is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * Cafeteria is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Cafeteria.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package pt.uac.cafeteria.model.persistence.abstracts;
+
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import pt.uac.cafeteria.model.domain.DomainObject;
+
+/**
+ * A unique column other than the id, indexed in memory so that lookups by
+ * it don't need to go to the database.
+ * <p>
+ * The index maps each key to the id of its object, and is filled as
+ * objects are loaded or saved by the mapper, and emptied of them as they're
+ * deleted or evicted from the mapper's identity map, so it never outgrows
+ * it. A lookup that hits the index goes straight to the identity map. Since another terminal may
+ * change the key in the meantime, a hit is only trusted if the object
+ * found still has that key.
+ * <p>
+ * Keys are compared ignoring case, like the database does by default.
+ *
+ * @param <T> the domain object type.
+ */
+public abstract class UniqueKey<T extends DomainObject<Integer>> {
+
+    /** Name of the column, as used in the find statement criteria. */
+    private final String column;
+
+    /** Ids by key. */
+    private final Map<String, Integer> ids = new HashMap<String, Integer>();
+
+    /** Keys by id, to drop the old key when it changes. */
+    private final Map<Integer, String> keys = new HashMap<Integer, String>();
+
+    /**
+     * Creates a new UniqueKey instance.
+     *
+     * @param column name of the column, as used in the find statement criteria.
+     */
+    public UniqueKey(String column) {
+        this.column = column;
+    }
+
+    /** Gets the name of the column. */
+    public String getColumn() {
+        return column;
+    }
+
+    /**
+     * Gets the key of a domain object.
+     *
+     * @param subject the domain object.
+     * @return The key, or null if it has none.
+     */
+    protected abstract String keyOf(T subject);
+
+    /**
+     * Puts a key in the form it's indexed by.
+     *
+     * @param key the key.
+     * @return The key in lowercase.
+     */
+    protected String normalize(String key) {
+        return key.toLowerCase(Locale.ENGLISH);
+    }
+
+    /**
+     * Checks if a domain object has the given key.
+     *
+     * @param subject the domain object.
+     * @param key the key.
+     * @return true if the object has the key; false otherwise.
+     */
+    public boolean matches(T subject, String key) {
+        String own = keyOf(subject);
+        return own != null && key != null && normalize(own).equals(normalize(key));
+    }
+
+    /**
+     * Finds the id of the object with a key.
+     *
+     * @param key the key.
+     * @return The id, or null if not in the index.
+     */
+    public synchronized Integer lookup(String key) {
+        return key == null ? null : ids.get(normalize(key));
+    }
+
+    /**
+     * Indexes the current key of a domain object, replacing its old one.
+     *
+     * @param subject the domain object.
+     */
+    public synchronized void put(T subject) {
+        Integer id = subject.getId();
+        String key = keyOf(subject);
+        if (id == null) {
+            return;
+        }
+        String normalized = key == null ? null : normalize(key);
+        String previous = keys.get(id);
+        if (previous != null && !previous.equals(normalized)) {
+            ids.remove(previous);
+        }
+        if (normalized == null) {
+            keys.remove(id);
+        } else {
+            keys.put(id, normalized);
+            ids.put(normalized, id);
+        }
+    }
+
+    /**
+     * Removes a domain object's key from the index.
+     *
+     * @param id the domain object id.
+     */
+    public synchronized void remove(Integer id) {
+        String previous = keys.remove(id);
+        if (previous != null && id.equals(ids.get(previous))) {
+            ids.remove(previous);
+        }
+    }
+
+    /** Removes all keys from the index. */
+    public synchronized void clear() {
+        ids.clear();
+        keys.clear();
+    }
+
+    /** Gets the number of indexed keys. */
+    public synchronized int size() {
+        return keys.size();
+    }
+}
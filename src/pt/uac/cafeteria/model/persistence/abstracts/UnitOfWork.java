@@ -0,0 +1,303 @@
+
+/**
+ * Cafeteria management application
+ * Copyright (c) 2011, 2012 Helder Correia
+ * 
+ * This file is part of Cafeteria.
+ * 
+ * Cafeteria is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * Cafeteria is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Cafeteria.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package pt.uac.cafeteria.model.persistence.abstracts;
+
+import java.io.Flushable;
+import java.io.IOException;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import pt.uac.cafeteria.model.ApplicationException;
+import pt.uac.cafeteria.model.domain.DomainObject;
+import pt.uac.cafeteria.model.domain.Versioned;
+import pt.uac.cafeteria.model.persistence.jdbc.ConnectionPool;
+import pt.uac.cafeteria.model.persistence.jdbc.PooledConnection;
+
+/**
+ * Keeps track of the objects changed during a business transaction, and
+ * writes them all out at once.
+ * <p>
+ * Objects are registered as new, dirty or removed along with the mapper
+ * responsible for them. On commit, new objects are inserted and removed ones
+ * deleted, but only the dirty objects that actually changed since they were
+ * loaded are updated. It all happens in a single database transaction.
+ * File based stores register to be flushed, and are written once after the
+ * database transaction commits, instead of on every change.
+ * <p>
+ * A unit of work is bound to the thread that began it:
+ * <pre>
+ *   UnitOfWork uow = UnitOfWork.begin(pool);
+ *   try {
+ *       uow.registerDirty(MapperRegistry.address(), student.getAddress());
+ *       uow.registerDirty(MapperRegistry.student(), student);
+ *       uow.commit();
+ *   } finally {
+ *       uow.end();
+ *   }
+ * </pre>
+ * Mappers may check for the current unit of work and join it, instead of
+ * writing changes right away.
+ */
+public class UnitOfWork {
+
+    /** Unit of work in progress in each thread. */
+    private static final ThreadLocal<UnitOfWork> current = new ThreadLocal<UnitOfWork>();
+
+    /** Pool to borrow the connection for the database transaction. */
+    private final ConnectionPool pool;
+
+    /** New objects to insert, by mapper, in order of registration. */
+    private final Map<DatabaseMapper<?>, Set<Object>> newObjects =
+            new LinkedHashMap<DatabaseMapper<?>, Set<Object>>();
+
+    /** Possibly changed objects to update, by mapper, in order of registration. */
+    private final Map<DatabaseMapper<?>, Set<Object>> dirtyObjects =
+            new LinkedHashMap<DatabaseMapper<?>, Set<Object>>();
+
+    /** Objects to delete, by mapper, in order of registration. */
+    private final Map<DatabaseMapper<?>, Set<Object>> removedObjects =
+            new LinkedHashMap<DatabaseMapper<?>, Set<Object>>();
+
+    /** File based stores to flush after commit. */
+    private final Set<Flushable> flushables = new LinkedHashSet<Flushable>();
+
+    /** Versions of the dirty objects before commit, to restore on rollback. */
+    private final Map<Versioned, Integer> versions = new IdentityHashMap<Versioned, Integer>();
+
+    /**
+     * Creates a new UnitOfWork instance.
+     *
+     * @param pool pool to borrow a connection from on commit.
+     */
+    private UnitOfWork(ConnectionPool pool) {
+        this.pool = pool;
+    }
+
+    /**
+     * Begins a new unit of work in the current thread.
+     *
+     * @param pool pool to borrow a connection from on commit.
+     * @return The new unit of work.
+     * @throws IllegalStateException if one is already in progress.
+     */
+    public static UnitOfWork begin(ConnectionPool pool) {
+        if (current.get() != null) {
+            throw new IllegalStateException("Unit of work already in progress.");
+        }
+        UnitOfWork uow = new UnitOfWork(pool);
+        current.set(uow);
+        return uow;
+    }
+
+    /**
+     * Gets the unit of work in progress in the current thread.
+     *
+     * @return The current unit of work, or null if there's none.
+     */
+    public static UnitOfWork getCurrent() {
+        return current.get();
+    }
+
+    /**
+     * Registers a new object to be inserted.
+     *
+     * @param mapper the mapper responsible for the object.
+     * @param subject the new domain object.
+     */
+    public <T extends DomainObject<Integer>> void registerNew(DatabaseMapper<T> mapper, T subject) {
+        objectsFor(newObjects, mapper).add(subject);
+    }
+
+    /**
+     * Registers an object that may have changed. It's only updated if it
+     * really did.
+     *
+     * @param mapper the mapper responsible for the object.
+     * @param subject the existing domain object.
+     */
+    public <T extends DomainObject<Integer>> void registerDirty(DatabaseMapper<T> mapper, T subject) {
+        if (!objectsFor(newObjects, mapper).contains(subject)) {
+            objectsFor(dirtyObjects, mapper).add(subject);
+        }
+    }
+
+    /**
+     * Registers an object to be deleted.
+     *
+     * @param mapper the mapper responsible for the object.
+     * @param subject the existing domain object.
+     */
+    public <T extends DomainObject<Integer>> void registerRemoved(DatabaseMapper<T> mapper, T subject) {
+        if (objectsFor(newObjects, mapper).remove(subject)) {
+            return;
+        }
+        objectsFor(dirtyObjects, mapper).remove(subject);
+        objectsFor(removedObjects, mapper).add(subject);
+    }
+
+    /**
+     * Registers a file based store to be flushed after commit.
+     *
+     * @param store the store to flush.
+     */
+    public void registerFlush(Flushable store) {
+        flushables.add(store);
+    }
+
+    /** Gets the set of objects registered for a mapper, creating it if needed. */
+    private static Set<Object> objectsFor(Map<DatabaseMapper<?>, Set<Object>> registry,
+            DatabaseMapper<?> mapper) {
+        Set<Object> objects = registry.get(mapper);
+        if (objects == null) {
+            objects = new LinkedHashSet<Object>();
+            registry.put(mapper, objects);
+        }
+        return objects;
+    }
+
+    /**
+     * Writes out all registered changes.
+     * <p>
+     * Inserts go first and deletes last (in reverse order of registration,
+     * so that rows are deleted before the ones they refer to). If anything
+     * fails, the database transaction is rolled back and nothing is flushed.
+     *
+     * @throws ApplicationException in case of error.
+     */
+    public void commit() {
+        rememberVersions();
+        PooledConnection con = pool.borrow();
+        boolean transaction = false;
+        try {
+            transaction = con.begin();
+            for (Map.Entry<DatabaseMapper<?>, Set<Object>> entry : newObjects.entrySet()) {
+                insertAll(entry.getKey(), entry.getValue());
+            }
+            for (Map.Entry<DatabaseMapper<?>, Set<Object>> entry : dirtyObjects.entrySet()) {
+                updateRows(entry.getKey(), entry.getValue());
+            }
+            List<DatabaseMapper<?>> mappers = new ArrayList<DatabaseMapper<?>>(removedObjects.keySet());
+            Collections.reverse(mappers);
+            for (DatabaseMapper<?> mapper : mappers) {
+                deleteAll(mapper, removedObjects.get(mapper));
+            }
+            if (transaction) {
+                con.commit();
+            }
+        } catch (SQLException e) {
+            if (transaction) {
+                con.rollback();
+            }
+            forgetChanges();
+            throw new ApplicationException(e.getMessage());
+        } catch (RuntimeException e) {
+            if (transaction) {
+                con.rollback();
+            }
+            forgetChanges();
+            throw e;
+        } finally {
+            pool.release(con);
+        }
+
+        try {
+            for (Flushable store : flushables) {
+                store.flush();
+            }
+        } catch (IOException e) {
+            throw new ApplicationException("Problema ao guardar dados.", e);
+        }
+        clear();
+    }
+
+    /**
+     * Ends the unit of work in the current thread. Any changes not
+     * committed are discarded.
+     */
+    public void end() {
+        clear();
+        if (current.get() == this) {
+            current.remove();
+        }
+    }
+
+    /** Discards all registered changes. */
+    private void clear() {
+        newObjects.clear();
+        dirtyObjects.clear();
+        removedObjects.clear();
+        flushables.clear();
+        versions.clear();
+    }
+
+    /** Records the versions of the dirty objects before they're saved. */
+    private void rememberVersions() {
+        for (Set<Object> objects : dirtyObjects.values()) {
+            for (Object subject : objects) {
+                if (subject instanceof Versioned) {
+                    versions.put((Versioned) subject, ((Versioned) subject).getVersion());
+                }
+            }
+        }
+    }
+
+    /**
+     * Makes the dirty objects save again next time, after a rollback,
+     * since the database didn't keep their changes. Versions go back to
+     * what they were before the commit.
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private void forgetChanges() {
+        for (Map.Entry<DatabaseMapper<?>, Set<Object>> entry : dirtyObjects.entrySet()) {
+            DatabaseMapper mapper = entry.getKey();
+            for (Object subject : entry.getValue()) {
+                mapper.markDirty((DomainObject<Integer>) subject);
+            }
+        }
+        for (Map.Entry<Versioned, Integer> entry : versions.entrySet()) {
+            entry.getKey().setVersion(entry.getValue());
+        }
+    }
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private static void insertAll(DatabaseMapper mapper, Set<Object> subjects) {
+        mapper.insertAll(subjects);
+    }
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private static void updateRows(DatabaseMapper mapper, Set<Object> subjects) {
+        mapper.updateRows(subjects);
+    }
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private static void deleteAll(DatabaseMapper mapper, Set<Object> subjects) {
+        for (Object subject : subjects) {
+            mapper.delete((DomainObject<Integer>) subject);
+        }
+    }
+}
@@ -0,0 +1,92 @@
+
+/**
+ * Cafeteria management application
+ * Copyright (c) 2011, 2012 Helder Correia
+ * 
+ * This file is part of Cafeteria.
+ * 
+ * Cafeteria is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * Cafeteria is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Cafeteria.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package pt.uac.cafeteria.model.persistence.cache;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Hit, miss and eviction counters for a cache.
+ * <p>
+ * Counters are safe to update from several threads at once.
+ */
+public class CacheStatistics {
+
+    /** Number of lookups that found an entry. */
+    private final AtomicLong hits = new AtomicLong();
+
+    /** Number of lookups that didn't find an entry. */
+    private final AtomicLong misses = new AtomicLong();
+
+    /** Number of entries dropped to make room or because they expired. */
+    private final AtomicLong evictions = new AtomicLong();
+
+    /** Records a lookup that found an entry. */
+    public void hit() {
+        hits.incrementAndGet();
+    }
+
+    /** Records a lookup that didn't find an entry. */
+    public void miss() {
+        misses.incrementAndGet();
+    }
+
+    /** Records an entry dropped by the cache. */
+    public void eviction() {
+        evictions.incrementAndGet();
+    }
+
+    /** Gets the number of lookups that found an entry. */
+    public long getHits() {
+        return hits.get();
+    }
+
+    /** Gets the number of lookups that didn't find an entry. */
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /** Gets the number of entries dropped by the cache. */
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    /** Gets the ratio of lookups that found an entry, from 0 to 1. */
+    public double getHitRate() {
+        long total = getHits() + getMisses();
+        return total == 0 ? 0 : (double) getHits() / total;
+    }
+
+    /** Sets all counters back to zero. */
+    public void reset() {
+        hits.set(0);
+        misses.set(0);
+        evictions.set(0);
+    }
+
+    @Override
+    public String toString() {
+        return "hits = " + getHits()
+            + ", misses = " + getMisses()
+            + ", evictions = " + getEvictions()
+            + ", hitRate = " + getHitRate();
+    }
+}
@@ -0,0 +1,135 @@
+
+/**
+ * Cafeteria management application
+ * Copyright (c) 2011, 2012 Helder Correia
+ * 
+ * This file is part of Cafeteria.
+ * 
+ * Cafeteria is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * Cafeteria is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Cafeteria.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package pt.uac.cafeteria.model.persistence.cache;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Identity map whose entries expire some time after being put.
+ * <p>
+ * Useful for objects that may be changed by other processes, so that a
+ * fresh copy is loaded from time to time. The map also holds up to a
+ * maximum number of entries, evicting the oldest ones to make room.
+ *
+ * @param <K> the object id type.
+ * @param <V> the object type.
+ */
+public class ExpiringIdentityMap<K, V> extends IdentityMap<K, V> {
+
+    /** An object and the time it was put in the map. */
+    private static class Entry<V> {
+
+        /** The object. */
+        private final V value;
+
+        /** Time, in milliseconds, the object was put in the map. */
+        private final long created;
+
+        Entry(V value) {
+            this.value = value;
+            this.created = System.currentTimeMillis();
+        }
+    }
+
+    /** Maximum number of objects to keep. */
+    private final int maxSize;
+
+    /** Time to live of an entry, in milliseconds. */
+    private final long ttl;
+
+    /** Entries, oldest first. */
+    private final LinkedHashMap<K, Entry<V>> entries = new LinkedHashMap<K, Entry<V>>();
+
+    /**
+     * Creates a new ExpiringIdentityMap instance.
+     *
+     * @param maxSize maximum number of objects to keep.
+     * @param ttl time to live of an entry, in milliseconds.
+     */
+    public ExpiringIdentityMap(int maxSize, long ttl) {
+        if (maxSize < 1) {
+            throw new IllegalArgumentException("Identity map size must be at least 1.");
+        }
+        this.maxSize = maxSize;
+        this.ttl = ttl;
+    }
+
+    /** Checks if an entry has outlived its time to live. */
+    private boolean isExpired(Entry<V> entry) {
+        return System.currentTimeMillis() - entry.created >= ttl;
+    }
+
+    /** Removes expired entries, and the oldest ones beyond the maximum size. */
+    private void purge() {
+        Iterator<Map.Entry<K, Entry<V>>> it = entries.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<K, Entry<V>> entry = it.next();
+            if (entries.size() <= maxSize && !isExpired(entry.getValue())) {
+                break;
+            }
+            it.remove();
+            evicted(entry.getKey());
+        }
+    }
+
+    @Override
+    public synchronized V put(K key, V value) {
+        // re-insert to move the entry to the end, keeping oldest first
+        Entry<V> previous = entries.remove(key);
+        entries.put(key, new Entry<V>(value));
+        purge();
+        return previous != null ? previous.value : null;
+    }
+
+    @Override
+    protected synchronized V lookup(K key) {
+        Entry<V> entry = entries.get(key);
+        if (entry == null) {
+            return null;
+        }
+        if (isExpired(entry)) {
+            entries.remove(key);
+            evicted(key);
+            return null;
+        }
+        return entry.value;
+    }
+
+    @Override
+    public synchronized V remove(K key) {
+        Entry<V> entry = entries.remove(key);
+        return entry != null ? entry.value : null;
+    }
+
+    @Override
+    public synchronized void clear() {
+        entries.clear();
+    }
+
+    @Override
+    public synchronized int size() {
+        purge();
+        return entries.size();
+    }
+}
@@ -0,0 +1,208 @@
+
+/**
+ * Cafeteria management application
+ * Copyright (c) 2011, 2012 Helder Correia
+ * 
+ * This file is part of Cafeteria.
+ * 
+ * Cafeteria is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * Cafeteria is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Cafeteria.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package pt.uac.cafeteria.model.persistence.cache;
+
+/**
+ * An <i>Identity Map</i> keeps every loaded object in memory, by id, so that
+ * it's only loaded once and other loads for the same id find it there.
+ * <p>
+ * Keeping everything that was ever loaded isn't an option in a long running
+ * process, so implementations differ in how they let go of entries:
+ * <ul>
+ *   <li><code>lru</code>: holds up to a maximum number of entries, evicting
+ *       the least recently used one to make room.</li>
+ *   <li><code>soft</code>: holds soft references, which the garbage
+ *       collector clears only when memory is running low.</li>
+ *   <li><code>weak</code>: holds weak references, which are cleared as soon
+ *       as nothing else in the application uses the object.</li>
+ *   <li><code>ttl</code>: evicts entries some time after being put, and
+ *       also holds up to a maximum number of entries.</li>
+ * </ul>
+ * All implementations count hits, misses and evictions, and are safe to use
+ * from several threads. They synchronize on themselves, so a sequence of
+ * calls can be made atomic by holding the map's lock. An EvictionListener
+ * is told of every object the map lets go of on its own, e.g., to drop it
+ * from other indexes.
+ *
+ * @param <K> the object id type.
+ * @param <V> the object type.
+ */
+public abstract class IdentityMap<K, V> {
+
+    /**
+     * Listens for objects evicted from an identity map.
+     *
+     * @param <K> the object id type.
+     */
+    public interface EvictionListener<K> {
+
+        /**
+         * Called after an object is evicted, while holding the map's lock.
+         *
+         * @param key the id of the evicted object.
+         */
+        void evicted(K key);
+    }
+
+    /** Hit, miss and eviction counters. */
+    protected final CacheStatistics statistics = new CacheStatistics();
+
+    /** Listener told of evictions, or null. */
+    private volatile EvictionListener<K> listener;
+
+    /**
+     * Creates an identity map from a strategy name.
+     *
+     * @param <K> the object id type.
+     * @param <V> the object type.
+     * @param strategy one of <code>lru</code>, <code>soft</code>,
+     *        <code>weak</code> or <code>ttl</code>.
+     * @param maxSize maximum number of entries, for <code>lru</code> and
+     *        <code>ttl</code>.
+     * @param ttl time to live of an entry, in milliseconds, for <code>ttl</code>.
+     * @return A new, empty identity map.
+     * @throws IllegalArgumentException if the strategy is unknown.
+     */
+    public static <K, V> IdentityMap<K, V> create(String strategy, int maxSize, long ttl) {
+        if ("lru".equals(strategy)) {
+            return new LruIdentityMap<K, V>(maxSize);
+        }
+        if ("soft".equals(strategy)) {
+            return new ReferenceIdentityMap<K, V>(ReferenceIdentityMap.Strength.SOFT);
+        }
+        if ("weak".equals(strategy)) {
+            return new ReferenceIdentityMap<K, V>(ReferenceIdentityMap.Strength.WEAK);
+        }
+        if ("ttl".equals(strategy)) {
+            return new ExpiringIdentityMap<K, V>(maxSize, ttl);
+        }
+        throw new IllegalArgumentException("Unknown identity map strategy: " + strategy);
+    }
+
+    /**
+     * Adds an object, or replaces the one with the same id.
+     *
+     * @param key the object id.
+     * @param value the object.
+     * @return The previous object with the same id, or null.
+     */
+    public abstract V put(K key, V value);
+
+    /**
+     * Adds an object, unless there's one with the same id already.
+     * <p>
+     * Checking and adding happen atomically, so that two threads loading
+     * the same id end up sharing one object.
+     *
+     * @param key the object id.
+     * @param value the object.
+     * @return The object already in the map, or null if the given one
+     *         was added.
+     */
+    public synchronized V putIfAbsent(K key, V value) {
+        V existing = lookup(key);
+        if (existing != null) {
+            return existing;
+        }
+        put(key, value);
+        return null;
+    }
+
+    /**
+     * Gets an object, counting a hit or a miss.
+     *
+     * @param key the object id.
+     * @return The object, or null if not in the map.
+     */
+    public V get(K key) {
+        V value = lookup(key);
+        if (value != null) {
+            statistics.hit();
+        } else {
+            statistics.miss();
+        }
+        return value;
+    }
+
+    /**
+     * Checks if an object is in the map, without counting a hit or a miss.
+     * <p>
+     * The object may still be evicted right after, so prefer a get()
+     * followed by a null check.
+     *
+     * @param key the object id.
+     * @return true if the object is in the map; false otherwise.
+     */
+    public boolean containsKey(K key) {
+        return lookup(key) != null;
+    }
+
+    /**
+     * Actual lookup of an object, without counting a hit or a miss.
+     *
+     * @param key the object id.
+     * @return The object, or null if not in the map.
+     */
+    protected abstract V lookup(K key);
+
+    /**
+     * Removes an object from the map.
+     *
+     * @param key the object id.
+     * @return The removed object, or null if not in the map.
+     */
+    public abstract V remove(K key);
+
+    /** Removes all objects from the map. */
+    public abstract void clear();
+
+    /** Gets the number of objects in the map. */
+    public abstract int size();
+
+    /** Gets the hit, miss and eviction counters. */
+    public CacheStatistics getStatistics() {
+        return statistics;
+    }
+
+    /**
+     * Sets the listener to tell of evictions. Objects removed with
+     * remove() or clear() aren't evictions.
+     *
+     * @param listener the listener, or null for none.
+     */
+    public void setEvictionListener(EvictionListener<K> listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Counts an eviction, and tells the listener.
+     *
+     * @param key the id of the evicted object.
+     */
+    protected void evicted(K key) {
+        statistics.eviction();
+        EvictionListener<K> current = listener;
+        if (current != null) {
+            current.evicted(key);
+        }
+    }
+}
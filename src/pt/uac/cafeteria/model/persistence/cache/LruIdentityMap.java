@@ -0,0 +1,84 @@
+
+/**
+ * Cafeteria management application
+ * Copyright (c) 2011, 2012 Helder Correia
+ * 
+ * This file is part of Cafeteria.
+ * 
+ * Cafeteria is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * Cafeteria is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Cafeteria.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package pt.uac.cafeteria.model.persistence.cache;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Identity map with a maximum size, that evicts the least recently used
+ * object to make room for a new one.
+ *
+ * @param <K> the object id type.
+ * @param <V> the object type.
+ */
+public class LruIdentityMap<K, V> extends IdentityMap<K, V> {
+
+    /** Entries, least recently used first. */
+    private final Map<K, V> entries;
+
+    /**
+     * Creates a new LruIdentityMap instance.
+     *
+     * @param maxSize maximum number of objects to keep.
+     */
+    public LruIdentityMap(final int maxSize) {
+        if (maxSize < 1) {
+            throw new IllegalArgumentException("Identity map size must be at least 1.");
+        }
+        entries = new LinkedHashMap<K, V>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<K, V> eldest) {
+                if (size() > maxSize) {
+                    evicted(eldest.getKey());
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    @Override
+    public synchronized V put(K key, V value) {
+        return entries.put(key, value);
+    }
+
+    @Override
+    protected synchronized V lookup(K key) {
+        return entries.get(key);
+    }
+
+    @Override
+    public synchronized V remove(K key) {
+        return entries.remove(key);
+    }
+
+    @Override
+    public synchronized void clear() {
+        entries.clear();
+    }
+
+    @Override
+    public synchronized int size() {
+        return entries.size();
+    }
+}
@@ -0,0 +1,339 @@
+
+/**
+ * Cafeteria management application
+ * Copyright (c) 2011, 2012 Helder Correia
+ * 
+ * This file is part of Cafeteria.
+ * 
+ * Cafeteria is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * Cafeteria is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Cafeteria.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package pt.uac.cafeteria.model.persistence.cache;
+
+import java.text.Normalizer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.regex.Pattern;
+
+/**
+ * In-memory text index of names, for searching without going to the
+ * database.
+ * <p>
+ * Names are folded before being indexed and searched: accents are
+ * removed and letters lowercased, so "Joao" finds "João". Each word is then
+ * broken into trigrams (sequences of three characters), which point to the
+ * ids of the names that contain them.
+ * <p>
+ * A search matches the names that contain every word in the query.
+ * Words with three or more characters match anywhere in a name, while
+ * shorter ones only match at the start of a word. Results are ranked by how
+ * many query words match at the start of a word, then by how many name
+ * words are left unmatched, then alphabetically.
+ * <p>
+ * Safe to use from several threads. Searches don't block each other.
+ */
+public class NameIndex {
+
+    /** Combining marks left by decomposing accented characters. */
+    private static final Pattern MARKS = Pattern.compile("\\p{InCombiningDiacriticalMarks}+");
+
+    /** Anything that isn't a letter or digit. */
+    private static final Pattern SEPARATORS = Pattern.compile("[^\\p{L}\\p{Nd}]+");
+
+    /** Padding at the start of a word, so its first letters form trigrams too. */
+    private static final String PAD = "  ";
+
+    /** Folded names by id. */
+    private final Map<Integer, String> names = new HashMap<Integer, String>();
+
+    /** Ids of the names with each trigram. */
+    private final Map<String, Set<Integer>> postings = new HashMap<String, Set<Integer>>();
+
+    /** Guards the maps. */
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+    /** Has the index been filled with all names? */
+    private volatile boolean built = false;
+
+    /**
+     * Folds a text for indexing or searching: no accents, lowercase, and
+     * words separated by a single space.
+     *
+     * @param text the text to fold.
+     * @return The folded text.
+     */
+    public static String fold(String text) {
+        if (text == null) {
+            return "";
+        }
+        String folded = Normalizer.normalize(text, Normalizer.Form.NFD);
+        folded = MARKS.matcher(folded).replaceAll("");
+        folded = SEPARATORS.matcher(folded).replaceAll(" ");
+        return folded.toLowerCase(Locale.ENGLISH).trim();
+    }
+
+    /** Splits a folded text into words. */
+    private static String[] words(String folded) {
+        return folded.isEmpty() ? new String[0] : folded.split(" ");
+    }
+
+    /** Gets the trigrams of every word in a folded name. */
+    private static Set<String> trigrams(String folded) {
+        Set<String> grams = new HashSet<String>();
+        for (String word : words(folded)) {
+            String padded = PAD + word;
+            for (int i = 0; i + 3 <= padded.length(); i++) {
+                grams.add(padded.substring(i, i + 3));
+            }
+        }
+        return grams;
+    }
+
+    /**
+     * Gets the trigrams a name must have to match a query word.
+     * Short words must be at the start of a name word, so they're padded.
+     */
+    private static Set<String> queryTrigrams(String word) {
+        String text = word.length() < 3 ? PAD + word : word;
+        Set<String> grams = new LinkedHashSet<String>();
+        for (int i = 0; i + 3 <= text.length(); i++) {
+            grams.add(text.substring(i, i + 3));
+        }
+        return grams;
+    }
+
+    /**
+     * Replaces the whole index with the given names, and marks it as built.
+     *
+     * @param all names by id.
+     */
+    public void build(Map<Integer, String> all) {
+        lock.writeLock().lock();
+        try {
+            names.clear();
+            postings.clear();
+            for (Map.Entry<Integer, String> entry : all.entrySet()) {
+                add(entry.getKey(), fold(entry.getValue()));
+            }
+            built = true;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /** Checks if the index has been built with all names. */
+    public boolean isBuilt() {
+        return built;
+    }
+
+    /**
+     * Adds a name to the index, or replaces the one with the same id.
+     *
+     * @param id the name's id.
+     * @param name the name.
+     */
+    public void put(Integer id, String name) {
+        String folded = fold(name);
+        lock.writeLock().lock();
+        try {
+            String previous = names.get(id);
+            if (folded.equals(previous)) {
+                return;
+            }
+            if (previous != null) {
+                delete(id, previous);
+            }
+            add(id, folded);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Removes a name from the index.
+     *
+     * @param id the name's id.
+     */
+    public void remove(Integer id) {
+        lock.writeLock().lock();
+        try {
+            String previous = names.get(id);
+            if (previous != null) {
+                delete(id, previous);
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /** Adds a folded name. Must hold the write lock. */
+    private void add(Integer id, String folded) {
+        names.put(id, folded);
+        for (String gram : trigrams(folded)) {
+            Set<Integer> ids = postings.get(gram);
+            if (ids == null) {
+                ids = new HashSet<Integer>();
+                postings.put(gram, ids);
+            }
+            ids.add(id);
+        }
+    }
+
+    /** Removes a folded name. Must hold the write lock. */
+    private void delete(Integer id, String folded) {
+        names.remove(id);
+        for (String gram : trigrams(folded)) {
+            Set<Integer> ids = postings.get(gram);
+            if (ids != null) {
+                ids.remove(id);
+                if (ids.isEmpty()) {
+                    postings.remove(gram);
+                }
+            }
+        }
+    }
+
+    /**
+     * Finds the ids of the names that match a query, best matches first.
+     *
+     * @param query one or more words, accents and case don't matter.
+     * @param limit maximum number of results.
+     * @return A list of matching ids, ranked.
+     */
+    public List<Integer> search(String query, int limit) {
+        final String[] queryWords = words(fold(query));
+        if (queryWords.length == 0 || limit < 1) {
+            return new ArrayList<Integer>();
+        }
+
+        lock.readLock().lock();
+        try {
+            // candidates have every trigram, smallest posting lists first
+            List<Set<Integer>> lists = new ArrayList<Set<Integer>>();
+            for (String word : queryWords) {
+                for (String gram : queryTrigrams(word)) {
+                    Set<Integer> ids = postings.get(gram);
+                    if (ids == null) {
+                        return new ArrayList<Integer>();
+                    }
+                    lists.add(ids);
+                }
+            }
+            Collections.sort(lists, new Comparator<Set<Integer>>() {
+                @Override
+                public int compare(Set<Integer> a, Set<Integer> b) {
+                    return a.size() - b.size();
+                }
+            });
+
+            final Map<Integer, int[]> ranks = new HashMap<Integer, int[]>();
+            candidates:
+            for (Integer id : lists.get(0)) {
+                for (int i = 1; i < lists.size(); i++) {
+                    if (!lists.get(i).contains(id)) {
+                        continue candidates;
+                    }
+                }
+                int[] rank = rank(names.get(id), queryWords);
+                if (rank != null) {
+                    ranks.put(id, rank);
+                }
+            }
+
+            List<Integer> result = new ArrayList<Integer>(ranks.keySet());
+            Collections.sort(result, new Comparator<Integer>() {
+                @Override
+                public int compare(Integer a, Integer b) {
+                    int[] ra = ranks.get(a);
+                    int[] rb = ranks.get(b);
+                    if (ra[0] != rb[0]) {
+                        return rb[0] - ra[0];
+                    }
+                    if (ra[1] != rb[1]) {
+                        return ra[1] - rb[1];
+                    }
+                    return names.get(a).compareTo(names.get(b));
+                }
+            });
+            return result.size() > limit
+                    ? new ArrayList<Integer>(result.subList(0, limit)) : result;
+
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Checks a candidate name against the query words, since trigrams
+     * alone may give false positives. Each query word must match a
+     * different word in the name.
+     *
+     * @return The number of query words matched at the start of a word and
+     *         the number of name words left unmatched, or null if some
+     *         query word doesn't match.
+     */
+    private static int[] rank(String name, String[] queryWords) {
+        String[] nameWords = words(name);
+        boolean[] used = new boolean[nameWords.length];
+        int prefixes = 0;
+        for (String word : queryWords) {
+            int found = -1;
+            for (int i = 0; i < nameWords.length && found < 0; i++) {
+                if (!used[i] && nameWords[i].startsWith(word)) {
+                    found = i;
+                }
+            }
+            if (found >= 0) {
+                prefixes++;
+            } else if (word.length() >= 3) {
+                for (int i = 0; i < nameWords.length && found < 0; i++) {
+                    if (!used[i] && nameWords[i].contains(word)) {
+                        found = i;
+                    }
+                }
+            }
+            if (found < 0) {
+                return null;
+            }
+            used[found] = true;
+        }
+        int unmatched = 0;
+        for (boolean u : used) {
+            if (!u) {
+                unmatched++;
+            }
+        }
+        return new int[] {prefixes, unmatched};
+    }
+
+    /** Gets the number of indexed names. */
+    public int size() {
+        lock.readLock().lock();
+        try {
+            return names.size();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+}
@@ -0,0 +1,169 @@
+
+/**
+ * Cafeteria management application
+ * Copyright (c) 2011, 2012 Helder Correia
+ * 
+ * This file is part of Cafeteria.
+ * 
+ * Cafeteria is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * Cafeteria is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Cafeteria.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package pt.uac.cafeteria.model.persistence.cache;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+/**
+ * Cache of query results, for the same searches repeated over and over.
+ * <p>
+ * Results are kept as the ids of the objects found, by SQL text and
+ * parameters, and meant to be resolved through the mapper's identity map.
+ * That way the objects themselves are never held twice, nor go stale here.
+ * <p>
+ * The mapper invalidates the whole cache whenever it writes to its table,
+ * since any change may add or remove rows from any result. Results found
+ * by queries that were running at the time are not cached. Entries also
+ * expire after some time, for changes made by other terminals, and the
+ * least recently used ones are evicted beyond a maximum number.
+ */
+public class QueryCache {
+
+    /** The ids found by a query, and the time they were put in the cache. */
+    private static class Entry {
+
+        /** Ids of the objects found, in order. */
+        private final List<Integer> ids;
+
+        /** Time, in milliseconds, the result was put in the cache. */
+        private final long created;
+
+        Entry(List<Integer> ids) {
+            this.ids = ids;
+            this.created = System.currentTimeMillis();
+        }
+    }
+
+    /** Maximum number of results to keep (0 to disable). */
+    private final int maxSize;
+
+    /** Time to live of a result, in milliseconds. */
+    private final long ttl;
+
+    /** Results by SQL text and parameters, least recently used first. */
+    private final LinkedHashMap<List<Object>, Entry> entries =
+            new LinkedHashMap<List<Object>, Entry>(16, 0.75f, true);
+
+    /** Hit, miss and eviction counters. */
+    private final CacheStatistics statistics = new CacheStatistics();
+
+    /** Number of times the cache was invalidated. */
+    private long generation;
+
+    /**
+     * Creates a new QueryCache instance.
+     *
+     * @param maxSize maximum number of results to keep (0 to disable).
+     * @param ttl time to live of a result, in milliseconds.
+     */
+    public QueryCache(int maxSize, long ttl) {
+        this.maxSize = Math.max(0, maxSize);
+        this.ttl = ttl;
+    }
+
+    /** Gets the key of a query. */
+    private static List<Object> keyOf(String sql, Object[] parameters) {
+        List<Object> key = new ArrayList<Object>(parameters.length + 1);
+        key.add(sql);
+        key.addAll(Arrays.asList(parameters));
+        return key;
+    }
+
+    /**
+     * Gets the ids found by a query, if cached.
+     *
+     * @param sql SQL select statement.
+     * @param parameters parameters bound to the statement.
+     * @return The ids, in order, or null if not cached.
+     */
+    public synchronized List<Integer> get(String sql, Object[] parameters) {
+        List<Object> key = keyOf(sql, parameters);
+        Entry entry = entries.get(key);
+        if (entry == null) {
+            statistics.miss();
+            return null;
+        }
+        if (System.currentTimeMillis() - entry.created >= ttl) {
+            entries.remove(key);
+            statistics.eviction();
+            statistics.miss();
+            return null;
+        }
+        statistics.hit();
+        return entry.ids;
+    }
+
+    /**
+     * Gets the current generation, to be read before running a query and
+     * passed to put() with its result.
+     *
+     * @return The number of times the cache was invalidated.
+     */
+    public synchronized long generation() {
+        return generation;
+    }
+
+    /**
+     * Caches the ids found by a query, unless the cache was invalidated
+     * since the query started.
+     *
+     * @param sql SQL select statement.
+     * @param parameters parameters bound to the statement.
+     * @param ids ids of the objects found, in order.
+     * @param generation the generation when the query started.
+     */
+    public synchronized void put(String sql, Object[] parameters, List<Integer> ids, long generation) {
+        if (maxSize == 0 || generation != this.generation) {
+            return;
+        }
+        entries.put(keyOf(sql, parameters),
+                new Entry(Collections.unmodifiableList(new ArrayList<Integer>(ids))));
+
+        Iterator<Entry> it = entries.values().iterator();
+        while (entries.size() > maxSize && it.hasNext()) {
+            it.next();
+            it.remove();
+            statistics.eviction();
+        }
+    }
+
+    /** Removes all results, after a write to the table. */
+    public synchronized void invalidate() {
+        generation++;
+        entries.clear();
+    }
+
+    /** Gets the number of cached results. */
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    /** Gets the hit, miss and eviction counters. */
+    public CacheStatistics getStatistics() {
+        return statistics;
+    }
+}
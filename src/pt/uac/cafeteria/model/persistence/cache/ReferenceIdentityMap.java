@@ -0,0 +1,166 @@
+
+/**
+ * Cafeteria management application
+ * Copyright (c) 2011, 2012 Helder Correia
+ * 
+ * This file is part of Cafeteria.
+ * 
+ * Cafeteria is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * Cafeteria is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Cafeteria.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package pt.uac.cafeteria.model.persistence.cache;
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.SoftReference;
+import java.lang.ref.WeakReference;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Identity map that holds its objects through soft or weak references,
+ * leaving it to the garbage collector to decide when to let go of them.
+ * <p>
+ * Soft references are only cleared when memory is running low, so the map
+ * works as a cache that shrinks under pressure. Weak references are cleared
+ * as soon as the rest of the application stops using the object, so the map
+ * only guarantees identity for objects still in use.
+ * <p>
+ * Entries whose object was collected are purged, and counted as evictions,
+ * on the next access to the map.
+ *
+ * @param <K> the object id type.
+ * @param <V> the object type.
+ */
+public class ReferenceIdentityMap<K, V> extends IdentityMap<K, V> {
+
+    /** Enumerates reference strengths. */
+    public enum Strength { SOFT, WEAK }
+
+    /** Reference that remembers the key it was put with. */
+    private interface Entry<K> {
+
+        /** Gets the key the reference was put with. */
+        K getKey();
+    }
+
+    /** Soft reference that remembers its key. */
+    private static class SoftEntry<K, V> extends SoftReference<V> implements Entry<K> {
+
+        /** The key the reference was put with. */
+        private final K key;
+
+        SoftEntry(K key, V value, ReferenceQueue<V> queue) {
+            super(value, queue);
+            this.key = key;
+        }
+
+        @Override
+        public K getKey() {
+            return key;
+        }
+    }
+
+    /** Weak reference that remembers its key. */
+    private static class WeakEntry<K, V> extends WeakReference<V> implements Entry<K> {
+
+        /** The key the reference was put with. */
+        private final K key;
+
+        WeakEntry(K key, V value, ReferenceQueue<V> queue) {
+            super(value, queue);
+            this.key = key;
+        }
+
+        @Override
+        public K getKey() {
+            return key;
+        }
+    }
+
+    /** Strength of the references held. */
+    private final Strength strength;
+
+    /** References to the objects, by id. */
+    private final Map<K, Reference<V>> entries = new HashMap<K, Reference<V>>();
+
+    /** Queue where the garbage collector puts cleared references. */
+    private final ReferenceQueue<V> queue = new ReferenceQueue<V>();
+
+    /**
+     * Creates a new ReferenceIdentityMap instance.
+     *
+     * @param strength the strength of the references to hold.
+     */
+    public ReferenceIdentityMap(Strength strength) {
+        this.strength = strength;
+    }
+
+    /** Removes entries whose object was collected. */
+    private void purge() {
+        Reference<? extends V> ref;
+        while ((ref = queue.poll()) != null) {
+            // only references made by newReference() are queued, all with K keys
+            @SuppressWarnings("unchecked")
+            K key = ((Entry<K>) ref).getKey();
+            if (entries.get(key) == ref) {
+                entries.remove(key);
+                evicted(key);
+            }
+        }
+    }
+
+    /** Creates a reference to an object, with the configured strength. */
+    private Reference<V> newReference(K key, V value) {
+        if (strength == Strength.SOFT) {
+            return new SoftEntry<K, V>(key, value, queue);
+        }
+        return new WeakEntry<K, V>(key, value, queue);
+    }
+
+    @Override
+    public synchronized V put(K key, V value) {
+        purge();
+        Reference<V> previous = entries.put(key, newReference(key, value));
+        return previous != null ? previous.get() : null;
+    }
+
+    @Override
+    protected synchronized V lookup(K key) {
+        purge();
+        Reference<V> ref = entries.get(key);
+        return ref != null ? ref.get() : null;
+    }
+
+    @Override
+    public synchronized V remove(K key) {
+        purge();
+        Reference<V> ref = entries.remove(key);
+        return ref != null ? ref.get() : null;
+    }
+
+    @Override
+    public synchronized void clear() {
+        entries.clear();
+        while (queue.poll() != null) {
+            // drain references of the removed entries
+        }
+    }
+
+    @Override
+    public synchronized int size() {
+        purge();
+        return entries.size();
+    }
+}
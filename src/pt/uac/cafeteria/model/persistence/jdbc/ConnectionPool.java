@@ -0,0 +1,391 @@
+
+/**
+ * Cafeteria management application
+ * Copyright (c) 2011, 2012 Helder Correia
+ * 
+ * This file is part of Cafeteria.
+ * 
+ * Cafeteria is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * Cafeteria is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Cafeteria.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package pt.uac.cafeteria.model.persistence.jdbc;
+
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.util.concurrent.BlockingDeque;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import pt.uac.cafeteria.model.ApplicationException;
+import pt.uac.cafeteria.model.persistence.cache.CacheStatistics;
+
+/**
+ * A bounded pool of database connections.
+ * <p>
+ * Instead of sharing one connection between every mapper (where every query
+ * waits in line and a dropped link takes everything down), each mapper
+ * operation borrows a connection and returns it when done:
+ * <pre>
+ *   PooledConnection con = pool.borrow();
+ *   try {
+ *       ...
+ *   } finally {
+ *       pool.release(con);
+ *   }
+ * </pre>
+ * No more than <code>maxSize</code> connections are ever opened. When they're
+ * all in use, a borrower waits up to <code>maxWait</code> milliseconds for one
+ * to be released, after which an <code>ApplicationException</code> is thrown.
+ * <p>
+ * Idle connections are validated before being handed out, if they've been
+ * idle for longer than the validation interval. Broken ones are discarded
+ * and replaced with a fresh connection.
+ * <p>
+ * A connection borrowed by a thread stays bound to it until released the
+ * same number of times it was borrowed. This makes nested mapper calls in the
+ * same thread share one connection, instead of holding one each.
+ * <p>
+ * Each connection keeps its own cache of prepared statements, which lives
+ * for as long as the connection does. Hit and miss counters are shared by
+ * all connections in the pool.
+ */
+public class ConnectionPool {
+
+    /** Time, in seconds, to wait for a connection to respond when validating. */
+    private static final int VALIDATION_TIMEOUT = 2;
+
+    /** SQL and JDBC specifics of the database. */
+    private final Dialect dialect;
+
+    /** Database URL. */
+    private final String url;
+
+    /** Database username credential. */
+    private final String user;
+
+    /** Database password credential. */
+    private final String password;
+
+    /** Maximum number of open connections. */
+    private final int maxSize;
+
+    /** Maximum time, in milliseconds, to wait for an available connection. */
+    private final long maxWait;
+
+    /** Idle time, in milliseconds, after which a connection is validated before use. */
+    private final long validationInterval;
+
+    /** Maximum number of prepared statements cached by each connection. */
+    private final int statementCacheSize;
+
+    /** Statement cache counters for all connections. */
+    private final CacheStatistics statementStatistics = new CacheStatistics();
+
+    /** One permit for each connection that may be borrowed. */
+    private final Semaphore permits;
+
+    /** Idle connections, most recently used first. */
+    private final BlockingDeque<PooledConnection> idle = new LinkedBlockingDeque<PooledConnection>();
+
+    /** Connection currently borrowed by each thread. */
+    private final ThreadLocal<PooledConnection> held = new ThreadLocal<PooledConnection>();
+
+    /** Number of borrowed connections. */
+    private final AtomicInteger active = new AtomicInteger();
+
+    /** Number of borrows that had to wait for a permit. */
+    private final AtomicLong waitCount = new AtomicLong();
+
+    /** Total time, in nanoseconds, spent waiting for a permit. */
+    private final AtomicLong waitTime = new AtomicLong();
+
+    /** Number of borrows that gave up waiting. */
+    private final AtomicLong timeoutCount = new AtomicLong();
+
+    /** Number of connections discarded for being broken. */
+    private final AtomicLong discardedCount = new AtomicLong();
+
+    /** Has the pool been closed? */
+    private volatile boolean closed = false;
+
+    /**
+     * Creates a new ConnectionPool instance.
+     * <p>
+     * Connections are opened lazily, when needed. The JDBC driver must
+     * already be loaded.
+     *
+     * @param dialect the SQL and JDBC specifics of the database.
+     * @param url the database URL.
+     * @param user the database username.
+     * @param password the database password.
+     * @param maxSize maximum number of open connections.
+     * @param maxWait maximum time, in milliseconds, to wait for a connection.
+     * @param validationInterval idle time, in milliseconds, after which a
+     *        connection is validated before being borrowed.
+     * @param statementCacheSize maximum number of prepared statements
+     *        cached by each connection (0 to disable).
+     */
+    public ConnectionPool(Dialect dialect, String url, String user, String password,
+            int maxSize, long maxWait, long validationInterval, int statementCacheSize) {
+        if (maxSize < 1) {
+            throw new IllegalArgumentException("Pool size must be at least 1.");
+        }
+        this.dialect = dialect;
+        this.url = url;
+        this.user = user;
+        this.password = password;
+        this.maxSize = maxSize;
+        this.maxWait = maxWait;
+        this.validationInterval = validationInterval;
+        this.statementCacheSize = Math.max(0, statementCacheSize);
+        this.permits = new Semaphore(maxSize, true);
+    }
+
+    /**
+     * Borrows a connection from the pool.
+     * <p>
+     * If the current thread already holds a connection, that same one is
+     * returned. Each call must be matched by a call to release().
+     *
+     * @return A connection exclusive to the current thread.
+     * @throws ApplicationException if the pool is closed, no connection
+     *         becomes available in time, or a new one can't be opened.
+     */
+    public PooledConnection borrow() {
+        PooledConnection con = held.get();
+        if (con != null) {
+            con.acquire();
+            return con;
+        }
+        if (closed) {
+            throw new ApplicationException("Ligação à base de dados terminada.");
+        }
+        acquirePermit();
+        try {
+            con = takeIdle();
+            if (con == null) {
+                con = open();
+            }
+        } catch (RuntimeException e) {
+            permits.release();
+            throw e;
+        }
+        con.acquire();
+        held.set(con);
+        active.incrementAndGet();
+        return con;
+    }
+
+    /**
+     * Borrows a connection that isn't bound to the current thread.
+     * <p>
+     * Meant for long lived work, like streaming a large result set, that
+     * would otherwise tie up the connection used by the thread's other
+     * mapper calls. Must be matched by a call to release().
+     *
+     * @return A connection exclusive to the caller.
+     * @throws ApplicationException if the pool is closed, no connection
+     *         becomes available in time, or a new one can't be opened.
+     */
+    public PooledConnection borrowDedicated() {
+        if (closed) {
+            throw new ApplicationException("Ligação à base de dados terminada.");
+        }
+        acquirePermit();
+        PooledConnection con;
+        try {
+            con = takeIdle();
+            if (con == null) {
+                con = open();
+            }
+        } catch (RuntimeException e) {
+            permits.release();
+            throw e;
+        }
+        con.acquire();
+        active.incrementAndGet();
+        return con;
+    }
+
+    /**
+     * Returns a connection to the pool.
+     * <p>
+     * The connection only goes back to the pool when released as many
+     * times as it was borrowed by the current thread.
+     *
+     * @param con the connection returned by borrow() or borrowDedicated().
+     */
+    public void release(PooledConnection con) {
+        if (con == null || con.release() > 0) {
+            return;
+        }
+        if (held.get() == con) {
+            held.remove();
+        }
+        active.decrementAndGet();
+        try {
+            if (closed || con.isClosed()) {
+                discard(con);
+            } else {
+                con.reset();
+                idle.offerFirst(con);
+            }
+        } catch (SQLException e) {
+            discard(con);
+        } finally {
+            permits.release();
+        }
+    }
+
+    /**
+     * Waits for a permit to borrow a connection, recording wait statistics.
+     *
+     * @throws ApplicationException if no permit is available in time.
+     */
+    private void acquirePermit() {
+        if (permits.tryAcquire()) {
+            return;
+        }
+        long start = System.nanoTime();
+        try {
+            boolean acquired = permits.tryAcquire(maxWait, TimeUnit.MILLISECONDS);
+            waitCount.incrementAndGet();
+            waitTime.addAndGet(System.nanoTime() - start);
+            if (!acquired) {
+                timeoutCount.incrementAndGet();
+                throw new ApplicationException("Base de dados ocupada. Tente novamente.");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new ApplicationException("Interrompido à espera da base de dados.", e);
+        }
+    }
+
+    /**
+     * Takes the most recently used idle connection, validating it first
+     * if it's been idle for too long.
+     *
+     * @return A usable idle connection, or null if there's none.
+     */
+    private PooledConnection takeIdle() {
+        PooledConnection con;
+        while ((con = idle.pollFirst()) != null) {
+            if (con.idleTime() < validationInterval || con.isValid(VALIDATION_TIMEOUT)) {
+                return con;
+            }
+            discard(con);
+        }
+        return null;
+    }
+
+    /**
+     * Opens a new physical connection.
+     *
+     * @return A new pooled connection.
+     * @throws ApplicationException if unable to connect.
+     */
+    private PooledConnection open() {
+        try {
+            return new PooledConnection(DriverManager.getConnection(url, user, password),
+                    statementCacheSize, statementStatistics);
+        } catch (SQLException e) {
+            throw new ApplicationException("Problema em ligar à base de dados.", e);
+        }
+    }
+
+    /** Closes a broken or unneeded connection. */
+    private void discard(PooledConnection con) {
+        discardedCount.incrementAndGet();
+        con.close();
+    }
+
+    /**
+     * Closes all idle connections, and any borrowed ones as they're released.
+     * The pool can't be used after this.
+     */
+    public void close() {
+        closed = true;
+        PooledConnection con;
+        while ((con = idle.pollFirst()) != null) {
+            con.close();
+        }
+    }
+
+    /** Gets the SQL and JDBC specifics of the database. */
+    public Dialect getDialect() {
+        return dialect;
+    }
+
+    /** Gets the maximum number of open connections. */
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    /** Gets the number of connections currently borrowed. */
+    public int getActiveCount() {
+        return active.get();
+    }
+
+    /** Gets the number of open connections waiting to be borrowed. */
+    public int getIdleCount() {
+        return idle.size();
+    }
+
+    /** Gets the number of borrows that had to wait for a connection. */
+    public long getWaitCount() {
+        return waitCount.get();
+    }
+
+    /** Gets the total time, in milliseconds, spent waiting for connections. */
+    public long getWaitTime() {
+        return TimeUnit.NANOSECONDS.toMillis(waitTime.get());
+    }
+
+    /** Gets the average time, in milliseconds, of borrows that had to wait. */
+    public double getAverageWaitTime() {
+        long count = waitCount.get();
+        return count == 0 ? 0 : (double) getWaitTime() / count;
+    }
+
+    /** Gets the number of borrows that gave up waiting for a connection. */
+    public long getTimeoutCount() {
+        return timeoutCount.get();
+    }
+
+    /** Gets the number of connections discarded for being broken. */
+    public long getDiscardedCount() {
+        return discardedCount.get();
+    }
+
+    /** Gets the prepared statement cache counters for all connections. */
+    public CacheStatistics getStatementStatistics() {
+        return statementStatistics;
+    }
+
+    @Override
+    public String toString() {
+        return "ConnectionPool {"
+            + "\n  active = " + getActiveCount()
+            + "\n  idle = " + getIdleCount()
+            + "\n  maxSize = " + getMaxSize()
+            + "\n  waitCount = " + getWaitCount()
+            + "\n  averageWaitTime = " + getAverageWaitTime()
+            + "\n  timeoutCount = " + getTimeoutCount()
+            + "\n  statements = {" + getStatementStatistics() + "}"
+            + "\n}"
+        ;
+    }
+}
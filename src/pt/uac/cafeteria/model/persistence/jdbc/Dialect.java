@@ -0,0 +1,107 @@
+
+/**
+ * Cafeteria management application
+ * Copyright (c) 2011, 2012 Helder Correia
+ * 
+ * This file is part of Cafeteria.
+ * 
+ * Cafeteria is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * Cafeteria is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Cafeteria.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package pt.uac.cafeteria.model.persistence.jdbc;
+
+/**
+ * The SQL and JDBC specifics of a database product.
+ * <p>
+ * Mappers write SQL that works everywhere, and ask the dialect of their
+ * connection pool for the rest (e.g., regular expression matching). This
+ * lets the application run against a MySQL server, as usual, or against
+ * an embedded database in the same process, as a local store for kiosks
+ * working offline, or for testing without a server.
+ */
+public abstract class Dialect {
+
+    /**
+     * Creates a dialect from its name.
+     *
+     * @param name one of <code>mysql</code> or <code>h2</code>.
+     * @return A new dialect.
+     * @throws IllegalArgumentException if the name is unknown.
+     */
+    public static Dialect forName(String name) {
+        if ("mysql".equals(name)) {
+            return new MySQLDialect();
+        }
+        if ("h2".equals(name)) {
+            return new H2Dialect();
+        }
+        throw new IllegalArgumentException("Unknown database dialect: " + name);
+    }
+
+    /** Gets the fully qualified class name of the JDBC driver. */
+    public abstract String getDriverClass();
+
+    /**
+     * Gets the JDBC URL to connect to a database.
+     *
+     * @param database the database name.
+     * @param statementCache are prepared statements cached for reuse?
+     * @param cursorFetch do cursors fetch more than one row at a time?
+     * @return The JDBC URL.
+     */
+    public abstract String getUrl(String database, boolean statementCache, boolean cursorFetch);
+
+    /**
+     * Gets the criteria that matches a column against a regular expression,
+     * ignoring case. The expression is left as an input field.
+     *
+     * @param column the column name, as in the SELECT statement.
+     * @return The criteria, with one input field.
+     */
+    public abstract String regexp(String column);
+
+    /**
+     * Gets the fetch size to set on statements streaming a result set.
+     *
+     * @param configured the fetch size set in Config, or 0 if none.
+     * @return The fetch size to use.
+     */
+    public abstract int fetchSize(int configured);
+
+    /** Does the database run inside the application, with no server? */
+    public boolean isEmbedded() {
+        return false;
+    }
+
+    /**
+     * Adapts a statement from the MySQL script that creates the database.
+     *
+     * @param statement a statement from the script, without the ending semicolon.
+     * @return The statement to run, or null to skip it.
+     */
+    public String translate(String statement) {
+        return statement;
+    }
+
+    /**
+     * Gets the statement that drops a database and everything in it, e.g.,
+     * to start over after the script that creates it fails half way.
+     *
+     * @param database the database name.
+     * @return The statement to run.
+     */
+    public String dropDatabase(String database) {
+        return "DROP SCHEMA IF EXISTS " + database;
+    }
+}
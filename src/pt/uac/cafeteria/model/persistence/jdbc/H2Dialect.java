@@ -0,0 +1,100 @@
+
+/**
+ * Cafeteria management application
+ * Copyright (c) 2011, 2012 Helder Correia
+ * 
+ * This file is part of Cafeteria.
+ * 
+ * Cafeteria is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * Cafeteria is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Cafeteria.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package pt.uac.cafeteria.model.persistence.jdbc;
+
+import java.util.regex.Pattern;
+
+/**
+ * Dialect for an embedded H2 database, in MySQL compatibility mode.
+ * <p>
+ * The database is kept in the data directory, and created from the MySQL
+ * script on first use. The H2 driver is in lib/H2, and must be in the
+ * classpath.
+ */
+public class H2Dialect extends Dialect {
+
+    /** Fetch size used when none is set in Config. */
+    private static final int DEFAULT_FETCH_SIZE = 100;
+
+    /** Script statements with no equivalent, or no use, in H2. */
+    private static final Pattern SKIPPED = Pattern.compile(
+            "^(SET\\s+(@|SQL_MODE|FOREIGN_KEY_CHECKS|UNIQUE_CHECKS)|DROP\\s+SCHEMA|BEGIN$|COMMIT$).*",
+            Pattern.CASE_INSENSITIVE | Pattern.DOTALL);
+
+    /** Table options only MySQL understands. */
+    private static final Pattern TABLE_OPTIONS = Pattern.compile(
+            "\\s*(ENGINE\\s*=\\s*\\w+|DEFAULT\\s+CHARACTER\\s+SET\\s*=?\\s*\\w+)",
+            Pattern.CASE_INSENSITIVE);
+
+    /**
+     * Index names, which MySQL only needs unique in a table, but H2 in the
+     * whole schema (the script has a nome_INDEX in three tables).
+     */
+    private static final Pattern INDEX_NAME = Pattern.compile(
+            "\\b(INDEX|KEY)\\s+`?\\w+`?\\s*\\(",
+            Pattern.CASE_INSENSITIVE);
+
+    @Override
+    public String getDriverClass() {
+        return "org.h2.Driver";
+    }
+
+    @Override
+    public String getUrl(String database, boolean statementCache, boolean cursorFetch) {
+        return "jdbc:h2:./data/" + database
+                + ";MODE=MySQL;DATABASE_TO_LOWER=TRUE;CASE_INSENSITIVE_IDENTIFIERS=TRUE"
+                + ";INIT=CREATE SCHEMA IF NOT EXISTS " + database + "\\;SET SCHEMA " + database;
+    }
+
+    @Override
+    public String regexp(String column) {
+        return "REGEXP_LIKE(" + column + ", ?, 'i')";
+    }
+
+    @Override
+    public int fetchSize(int configured) {
+        return configured > 0 ? configured : DEFAULT_FETCH_SIZE;
+    }
+
+    @Override
+    public boolean isEmbedded() {
+        return true;
+    }
+
+    @Override
+    public String translate(String statement) {
+        String sql = statement.trim();
+        if (SKIPPED.matcher(sql).matches()) {
+            return null;
+        }
+        if (sql.toUpperCase().startsWith("USE ")) {
+            return "SET SCHEMA " + sql.substring(4).trim();
+        }
+        sql = INDEX_NAME.matcher(sql).replaceAll("$1 (");
+        return TABLE_OPTIONS.matcher(sql).replaceAll("");
+    }
+
+    @Override
+    public String dropDatabase(String database) {
+        return "DROP SCHEMA IF EXISTS " + database + " CASCADE";
+    }
+}
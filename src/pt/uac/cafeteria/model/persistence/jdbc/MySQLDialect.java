@@ -0,0 +1,65 @@
+
+/**
+ * Cafeteria management application
+ * Copyright (c) 2011, 2012 Helder Correia
+ * 
+ * This file is part of Cafeteria.
+ * 
+ * Cafeteria is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * Cafeteria is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Cafeteria.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package pt.uac.cafeteria.model.persistence.jdbc;
+
+/**
+ * Dialect for a MySQL server, with Connector/J.
+ */
+public class MySQLDialect extends Dialect {
+
+    @Override
+    public String getDriverClass() {
+        return "com.mysql.jdbc.Driver";
+    }
+
+    @Override
+    public String getUrl(String database, boolean statementCache, boolean cursorFetch) {
+        // batches are sent as multi-row statements; server side statements,
+        // so that cached ones are only parsed once
+        String url = "jdbc:mysql://localhost/" + database + "?rewriteBatchedStatements=true";
+        if (statementCache) {
+            url += "&useServerPrepStmts=true";
+        }
+        // cursors fetch in chunks through a server side cursor, instead of
+        // streaming row by row
+        if (cursorFetch) {
+            url += "&useCursorFetch=true";
+        }
+        return url;
+    }
+
+    @Override
+    public String regexp(String column) {
+        return column + " RLIKE ?";
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * MySQL only streams rows, instead of reading the whole result set into
+     * memory, with a fetch size of <code>Integer.MIN_VALUE</code>.
+     */
+    @Override
+    public int fetchSize(int configured) {
+        return configured > 0 ? configured : Integer.MIN_VALUE;
+    }
+}
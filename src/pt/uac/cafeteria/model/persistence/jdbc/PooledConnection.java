@@ -0,0 +1,353 @@
+
+/**
+ * Cafeteria management application
+ * Copyright (c) 2011, 2012 Helder Correia
+ * 
+ * This file is part of Cafeteria.
+ * 
+ * Cafeteria is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * Cafeteria is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Cafeteria.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package pt.uac.cafeteria.model.persistence.jdbc;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import pt.uac.cafeteria.model.persistence.cache.CacheStatistics;
+
+/**
+ * A physical database connection managed by a <code>ConnectionPool</code>.
+ * <p>
+ * Mappers borrow one of these for the duration of an operation and give it
+ * back to the pool when done. While borrowed, the connection belongs
+ * exclusively to the borrowing thread, so nested mapper calls in that thread
+ * (e.g., a student insert that inserts its address first) get the same
+ * connection back instead of waiting for another one.
+ * <p>
+ * Prepared statements are cached by their SQL text, and kept open for as
+ * long as the connection is, so the hottest queries (e.g., finding a student
+ * by id on every kiosk login) are only parsed and planned once. When the
+ * cache is full, the least recently used statement is closed to make room.
+ * Cached statements must be handed back with closeStatement() instead of
+ * being closed directly.
+ * <p>
+ * Work that depends on the outcome of a transaction (e.g., registering
+ * inserted objects in memory) can be deferred with afterCommit() and
+ * afterRollback(), so that a caller joining an outer transaction doesn't
+ * act before the outer caller commits or rolls back.
+ */
+public class PooledConnection {
+
+    /** The physical connection. */
+    private final Connection connection;
+
+    /** Time, in milliseconds, of the last time the connection was returned. */
+    private long lastUsed;
+
+    /** Number of nested borrows by the owning thread. */
+    private int depth;
+
+    /** Prepared statements by SQL text, least recently used first. */
+    private final Map<String, PreparedStatement> statements;
+
+    /** Maximum number of cached statements. */
+    private final int cacheSize;
+
+    /** Statement cache counters, shared by all connections in a pool. */
+    private final CacheStatistics statistics;
+
+    /** Actions to run when the transaction in progress commits. */
+    private final List<Runnable> onCommit = new ArrayList<Runnable>();
+
+    /** Actions to run when the transaction in progress rolls back. */
+    private final List<Runnable> onRollback = new ArrayList<Runnable>();
+
+    /**
+     * Creates a new PooledConnection instance.
+     *
+     * @param connection the physical connection to manage.
+     * @param cacheSize maximum number of cached statements (0 to disable).
+     * @param statistics statement cache counters to update.
+     */
+    PooledConnection(Connection connection, int cacheSize, CacheStatistics statistics) {
+        this.connection = connection;
+        this.lastUsed = System.currentTimeMillis();
+        this.cacheSize = cacheSize;
+        this.statistics = statistics;
+        this.statements = new LinkedHashMap<String, PreparedStatement>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, PreparedStatement> eldest) {
+                if (size() > PooledConnection.this.cacheSize) {
+                    PooledConnection.this.statistics.eviction();
+                    close(eldest.getValue());
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    /** Gets the physical connection. */
+    public Connection getConnection() {
+        return connection;
+    }
+
+    /**
+     * Gets a PreparedStatement for the given SQL, from the cache if
+     * possible.
+     *
+     * @param sql SQL statement, with optional input fields.
+     * @return A PreparedStatement with no parameters set.
+     * @throws SQLException in case of SQL error.
+     */
+    public PreparedStatement prepareStatement(String sql) throws SQLException {
+        return prepareStatement(sql, Statement.NO_GENERATED_KEYS);
+    }
+
+    /**
+     * Gets a PreparedStatement for the given SQL, capable of returning
+     * auto-generated keys, from the cache if possible.
+     *
+     * @param sql SQL statement, with optional input fields.
+     * @param autoGeneratedKeys one of <code>Statement.RETURN_GENERATED_KEYS</code>
+     *        or <code>Statement.NO_GENERATED_KEYS</code>.
+     * @return A PreparedStatement with no parameters set.
+     * @throws SQLException in case of SQL error.
+     */
+    public PreparedStatement prepareStatement(String sql, int autoGeneratedKeys) throws SQLException {
+        if (cacheSize == 0) {
+            return connection.prepareStatement(sql, autoGeneratedKeys);
+        }
+        String key = autoGeneratedKeys == Statement.RETURN_GENERATED_KEYS ? "+keys:" + sql : sql;
+        PreparedStatement stmt = statements.get(key);
+        if (stmt != null) {
+            statistics.hit();
+            stmt.clearParameters();
+            return stmt;
+        }
+        statistics.miss();
+        stmt = connection.prepareStatement(sql, autoGeneratedKeys);
+        statements.put(key, stmt);
+        return stmt;
+    }
+
+    /**
+     * Hands back a statement after use.
+     * <p>
+     * Cached statements are kept open for reuse, with their current result
+     * set closed and any batch left behind by a failed caller cleared, so
+     * the next user doesn't send those rows too. Any other statement is
+     * closed.
+     *
+     * @param stmt a statement created with this connection.
+     * @throws SQLException in case of SQL error.
+     */
+    public void closeStatement(Statement stmt) throws SQLException {
+        if (!statements.containsValue(stmt)) {
+            stmt.close();
+            return;
+        }
+        stmt.clearBatch();
+        ResultSet rs = stmt.getResultSet();
+        if (rs != null) {
+            rs.close();
+        }
+    }
+
+    /**
+     * Starts a transaction, unless one is already in progress.
+     * <p>
+     * Only the caller that gets <code>true</code> should commit or roll
+     * back. Nested callers simply join the transaction in progress.
+     *
+     * @return true if a new transaction was started; false if joining one.
+     * @throws SQLException in case of SQL error.
+     */
+    public boolean begin() throws SQLException {
+        if (!connection.getAutoCommit()) {
+            return false;
+        }
+        connection.setAutoCommit(false);
+        return true;
+    }
+
+    /**
+     * Commits the transaction in progress, and goes back to auto-commit.
+     *
+     * @throws SQLException in case of SQL error.
+     */
+    public void commit() throws SQLException {
+        connection.commit();
+        connection.setAutoCommit(true);
+        onRollback.clear();
+        run(onCommit);
+    }
+
+    /**
+     * Rolls back the transaction in progress, and goes back to auto-commit.
+     * <p>
+     * Errors are ignored, since this is meant to be used while handling
+     * another one.
+     */
+    public void rollback() {
+        try {
+            connection.rollback();
+            connection.setAutoCommit(true);
+        } catch (SQLException e) {
+            // do nothing (the connection is reset or discarded on release)
+        }
+        onCommit.clear();
+        run(onRollback);
+    }
+
+    /**
+     * Runs an action once the transaction in progress commits, or right
+     * away if there's none (i.e., the changes are already committed).
+     *
+     * @param action the action to run.
+     */
+    public void afterCommit(Runnable action) {
+        if (inTransaction()) {
+            onCommit.add(action);
+        } else {
+            action.run();
+        }
+    }
+
+    /**
+     * Runs an action if the transaction in progress rolls back, e.g., to
+     * undo changes made in memory. Does nothing if there's no transaction.
+     *
+     * @param action the action to run.
+     */
+    public void afterRollback(Runnable action) {
+        if (inTransaction()) {
+            onRollback.add(action);
+        }
+    }
+
+    /**
+     * Checks if a transaction is in progress.
+     *
+     * @return true if in a transaction; false if in auto-commit, or if it
+     *         can't be determined.
+     */
+    public boolean inTransaction() {
+        try {
+            return !connection.getAutoCommit();
+        } catch (SQLException e) {
+            return false;
+        }
+    }
+
+    /** Runs the actions in a list, in order, and clears it. */
+    private static void run(List<Runnable> actions) {
+        List<Runnable> pending = new ArrayList<Runnable>(actions);
+        actions.clear();
+        for (Runnable action : pending) {
+            action.run();
+        }
+    }
+
+    /** Closes a statement, ignoring any errors. */
+    private static void close(Statement stmt) {
+        try {
+            stmt.close();
+        } catch (SQLException e) {
+            // do nothing (statement is being discarded anyway)
+        }
+    }
+
+    /** Marks one more borrow by the owning thread. */
+    void acquire() {
+        depth++;
+    }
+
+    /**
+     * Marks the end of one borrow by the owning thread.
+     *
+     * @return The number of borrows still pending.
+     */
+    int release() {
+        if (--depth == 0) {
+            lastUsed = System.currentTimeMillis();
+        }
+        return depth;
+    }
+
+    /** Gets the time, in milliseconds, since the connection was last returned. */
+    long idleTime() {
+        return System.currentTimeMillis() - lastUsed;
+    }
+
+    /**
+     * Checks if the connection is still usable.
+     *
+     * @param timeout time in seconds to wait for the database to respond.
+     * @return true if the connection is open and responding; false otherwise.
+     */
+    boolean isValid(int timeout) {
+        try {
+            return !connection.isClosed() && connection.isValid(timeout);
+        } catch (SQLException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Checks if the connection has been closed.
+     *
+     * @return true if closed, or if it can't be determined; false otherwise.
+     */
+    boolean isClosed() {
+        try {
+            return connection.isClosed();
+        } catch (SQLException e) {
+            return true;
+        }
+    }
+
+    /**
+     * Puts the connection back in a clean state before returning to the pool.
+     * <p>
+     * Any transaction left open is rolled back.
+     *
+     * @throws SQLException in case of SQL error.
+     */
+    void reset() throws SQLException {
+        onCommit.clear();
+        if (!connection.getAutoCommit()) {
+            connection.rollback();
+            connection.setAutoCommit(true);
+            run(onRollback);
+        }
+        onRollback.clear();
+    }
+
+    /** Closes the physical connection, and its statements, ignoring any errors. */
+    void close() {
+        statements.clear();
+        try {
+            connection.close();
+        } catch (SQLException e) {
+            // do nothing (connection is being discarded anyway)
+        }
+    }
+}
@@ -0,0 +1,124 @@
+
+/**
+ * Cafeteria management application
+ * Copyright (c) 2011, 2012 Helder Correia
+ * 
+ * This file is part of Cafeteria.
+ * 
+ * Cafeteria is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * Cafeteria is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Cafeteria.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package pt.uac.cafeteria.model.persistence.jdbc;
+
+import java.io.BufferedReader;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.sql.SQLException;
+import java.sql.Statement;
+import pt.uac.cafeteria.model.ApplicationException;
+
+/**
+ * Runs a SQL script, like the one that creates the database, through a
+ * connection pool.
+ * <p>
+ * Statements end with a semicolon at the end of a line. Lines starting
+ * with <code>--</code> are comments. Each statement is adapted by the
+ * dialect of the pool before running, and all of them run in one
+ * transaction. Most databases commit statements that change the schema
+ * (e.g., CREATE TABLE) on their own, though, so only the data changes
+ * are undone if the script fails.
+ */
+public class ScriptRunner {
+
+    /** Pool of database connections to run the script with. */
+    private final ConnectionPool pool;
+
+    /**
+     * Creates a new ScriptRunner instance.
+     *
+     * @param pool a pool of database connections.
+     */
+    public ScriptRunner(ConnectionPool pool) {
+        this.pool = pool;
+    }
+
+    /**
+     * Runs a script file.
+     *
+     * @param path path to the script file, in UTF-8.
+     * @return The number of statements run.
+     * @throws ApplicationException if the file can't be read, or a
+     *         statement fails. Data changes are rolled back, but tables
+     *         already created are left behind.
+     */
+    public int run(String path) {
+        PooledConnection con = pool.borrow();
+        Statement stmt = null;
+        boolean transaction = false;
+        try {
+            transaction = con.begin();
+            stmt = con.getConnection().createStatement();
+            BufferedReader in = new BufferedReader(
+                    new InputStreamReader(new FileInputStream(path), "UTF-8"));
+            int count = 0;
+            try {
+                StringBuilder statement = new StringBuilder();
+                String line;
+                while ((line = in.readLine()) != null) {
+                    String trimmed = line.trim();
+                    if (trimmed.isEmpty() || trimmed.startsWith("--")) {
+                        continue;
+                    }
+                    statement.append(line).append('\n');
+                    if (trimmed.endsWith(";")) {
+                        String sql = statement.substring(0, statement.lastIndexOf(";"));
+                        statement.setLength(0);
+                        sql = pool.getDialect().translate(sql);
+                        if (sql != null) {
+                            stmt.execute(sql);
+                            count++;
+                        }
+                    }
+                }
+            } finally {
+                in.close();
+            }
+            if (transaction) {
+                con.commit();
+            }
+            return count;
+
+        } catch (IOException e) {
+            if (transaction) {
+                con.rollback();
+            }
+            throw new ApplicationException("Problema ao ler o script " + path + ".", e);
+        } catch (SQLException e) {
+            if (transaction) {
+                con.rollback();
+            }
+            throw new ApplicationException(e.getMessage());
+        } finally {
+            if (stmt != null) {
+                try {
+                    stmt.close();
+                } catch (SQLException e) {
+                    // do nothing (statement is being discarded anyway)
+                }
+            }
+            pool.release(con);
+        }
+    }
+}
@@ -26,6 +26,7 @@ import java.util.ArrayList;
 import java.util.Calendar;
 import java.util.Collection;
 import java.util.GregorianCalendar;
+import java.util.List;
 import javax.swing.*;
 import pt.uac.cafeteria.model.*;
 import pt.uac.cafeteria.model.domain.Account.Status;
@@ -36,6 +37,7 @@ import pt.uac.cafeteria.model.domain.Day;
 import pt.uac.cafeteria.model.domain.Meal;
 import pt.uac.cafeteria.model.domain.Menu;
 import pt.uac.cafeteria.model.domain.Student;
+import pt.uac.cafeteria.model.domain.StudentSummary;
 import pt.uac.cafeteria.model.domain.Transaction;
 import pt.uac.cafeteria.model.validation.AdministratorValidator;
 import pt.uac.cafeteria.model.validation.MenuValidator;
@@ -50,6 +52,12 @@ public class Backend extends javax.swing.JFrame {
     private static final int LUNCH_HOUR = 13;
     private static final int DINNER_HOUR = 19;
 
+    /** Number of students fetched at a time when searching by name. */
+    private static final int SEARCH_PAGE_SIZE = 50;
+
+    /** Maximum number of students found when searching by name. */
+    private static final int SEARCH_LIMIT = 1000;
+
     private static Day today = new Day();
 
     private Administrator administrator;
@@ -61,6 +69,10 @@ public class Backend extends javax.swing.JFrame {
     private DefaultListModel adminsList = new DefaultListModel();
     private DefaultListModel validationsList = new DefaultListModel();
     
+    /** Ids of the students found by name, and how many are in the JList */
+    private List<Integer> studentSearchIds;
+    private int studentSearchShown;
+    
     /** Creates new form Backend */
     public Backend() {
         
@@ -68,6 +80,18 @@ public class Backend extends javax.swing.JFrame {
         
         initComponents();
         
+        // fetch the next page of students when the list is scrolled to the bottom
+        jScrollPane.getVerticalScrollBar().addAdjustmentListener(new java.awt.event.AdjustmentListener() {
+            @Override
+            public void adjustmentValueChanged(java.awt.event.AdjustmentEvent evt) {
+                JScrollBar bar = jScrollPane.getVerticalScrollBar();
+                if (!evt.getValueIsAdjusting()
+                        && bar.getValue() + bar.getVisibleAmount() >= bar.getMaximum()) {
+                    putNextStudentsPage();
+                }
+            }
+        });
+        
         Dimension screenSize = Toolkit.getDefaultToolkit().getScreenSize();
         this.setLocation(screenSize.width/2 - 400, screenSize.height/2 - 300);
         
@@ -235,6 +259,86 @@ public class Backend extends javax.swing.JFrame {
         studentsList.addElement(student);
     }
     
+    /**
+     * Searches students by name in the name index, and puts the first page
+     * of them into JList Component.
+     * 
+     * @param name one or more words of the name
+     * @return true if any student was found; false otherwise
+     */
+    private boolean searchStudentsByName(String name) {
+        studentSearchIds = MapperRegistry.student().searchIdsByName(name, SEARCH_LIMIT);
+        studentSearchShown = 0;
+        if (studentSearchIds.isEmpty()) {
+            return false;
+        }
+        studentsList.removeAllElements();
+        putNextStudentsPage();
+        return true;
+    }
+    
+    /**
+     * Adds the next page of students found by name, if any, into JList Component.
+     * Only summaries are listed; the selected student is loaded on demand.
+     */
+    private void putNextStudentsPage() {
+        if (studentSearchIds == null || studentSearchShown >= studentSearchIds.size()) {
+            return;
+        }
+        int end = Math.min(studentSearchShown + SEARCH_PAGE_SIZE, studentSearchIds.size());
+        List<StudentSummary> page = MapperRegistry.student()
+                .findSummaries(studentSearchIds.subList(studentSearchShown, end));
+        studentSearchShown = end;
+        searchList.setModel(studentsList);
+        for (StudentSummary summary : page) {
+            studentsList.addElement(summary);
+        }
+    }
+    
+    /**
+     * Gets the student selected in JList Component, loading it if only a summary is listed.
+     * If it was deleted or archived in another terminal meanwhile, it's taken off the list
+     * and the user is warned.
+     * 
+     * @return the selected student, or null if it no longer exists
+     */
+    private Student selectedStudent() {
+        Object selected = searchList.getSelectedValue();
+        Student student = selected instanceof StudentSummary
+                ? MapperRegistry.student().find(((StudentSummary) selected).getId())
+                : (Student) selected;
+        if (student == null && selected != null) {
+            studentsList.removeElement(selected);
+            searchList.clearSelection();
+            
+            visualizePanel.setVisible(false);
+            updatePanel.setVisible(false);
+            chargeBalanceFrame.setVisible(false);
+            
+            lblSearchMessage.setText("O estudante já não existe!");
+
+            warningSearchFrame.setVisible(true);
+            warningSearchFrame.setLocation(300, 180);
+            warningSearchFrame.grabFocus();
+
+            deactivate(buttonsPanel);
+            deactivate(studentPanel);
+            deactivate(searchPanel);
+            deactivate(searchList);
+        }
+        return student;
+    }
+    
+    /** Saves the account of a student, letting the user know if it was changed in another terminal */
+    private boolean updateAccount(Student student) {
+        try {
+            return Application.updateAccount(student);
+        } catch (ConcurrencyException e) {
+            JOptionPane.showMessageDialog(null, e.getMessage());
+            return false;
+        }
+    }
+    
     /** Adds an administrator into JList Component */
     private void putAdminInList(Administrator admin) {
         searchAdminList.setModel(adminsList);
@@ -2037,24 +2141,27 @@ public class Backend extends javax.swing.JFrame {
             if (visualizePanel.isVisible()){
                 
                 searchList.setSelectedIndex(studentPosition);
-                Student student = (Student) searchList.getSelectedValue();
+                Student student = selectedStudent();
                 
-                studentPanel.setEnabled(false);
-                deactivate(searchPanel);
-                deactivate(buttonsPanel);
-                searchList.setEnabled(false);
+                if (student != null) {
+                    
+                    studentPanel.setEnabled(false);
+                    deactivate(searchPanel);
+                    deactivate(buttonsPanel);
+                    searchList.setEnabled(false);
                 
-                if (student.getAccount().isActive()) {
-                    btnUnblockAccount.setEnabled(false);
-                }
+                    if (student.getAccount().isActive()) {
+                        btnUnblockAccount.setEnabled(false);
+                    }
                 
-                if (student.getAccount().isClosed()) {
-                    visualizePanel.setVisible(false);
-                    studentsList.remove(studentPosition);
-                    studentPanel.setEnabled(true);
-                    enabledAll(searchPanel);
-                    enabledAll(buttonsPanel);
-                    btnStudent.setEnabled(false);
+                    if (student.getAccount().isClosed()) {
+                        visualizePanel.setVisible(false);
+                        studentsList.remove(studentPosition);
+                        studentPanel.setEnabled(true);
+                        enabledAll(searchPanel);
+                        enabledAll(buttonsPanel);
+                        btnStudent.setEnabled(false);
+                    }
                 }
             }
             
@@ -2201,15 +2308,7 @@ public class Backend extends javax.swing.JFrame {
         
         else if (cbSearch.getSelectedIndex() == 1 && !Validator.isEmpty(search.getText())) {
 
-            ArrayList<Student> students = (ArrayList<Student>) MapperRegistry.student().findByName(search.getText());
-
-            if (!students.isEmpty()) {
-
-                studentsList.removeAllElements();
-
-                for (Student newStudent : students) {
-                    putStudentInList(newStudent);
-                }
+            if (searchStudentsByName(search.getText())) {
                 
                 searchList.setVisible(true);
                 searchList.setEnabled(true);
@@ -2316,7 +2415,10 @@ public class Backend extends javax.swing.JFrame {
     private void btnCheckMouseReleased(java.awt.event.MouseEvent evt) {//GEN-FIRST:event_btnCheckMouseReleased
         if (btnCheck.isEnabled()) {
             
-            Student student = (Student) searchList.getSelectedValue();
+            Student student = selectedStudent();
+            if (student == null) {
+                return;
+            }
             
             id.setText(student.getId().toString());
             name1.setText(student.getName());
@@ -2372,6 +2474,8 @@ public class Backend extends javax.swing.JFrame {
 
     private void searchKeyReleased(java.awt.event.KeyEvent evt) {//GEN-FIRST:event_searchKeyReleased
         if (evt.getKeyCode() == KeyEvent.VK_ENTER) {
+            studentSearchIds = null;
+            
             if (cbSearch.getSelectedIndex() == 0) {
                 
                 Integer id = ifIsNull(search.getText());
@@ -2416,15 +2520,7 @@ public class Backend extends javax.swing.JFrame {
 
             else if (cbSearch.getSelectedIndex() == 1 && !Validator.isEmpty(search.getText())) {
 
-                ArrayList<Student> students = (ArrayList<Student>) MapperRegistry.student().findByName(search.getText());
-
-                if (!students.isEmpty()) {
-
-                    studentsList.removeAllElements();
-
-                    for (Student student : students) {
-                        putStudentInList(student);
-                    }
+                if (searchStudentsByName(search.getText())) {
 
                     searchList.setVisible(true);
                     searchList.setEnabled(true);
@@ -2574,9 +2670,15 @@ public class Backend extends javax.swing.JFrame {
     private void btnDeleteYesMouseReleased(java.awt.event.MouseEvent evt) {//GEN-FIRST:event_btnDeleteYesMouseReleased
         deleteWarningFrame.setVisible(false);
         
-        Student student = (Student) searchList.getSelectedValue();
+        Student student = selectedStudent();
+        if (student == null) {
+            return;
+        }
         
-        if (MapperRegistry.student().delete(student) && MapperRegistry.account().delete(student.getAccount()) && MapperRegistry.address().delete(student.getAddress())) {
+        if (MapperRegistry.student().delete(student) && MapperRegistry.account().delete(student.getAccount())) {
+            
+            // kept if other students live there
+            MapperRegistry.address().delete(student.getAddress());
             
             studentsList.remove(searchList.getSelectedIndex());
             
@@ -2619,13 +2721,13 @@ public class Backend extends javax.swing.JFrame {
     private void btnChangeMouseReleased(java.awt.event.MouseEvent evt) {//GEN-FIRST:event_btnChangeMouseReleased
         if (btnChange.isEnabled()) {
             
-            Student student = (Student) searchList.getSelectedValue();
+            Student student = selectedStudent();
+            if (student == null) {
+                return;
+            }
             
             String auxName = student.getName();
-            String auxStreet =  student.getAddress().getStreetAddress();
-            String auxNumber = student.getAddress().getNumber();
-            String auxPostalCode = student.getAddress().getPostalCode();
-            String auxCity = student.getAddress().getCity();
+            Address auxAddress = student.getAddress();
             String auxEmail = student.getEmail();
             Integer auxPhone = student.getPhone();
             boolean auxSchollarship = student.hasScholarship();
@@ -2637,12 +2739,8 @@ public class Backend extends javax.swing.JFrame {
             
             String postalCode = postalCode4.getText() + "-" + postalCode3.getText();
             
-            Address address = student.getAddress();
-            
-            address.setStreetAddress(street2.getText());
-            address.setNumber(number1.getText());
-            address.setPostalCode(postalCode);
-            address.setCity(city2.getText());
+            // addresses are shared, so a changed one is a new one
+            Address address = new Address(street2.getText(), number1.getText(), postalCode, city2.getText());
             
             student.setId(id);
             student.setName(name2.getText());
@@ -2655,18 +2753,25 @@ public class Backend extends javax.swing.JFrame {
             StudentValidator validator = new StudentValidator();
             
             if (validator.isValid(student)) {
-                if (MapperRegistry.student().update(student)) {
-                    informationFrame.setVisible(true);
-                    updatePanel.setVisible(false);
+                try {
+                    if (MapperRegistry.student().update(student)) {
+                        if (student.getAddress() != auxAddress) {
+                            MapperRegistry.address().delete(auxAddress);
+                        }
+                        informationFrame.setVisible(true);
+                        updatePanel.setVisible(false);
+                    }
+                } catch (ConcurrencyException e) {
+                    // changed in another terminal, so load it fresh next time
+                    MapperRegistry.student().remove(student.getId());
+                    MapperRegistry.address().remove(auxAddress.getId());
+                    JOptionPane.showMessageDialog(null, e.getMessage());
                 }
             }
             else {
                 
                 student.setName(auxName);
-                student.getAddress().setStreetAddress(auxStreet);
-                student.getAddress().setNumber(auxNumber);
-                student.getAddress().setPostalCode(auxPostalCode);
-                student.getAddress().setCity(auxCity);
+                student.setAddress(auxAddress);
                 student.setPhone(auxPhone);
                 student.setEmail(auxEmail);
                 student.setScholarship(auxSchollarship);
@@ -2702,7 +2807,10 @@ public class Backend extends javax.swing.JFrame {
                 jbCourse1.addItem(course);
             }
             
-            Student student = (Student) searchList.getSelectedValue();
+            Student student = selectedStudent();
+            if (student == null) {
+                return;
+            }
             
             String aux[] = student.getAddress().getPostalCode().split("-");
             
@@ -3295,7 +3403,10 @@ public class Backend extends javax.swing.JFrame {
     }//GEN-LAST:event_btnChargeBalanceMouseReleased
 
     private void btnChargeNoMouseReleased(java.awt.event.MouseEvent evt) {//GEN-FIRST:event_btnChargeNoMouseReleased
-        Student student = (Student) searchList.getSelectedValue();
+        Student student = selectedStudent();
+        if (student == null) {
+            return;
+        }
         
         if (student.getAccount().isActive()) {
             btnUnblockAccount.setEnabled(false);
@@ -3312,7 +3423,10 @@ public class Backend extends javax.swing.JFrame {
     }//GEN-LAST:event_btnChargeNoMouseReleased
 
     private void btnChargeYesMouseReleased(java.awt.event.MouseEvent evt) {//GEN-FIRST:event_btnChargeYesMouseReleased
-        Student student = (Student) searchList.getSelectedValue();
+        Student student = selectedStudent();
+        if (student == null) {
+            return;
+        }
         studentPosition = searchList.getSelectedIndex();
         
         if (Validator.matchPattern("^[0-9]+$", money.getText())) {
@@ -3323,7 +3437,7 @@ public class Backend extends javax.swing.JFrame {
             
             chargeBalanceFrame.setVisible(false);
             
-            if(MapperRegistry.account().update(student.getAccount())) {
+            if (updateAccount(student)) {
                 
                 int last = student.getAccount().getTransactions().size() - 1;
                 
@@ -3371,7 +3485,10 @@ public class Backend extends javax.swing.JFrame {
     private void btnUnblockAccountMouseReleased(java.awt.event.MouseEvent evt) {//GEN-FIRST:event_btnUnblockAccountMouseReleased
         
         searchList.setSelectedIndex(studentPosition);
-        Student student = (Student) searchList.getSelectedValue();
+        Student student = selectedStudent();
+        if (student == null) {
+            return;
+        }
         
         if (btnUnblockAccount.isEnabled() && student.getAccount().isBlocked()) {
             btnChargeBalance.setEnabled(false);
@@ -3387,7 +3504,7 @@ public class Backend extends javax.swing.JFrame {
             
             student.getAccount().setStatus(Status.ACTIVE);
             
-            if (MapperRegistry.account().update(student.getAccount())) {
+            if (updateAccount(student)) {
                 lblMessage1.setText("Conta desbloqueada");
             }
             else {
@@ -3400,7 +3517,10 @@ public class Backend extends javax.swing.JFrame {
     private void btnRecoverCodeMouseReleased(java.awt.event.MouseEvent evt) {//GEN-FIRST:event_btnRecoverCodeMouseReleased
         
         searchList.setSelectedIndex(studentPosition);
-        Student student = (Student) searchList.getSelectedValue();
+        Student student = selectedStudent();
+        if (student == null) {
+            return;
+        }
         
         String subject = "Recuperação de Código de acesso";
         String body = "Olá, " + student.getName()
@@ -3441,7 +3561,7 @@ public class Backend extends javax.swing.JFrame {
     private void btnCloseAccountMouseReleased(java.awt.event.MouseEvent evt) {//GEN-FIRST:event_btnCloseAccountMouseReleased
         
         searchList.setSelectedIndex(studentPosition);
-        Student student = (Student) searchList.getSelectedValue();
+        Student student = selectedStudent();
         
         if (btnCloseAccount.isEnabled() && student != null) {
             
@@ -29,9 +29,11 @@ import java.util.GregorianCalendar;
 import java.util.Map;
 import javax.swing.JComponent;
 import javax.swing.JOptionPane;
+import javax.swing.SwingUtilities;
 import javax.swing.table.DefaultTableModel;
 import pt.uac.cafeteria.model.Application;
 import pt.uac.cafeteria.model.ApplicationException;
+import pt.uac.cafeteria.model.ConcurrencyException;
 import pt.uac.cafeteria.model.MapperRegistry;
 import pt.uac.cafeteria.model.domain.Credit;
 import pt.uac.cafeteria.model.domain.Day;
@@ -40,6 +42,7 @@ import pt.uac.cafeteria.model.domain.Menu;
 import pt.uac.cafeteria.model.domain.Student;
 import pt.uac.cafeteria.model.domain.Ticket;
 import pt.uac.cafeteria.model.domain.Transaction;
+import pt.uac.cafeteria.model.persistence.abstracts.AsyncMapper;
 import pt.uac.cafeteria.model.validation.Validator;
 
 /**
@@ -1701,12 +1704,38 @@ public class Frontend extends javax.swing.JFrame {
             try {
                 Meal meal = menu.getMeal(getMealTimeChoice(), getMealTypeChoice());
                 double mealPrice = Application.mealPrice(meal, student);
-                student.getAccount().buyTicket(meal, mealPrice);
-                MapperRegistry.account().update(student.getAccount());
+                final Student buyer = student;
+                buyer.getAccount().buyTicket(meal, mealPrice);
 
                 btnBuy.setEnabled(false);
                 btnCancel.setEnabled(false);
-                ifPurchaseSuccess.setVisible(true);
+
+                // saved in the background, together with other purchases
+                MapperRegistry.account().updateLater(buyer.getAccount(), new AsyncMapper.Callback<Boolean>() {
+                    @Override
+                    public void done(Boolean result) {
+                        SwingUtilities.invokeLater(new Runnable() {
+                            @Override
+                            public void run() {
+                                ifPurchaseSuccess.setVisible(true);
+                            }
+                        });
+                    }
+
+                    @Override
+                    public void failed(final Throwable e) {
+                        SwingUtilities.invokeLater(new Runnable() {
+                            @Override
+                            public void run() {
+                                // the purchase was discarded, so show the account as stored
+                                buyer.setAccount(MapperRegistry.account().find(buyer.getId()));
+                                JOptionPane.showMessageDialog(null, e.getMessage());
+                                btnBuy.setEnabled(true);
+                                btnCancel.setEnabled(true);
+                            }
+                        });
+                    }
+                });
             }
             catch (IllegalArgumentException e) {
                 JOptionPane.showMessageDialog(null, e.getMessage());
@@ -1847,7 +1876,15 @@ public class Frontend extends javax.swing.JFrame {
                        + "\nNovo Código de Acesso: " + student.getAccount().getPinCode()
                        + "\n\nCom os melhores cumprimentos,\nA Administração.";
 
-                if (MapperRegistry.account().update(student.getAccount())) {
+                boolean updated;
+                try {
+                    updated = Application.updateAccount(student);
+                } catch (ConcurrencyException e) {
+                    JOptionPane.showMessageDialog(null, e.getMessage());
+                    updated = false;
+                }
+
+                if (updated) {
                     try {
                         Application.sendMail(student.getEmail(), subject, body);
 
@@ -0,0 +1,245 @@
+
+/**
+ * Cafeteria management application
+ * Copyright (c) 2011, 2012 Helder Correia
+ * 
+ * This file is part of Cafeteria.
+ * 
+ * Cafeteria is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * Cafeteria is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Cafeteria.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package pt.uac.cafeteria.model.persistence;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.io.StreamCorruptedException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.junit.Test;
+import pt.uac.cafeteria.model.domain.Account;
+import pt.uac.cafeteria.model.domain.Credit;
+import pt.uac.cafeteria.model.domain.Day;
+import pt.uac.cafeteria.model.domain.Meal;
+import pt.uac.cafeteria.model.domain.Ticket;
+import pt.uac.cafeteria.model.domain.Transaction;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests the binary format of the accounts, and reading accounts written
+ * with Java serialization by older versions.
+ */
+public class AccountCodecTest {
+
+    /** A meal bought by more than one account. */
+    private final Meal lunch = new Meal(new Day(new Date(1350000000000L)), Meal.Time.LUNCH,
+            Meal.Type.FISH, "Sopa de legumes", "Bacalhau", null);
+
+    /** A meal with no day, time or type. */
+    private final Meal unknown = new Meal(null, null, null, null, "Bitoque", "Fruta");
+
+    /** Creates an account with the given transactions. */
+    private static Account account(int id, int version, Transaction... transactions) {
+        return new Account(id, 1234, 10.5, Account.Status.ACTIVE, 1, version,
+                Arrays.asList(transactions));
+    }
+
+    /** Some accounts with tickets and credits. */
+    private List<Account> accounts() {
+        List<Account> accounts = new ArrayList<Account>();
+        accounts.add(account(20101, 3,
+                new Credit(new Date(1350000001000L), "admin", 20.0),
+                new Ticket(new Date(1350000002000L), lunch, 2.4),
+                new Ticket(new Date(1350000003000L), unknown, 2.85)));
+        accounts.add(account(20102, 0,
+                new Ticket(new Date(1350000004000L), lunch, 0.48),
+                new Ticket(new Date(1350000005000L), null, 2.4),
+                new Credit(new Date(1350000006000L), null, 5.0)));
+        accounts.add(new Account(20103, 4321, 0.0, Account.Status.BLOCKED, 0, 7,
+                new ArrayList<Transaction>()));
+        return accounts;
+    }
+
+    /** Asserts that two accounts have the same state and transactions. */
+    private static void assertSameAccount(Account expected, Account actual) {
+        assertEquals(expected.getId(), actual.getId());
+        assertEquals(expected.getVersion(), actual.getVersion());
+        assertEquals(expected.getPinCode(), actual.getPinCode());
+        assertEquals(expected.getBalance(), actual.getBalance(), 0.0);
+        assertEquals(expected.getStatus(), actual.getStatus());
+        assertEquals(expected.getFailedLoginAttempts(), actual.getFailedLoginAttempts());
+        assertEquals(expected.getTransactions().size(), actual.getTransactions().size());
+        for (int i = 0; i < expected.getTransactions().size(); i++) {
+            assertSameTransaction(expected.getTransactions().get(i), actual.getTransactions().get(i));
+        }
+    }
+
+    /** Asserts that two transactions are of the same type, with the same fields. */
+    private static void assertSameTransaction(Transaction expected, Transaction actual) {
+        assertEquals(expected.getClass(), actual.getClass());
+        assertEquals(expected.getDate(), actual.getDate());
+        assertEquals(expected.getAmount(), actual.getAmount(), 0.0);
+        if (expected instanceof Credit) {
+            assertEquals(((Credit) expected).getAdministrator(), ((Credit) actual).getAdministrator());
+            return;
+        }
+        Meal meal = ((Ticket) expected).getMeal();
+        Meal read = ((Ticket) actual).getMeal();
+        if (meal == null) {
+            assertNull(read);
+            return;
+        }
+        assertEquals(meal.getDay() == null, read.getDay() == null);
+        if (meal.getDay() != null) {
+            assertEquals(meal.getDay().getDate(), read.getDay().getDate());
+        }
+        assertEquals(meal.getTime(), read.getTime());
+        assertEquals(meal.getType(), read.getType());
+        assertEquals(meal.getSoup(), read.getSoup());
+        assertEquals(meal.getMainCourse(), read.getMainCourse());
+        assertEquals(meal.getDessert(), read.getDessert());
+    }
+
+    /** Writes accounts in the accounts file format. */
+    private static byte[] writeAll(List<Account> accounts) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        AccountCodec.writeAll(accounts, new DataOutputStream(bytes));
+        return bytes.toByteArray();
+    }
+
+    /** Writes an object with Java serialization, as older versions did. */
+    private static byte[] serialize(Object object) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ObjectOutputStream out = new ObjectOutputStream(bytes);
+        out.writeObject(object);
+        out.close();
+        return bytes.toByteArray();
+    }
+
+    @Test
+    public void accountsFileRoundTrip() throws IOException {
+        List<Account> accounts = accounts();
+        Map<Integer, Account> read = AccountCodec.readAll(new ByteArrayInputStream(writeAll(accounts)));
+
+        assertEquals(accounts.size(), read.size());
+        for (Account account : accounts) {
+            assertSameAccount(account, read.get(account.getId()));
+        }
+    }
+
+    @Test
+    public void ticketsForTheSameMealShareIt() throws IOException {
+        Map<Integer, Account> read = AccountCodec.readAll(new ByteArrayInputStream(writeAll(accounts())));
+
+        Meal first = ((Ticket) read.get(20101).getTransactions().get(1)).getMeal();
+        Meal second = ((Ticket) read.get(20102).getTransactions().get(0)).getMeal();
+        assertSame(first, second);
+    }
+
+    @Test
+    public void singleAccountRoundTrip() throws IOException {
+        Account account = accounts().get(0);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        AccountCodec.write(account, new DataOutputStream(bytes));
+
+        assertSameAccount(account, AccountCodec.read(new ByteArrayInputStream(bytes.toByteArray())));
+    }
+
+    @Test
+    public void changeHasOnlyTheNewTransactions() throws IOException {
+        Account stored = accounts().get(0);
+        Account changed = account(20101, 4,
+                new Credit(new Date(1350000001000L), "admin", 20.0),
+                new Ticket(new Date(1350000002000L), lunch, 2.4),
+                new Ticket(new Date(1350000003000L), unknown, 2.85),
+                new Ticket(new Date(1350000007000L), lunch, 2.4));
+        changed.setPinCode(9876);
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        AccountCodec.writeChange(changed, 3, new DataOutputStream(bytes));
+        AccountCodec.Change change = AccountCodec.readChange(new ByteArrayInputStream(bytes.toByteArray()));
+
+        assertEquals(3, change.from);
+        assertEquals(1, change.transactions.size());
+        assertSameAccount(changed, change.applyTo(stored));
+    }
+
+    @Test(expected = StreamCorruptedException.class)
+    public void changeOverOtherTransactionsIsRefused() throws IOException {
+        Account changed = accounts().get(0);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        AccountCodec.writeChange(changed, 2, new DataOutputStream(bytes));
+        AccountCodec.Change change = AccountCodec.readChange(new ByteArrayInputStream(bytes.toByteArray()));
+
+        change.applyTo(account(20101, 2, changed.getTransactions().get(0)));
+    }
+
+    @Test
+    public void readsSerializedAccountsFile() throws IOException {
+        List<Account> accounts = accounts();
+        HashMap<Integer, Account> legacy = new HashMap<Integer, Account>();
+        for (Account account : accounts) {
+            legacy.put(account.getId(), account);
+        }
+        byte[] data = serialize(legacy);
+        assertEquals(0xAC, data[0] & 0xFF);
+        assertEquals(0xED, data[1] & 0xFF);
+
+        Map<Integer, Account> read = AccountCodec.readAll(new ByteArrayInputStream(data));
+
+        assertEquals(accounts.size(), read.size());
+        for (Account account : accounts) {
+            assertSameAccount(account, read.get(account.getId()));
+        }
+    }
+
+    @Test
+    public void readsSerializedAccount() throws IOException {
+        Account account = accounts().get(1);
+
+        assertSameAccount(account, AccountCodec.read(new ByteArrayInputStream(serialize(account))));
+    }
+
+    @Test
+    public void emptyFileHasNoAccounts() throws IOException {
+        assertTrue(AccountCodec.readAll(new ByteArrayInputStream(new byte[0])).isEmpty());
+    }
+
+    @Test(expected = StreamCorruptedException.class)
+    public void newerVersionIsRefused() throws IOException {
+        byte[] data = writeAll(accounts());
+        data[4] = AccountCodec.VERSION + 1;
+
+        AccountCodec.readAll(new ByteArrayInputStream(data));
+    }
+
+    @Test(expected = StreamCorruptedException.class)
+    public void otherFilesAreRefused() throws IOException {
+        AccountCodec.readAll(new ByteArrayInputStream("<accounts/>".getBytes("UTF-8")));
+    }
+
+    @Test(expected = IOException.class)
+    public void truncatedFileIsRefused() throws IOException {
+        byte[] data = writeAll(accounts());
+
+        AccountCodec.readAll(new ByteArrayInputStream(Arrays.copyOf(data, data.length - 10)));
+    }
+}
@@ -0,0 +1,218 @@
+
+/**
+ * Cafeteria management application
+ * Copyright (c) 2011, 2012 Helder Correia
+ * 
+ * This file is part of Cafeteria.
+ * 
+ * Cafeteria is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * Cafeteria is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Cafeteria.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package pt.uac.cafeteria.model.persistence;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import pt.uac.cafeteria.model.domain.Account;
+import pt.uac.cafeteria.model.domain.Credit;
+import pt.uac.cafeteria.model.domain.Transaction;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests appending to and replaying the account log, including records
+ * left half written by a crash.
+ */
+public class AccountLogTest {
+
+    /** Directory of the log file, deleted after each test. */
+    private File dir;
+
+    /** The log file. */
+    private File file;
+
+    @Before
+    public void setUp() throws IOException {
+        dir = File.createTempFile("accountlog", "");
+        dir.delete();
+        dir.mkdir();
+        file = new File(dir, "accounts.log");
+    }
+
+    @After
+    public void tearDown() {
+        file.delete();
+        dir.delete();
+    }
+
+    /** Creates an account with some credits. */
+    private static Account account(int id, int version, int credits) {
+        List<Transaction> transactions = new ArrayList<Transaction>();
+        for (int i = 0; i < credits; i++) {
+            transactions.add(new Credit(new Date(1350000000000L + i), "admin", 1.0));
+        }
+        return new Account(id, 1234, credits, Account.Status.ACTIVE, 0, version, transactions);
+    }
+
+    /** Appends new accounts, written whole. */
+    private static void put(AccountLog log, Account... accounts) throws IOException {
+        log.append(Arrays.asList(accounts), Collections.<Integer, Integer>emptyMap(),
+                Collections.<Integer>emptyList(), AccountLog.into(new HashMap<Integer, Account>()));
+    }
+
+    /** Replays a log from the start, as a new terminal would. */
+    private Map<Integer, Account> replay() throws IOException {
+        Map<Integer, Account> accounts = new HashMap<Integer, Account>();
+        new AccountLog(file).replay(AccountLog.into(accounts));
+        return accounts;
+    }
+
+    /** Cuts bytes off the end of the log file. */
+    private void truncate(int bytes) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.setLength(raf.length() - bytes);
+        } finally {
+            raf.close();
+        }
+    }
+
+    @Test
+    public void replaysAppendedRecords() throws IOException {
+        AccountLog log = new AccountLog(file);
+        put(log, account(1, 0, 2), account(2, 0, 0));
+        log.append(Collections.<Account>emptyList(), Collections.<Integer, Integer>emptyMap(),
+                Arrays.asList(2), AccountLog.into(new HashMap<Integer, Account>()));
+
+        Map<Integer, Account> accounts = replay();
+        assertEquals(1, accounts.size());
+        assertEquals(2, accounts.get(1).getTransactions().size());
+        assertEquals(3, log.count());
+    }
+
+    @Test
+    public void changesAddToTheStoredAccount() throws IOException {
+        AccountLog log = new AccountLog(file);
+        put(log, account(1, 0, 2));
+        Map<Integer, Integer> stored = new HashMap<Integer, Integer>();
+        stored.put(1, 2);
+        log.append(Arrays.asList(account(1, 1, 3)), stored, Collections.<Integer>emptyList(),
+                AccountLog.into(new HashMap<Integer, Account>()));
+
+        Account account = replay().get(1);
+        assertEquals(1, account.getVersion());
+        assertEquals(3, account.getTransactions().size());
+        assertEquals(3.0, account.getBalance(), 0.0);
+    }
+
+    @Test
+    public void changeToAccountDeletedLaterIsSkipped() throws IOException {
+        // as replayed over accounts compacted from this log, when a crash
+        // kept it from being emptied
+        AccountLog log = new AccountLog(file);
+        Map<Integer, Integer> stored = new HashMap<Integer, Integer>();
+        stored.put(1, 2);
+        log.append(Arrays.asList(account(1, 1, 3)), stored, Collections.<Integer>emptyList(),
+                AccountLog.into(new HashMap<Integer, Account>()));
+        log.append(Collections.<Account>emptyList(), Collections.<Integer, Integer>emptyMap(),
+                Arrays.asList(1), AccountLog.into(new HashMap<Integer, Account>()));
+
+        assertTrue(replay().isEmpty());
+    }
+
+    @Test
+    public void recordLeftHalfWrittenIsIgnored() throws IOException {
+        AccountLog log = new AccountLog(file);
+        put(log, account(1, 0, 1));
+        put(log, account(2, 0, 1));
+        truncate(5);
+
+        Map<Integer, Account> accounts = replay();
+        assertEquals(1, accounts.size());
+        assertTrue(accounts.containsKey(1));
+    }
+
+    @Test
+    public void recordWithBadChecksumIsIgnored() throws IOException {
+        AccountLog log = new AccountLog(file);
+        put(log, account(1, 0, 1));
+        put(log, account(2, 0, 1));
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.seek(raf.length() - 1);
+            int last = raf.read();
+            raf.seek(raf.length() - 1);
+            raf.write(last ^ 0xFF);
+        } finally {
+            raf.close();
+        }
+
+        assertFalse(replay().containsKey(2));
+    }
+
+    @Test
+    public void nextAppendOverwritesRecordLeftHalfWritten() throws IOException {
+        put(new AccountLog(file), account(1, 0, 1), account(2, 0, 1));
+        truncate(3);
+
+        AccountLog log = new AccountLog(file);
+        log.replay(AccountLog.into(new HashMap<Integer, Account>()));
+        put(log, account(3, 0, 4));
+
+        Map<Integer, Account> accounts = replay();
+        assertEquals(2, accounts.size());
+        assertTrue(accounts.containsKey(1));
+        assertEquals(4, accounts.get(3).getTransactions().size());
+    }
+
+    @Test
+    public void truncatedHeaderIsAnEmptyLog() throws IOException {
+        put(new AccountLog(file), account(1, 0, 1));
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.setLength(6);
+        } finally {
+            raf.close();
+        }
+
+        assertTrue(replay().isEmpty());
+        AccountLog log = new AccountLog(file);
+        put(log, account(2, 0, 1));
+        assertEquals(Collections.singleton(2), replay().keySet());
+    }
+
+    @Test
+    public void appendReadsRecordsAppendedElsewhere() throws IOException {
+        AccountLog mine = new AccountLog(file);
+        mine.replay(AccountLog.into(new HashMap<Integer, Account>()));
+        put(new AccountLog(file), account(1, 0, 1));
+
+        Map<Integer, Account> seen = new HashMap<Integer, Account>();
+        mine.append(Arrays.asList(account(2, 0, 1)), Collections.<Integer, Integer>emptyMap(),
+                Collections.<Integer>emptyList(), AccountLog.into(seen));
+
+        assertEquals(Collections.singleton(1), seen.keySet());
+        assertEquals(2, mine.count());
+    }
+}
@@ -0,0 +1,152 @@
+
+/**
+ * Cafeteria management application
+ * Copyright (c) 2011, 2012 Helder Correia
+ * 
+ * This file is part of Cafeteria.
+ * 
+ * Cafeteria is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * Cafeteria is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Cafeteria.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package pt.uac.cafeteria.model.persistence;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileLock;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import pt.uac.cafeteria.model.domain.Account;
+import pt.uac.cafeteria.model.domain.Transaction;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests the account table, including slots of removed accounts taken by
+ * new ones, as seen by another table on the same file.
+ */
+public class AccountTableTest {
+
+    /** Directory of the table file, deleted after each test. */
+    private File dir;
+
+    /** The table file. */
+    private File file;
+
+    @Before
+    public void setUp() throws IOException {
+        dir = File.createTempFile("accounttable", "");
+        dir.delete();
+        dir.mkdir();
+        file = new File(dir, "accounts.tbl");
+    }
+
+    @After
+    public void tearDown() {
+        file.delete();
+        dir.delete();
+    }
+
+    /** Creates an account with no transactions. */
+    private static Account account(int id, int version, double balance) {
+        return new Account(id, 1234, balance, Account.Status.ACTIVE, 0, version,
+                Collections.<Transaction>emptyList());
+    }
+
+    /** Writes accounts to a table, holding the lock. */
+    private static void put(AccountTable table, Account... accounts) throws IOException {
+        FileLock lock = table.lock();
+        try {
+            for (Account account : accounts) {
+                table.put(account);
+            }
+        } finally {
+            lock.release();
+        }
+    }
+
+    /** Removes an account from a table, holding the lock. */
+    private static void remove(AccountTable table, Integer id) throws IOException {
+        FileLock lock = table.lock();
+        try {
+            table.remove(id);
+        } finally {
+            lock.release();
+        }
+    }
+
+    /** Reads the number of slots used from the file header. */
+    private int slotsUsed() throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            raf.seek(4);
+            return raf.readInt();
+        } finally {
+            raf.close();
+        }
+    }
+
+    @Test
+    public void restoresNewerState() throws IOException {
+        AccountTable table = new AccountTable(file);
+        put(table, account(1, 3, 7.5));
+
+        Account restored = table.restore(account(1, 1, 0.0));
+        assertEquals(3, restored.getVersion());
+        assertEquals(7.5, restored.getBalance(), 0.0);
+        assertEquals(-1, table.version(2));
+    }
+
+    @Test
+    public void slotOfRemovedAccountIsReused() throws IOException {
+        AccountTable table = new AccountTable(file);
+        put(table, account(1, 0, 1.0), account(2, 0, 2.0));
+        remove(table, 1);
+        put(table, account(3, 0, 3.0));
+
+        assertEquals(2, slotsUsed());
+        assertEquals(new HashSet<Integer>(Arrays.asList(2, 3)), table.ids());
+        assertEquals(-1, table.version(1));
+        assertEquals(3.0, table.restore(account(3, -1, 0.0)).getBalance(), 0.0);
+    }
+
+    @Test
+    public void otherTableSeesReusedSlot() throws IOException {
+        AccountTable mine = new AccountTable(file);
+        put(mine, account(1, 0, 1.0), account(2, 0, 2.0));
+        AccountTable theirs = new AccountTable(file);
+        assertEquals(new HashSet<Integer>(Arrays.asList(1, 2)), theirs.ids());
+
+        remove(mine, 1);
+        put(mine, account(3, 4, 3.0));
+        theirs.lock().release();
+
+        assertEquals(2, slotsUsed());
+        assertEquals(new HashSet<Integer>(Arrays.asList(2, 3)), theirs.ids());
+        assertEquals(-1, theirs.version(1));
+        assertEquals(4, theirs.version(3));
+
+        // and the other way around, for a slot freed by the other table
+        remove(theirs, 2);
+        put(theirs, account(4, 0, 4.0));
+        mine.lock().release();
+        assertEquals(2, slotsUsed());
+        assertEquals(new HashSet<Integer>(Arrays.asList(3, 4)), mine.ids());
+        assertEquals(-1, mine.version(2));
+    }
+}